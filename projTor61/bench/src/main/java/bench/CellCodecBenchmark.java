@@ -0,0 +1,228 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import src.Cell;
+import src.CellDispatch;
+import src.CircuitTable;
+import src.Hop;
+import src.RelayCommand;
+import src.TorCommand;
+
+/** Benchmarks for decoding cells: command conversion, per-cell dispatch and parsing the
+    addresses in BEGIN and EXTEND bodies. Each benchmark that replaced older code has a
+    `legacy` twin that reproduces the old code, so both show up in the same report. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CellCodecBenchmark {
+  /// A mix of cells a relay sees, mostly relay data.
+  private byte[][] cells;
+  /// The `CellDispatch` hop kind to use with each of `cells`.
+  private int[] hopKinds;
+  /// A `Hop` to use with each of `cells` for the legacy dispatch.
+  private Hop[] hops;
+  private byte[] beginCell;
+  private byte[] extendCell;
+  private final Cell cell = new Cell();
+
+  @Setup
+  public void setup() {
+    Hop remote = new Hop(null, 2, 7, false);
+    Hop local = new Hop(null, 1, 1, true);
+    cells = new byte[64][];
+    hopKinds = new int[cells.length];
+    hops = new Hop[cells.length];
+    for (int i = 0; i < cells.length; i++) {
+      Cell c = new Cell(new byte[Cell.SIZE]);
+      if (i % 16 == 0) {
+        c.setCircuitId(3);
+        c.setCommand(TorCommand.CREATE);
+      } else if (i % 8 == 0) {
+        c.setRelayHeader(3, 5, RelayCommand.BEGIN, 0);
+        c.setAddressBody("example.com", 80);
+      } else {
+        c.setRelayHeader(3, 5, RelayCommand.DATA, Cell.MAX_BODY_LENGTH);
+      }
+      cells[i] = c.bytes();
+      hops[i] = i % 16 == 0 ? null : i % 3 == 0 ? CircuitTable.END : i % 3 == 1 ? remote : local;
+      hopKinds[i] = CellDispatch.hopKind(hops[i]);
+    }
+
+    Cell begin = new Cell(new byte[Cell.SIZE]);
+    begin.setRelayHeader(3, 5, RelayCommand.BEGIN, 0);
+    begin.setAddressBody("www.washington.edu", 443);
+    beginCell = begin.bytes();
+
+    Cell extend = new Cell(new byte[Cell.SIZE]);
+    extend.setRelayHeader(3, 0, RelayCommand.EXTEND, 0);
+    extend.setExtendBody("128.208.1.137", 46101, 0x12340001);
+    extendCell = extend.bytes();
+  }
+
+  @Benchmark
+  public void fromByte(Blackhole bh) {
+    for (byte[] c : cells) {
+      bh.consume(TorCommand.fromByte(c[2]));
+      bh.consume(RelayCommand.fromByte(c[13]));
+    }
+  }
+
+  @Benchmark
+  public void fromByteLegacy(Blackhole bh) {
+    for (byte[] c : cells) {
+      bh.consume(legacyTorCommand(c[2]));
+      bh.consume(legacyRelayCommand(c[13]));
+    }
+  }
+
+  @Benchmark
+  public void dispatch(Blackhole bh) {
+    for (int i = 0; i < cells.length; i++) {
+      bh.consume(CellDispatch.action(cells[i][2], cells[i][13], hopKinds[i]));
+    }
+  }
+
+  @Benchmark
+  public void dispatchLegacy(Blackhole bh) {
+    for (int i = 0; i < cells.length; i++) {
+      bh.consume(legacyDispatch(cells[i], hops[i]));
+    }
+  }
+
+  @Benchmark
+  public void parseBegin(Blackhole bh) {
+    cell.wrap(beginCell);
+    int addressEnd = cell.addressEnd();
+    bh.consume(cell.addressHost(addressEnd));
+    bh.consume(cell.addressPort(addressEnd));
+  }
+
+  @Benchmark
+  public void parseBeginLegacy(Blackhole bh) {
+    byte[] c = beginCell;
+    int bodyLength = ((c[11] & 0xFF) << 8) | (c[12] & 0xFF);
+    int colonSeparatorIndex = 0;
+    int endIndex = 0;
+    for (int i = 14; i < 14 + bodyLength; i++) {
+      if (((char) c[i]) == ':') {
+        colonSeparatorIndex = i;
+      } else if (((char) c[i]) == '\0') {
+        endIndex = i;
+        break;
+      }
+    }
+    bh.consume((new String(c)).substring(14, colonSeparatorIndex));
+    bh.consume(Integer.parseInt((new String(c)).substring(colonSeparatorIndex + 1, endIndex)));
+  }
+
+  @Benchmark
+  public void parseExtend(Blackhole bh) {
+    cell.wrap(extendCell);
+    int addressEnd = cell.addressEnd();
+    bh.consume(cell.addressHost(addressEnd));
+    bh.consume(cell.addressPort(addressEnd));
+    bh.consume(cell.extendAgentId(addressEnd));
+  }
+
+  @Benchmark
+  public void parseExtendLegacy(Blackhole bh) {
+    byte[] message = extendCell;
+    int bodyLength = ((message[11] & 0xFF) << 8) | (message[12] & 0xFF);
+    int colonSeparatorIndex = 0;
+    int endIndex = 0;
+    for (int i = 14; i < 14 + bodyLength; i++) {
+      if (((char) message[i]) == ':') {
+        colonSeparatorIndex = i;
+      } else if (((char) message[i]) == '\0') {
+        endIndex = i;
+        break;
+      }
+    }
+    bh.consume(Integer.parseInt(new String(message).substring(colonSeparatorIndex + 1, endIndex)));
+    bh.consume((new String(message)).substring(14, colonSeparatorIndex));
+    int newAgentId = 0;
+    for (int i = endIndex + 1; i < 14 + bodyLength; i++) {
+      newAgentId |= (message[i] & 0xFF) << ((bodyLength + 13 - i) * 8);
+    }
+    bh.consume(newAgentId);
+  }
+
+  /** `TorCommand.fromByte` as it was, with a switch. */
+  private static TorCommand legacyTorCommand(byte b) {
+    switch (b) {
+    case 1: return TorCommand.CREATE;
+    case 2: return TorCommand.CREATED;
+    case 3: return TorCommand.RELAY;
+    case 4: return TorCommand.DESTROY;
+    case 5: return TorCommand.OPEN;
+    case 6: return TorCommand.OPENED;
+    case 7: return TorCommand.OPEN_FAILED;
+    case 8: return TorCommand.CREATE_FAILED;
+    default: return null;
+    }
+  }
+
+  /** `RelayCommand.fromByte` as it was, with a switch. */
+  private static RelayCommand legacyRelayCommand(byte b) {
+    switch (b) {
+    case 1:   return RelayCommand.BEGIN;
+    case 2:   return RelayCommand.DATA;
+    case 3:   return RelayCommand.END;
+    case 4:   return RelayCommand.CONNECTED;
+    case 6:   return RelayCommand.EXTEND;
+    case 7:   return RelayCommand.EXTENDED;
+    case 0xb: return RelayCommand.BEGIN_FAILED;
+    case 0xc: return RelayCommand.EXTEND_FAILED;
+    default: return null;
+    }
+  }
+
+  /** The chain of conditions `TorLinkHandler.handleCell` used before `CellDispatch`,
+      returning a number for the branch taken. `hop.local` stands in for the
+      `SocketManager.agentIdForSocket` lookup it made, so this is a lower bound on its cost. */
+  private static int legacyDispatch(byte[] cell, Hop nextHop) {
+    TorCommand command = legacyTorCommand(cell[2]);
+    RelayCommand candidateRelayCommand = legacyRelayCommand(cell[13]);
+    if (nextHop == null) {
+      if (command == TorCommand.CREATE) {
+        return 1;
+      } else if (command == TorCommand.RELAY && legacyRelayCommand(cell[13]) == RelayCommand.EXTEND) {
+        return 2;
+      }
+      return 0;
+    } else if (nextHop != CircuitTable.END && (nextHop.circuitId != 1 || !nextHop.local ||
+               (command == TorCommand.OPENED || command == TorCommand.OPEN_FAILED ||
+                   command == TorCommand.CREATED || command == TorCommand.CREATE_FAILED ||
+                   (command == TorCommand.RELAY && (candidateRelayCommand == RelayCommand.CONNECTED ||
+                   candidateRelayCommand == RelayCommand.BEGIN_FAILED || candidateRelayCommand == RelayCommand.EXTENDED ||
+                   candidateRelayCommand == RelayCommand.EXTEND_FAILED || candidateRelayCommand == RelayCommand.DATA))))) {
+      return command == TorCommand.DESTROY ? 4 : 3;
+    }
+    switch (command) {
+      case CREATE:  return 5;
+      case DESTROY: return 6;
+      case RELAY:   switch (legacyRelayCommand(cell[13])) {
+                      case BEGIN:  return 7;
+                      case DATA:   return 8;
+                      case END:    return 9;
+                      case EXTEND: return 2;
+                      default:     return 0;
+                    }
+      default:      return 0;
+    }
+  }
+}
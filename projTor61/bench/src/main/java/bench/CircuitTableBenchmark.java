@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import src.CircuitTable;
+import src.Hop;
+
+/** Benchmarks `CircuitTable.get`, the one hop lookup every relayed cell makes, with a
+    table of `circuits` circuits spread over 16 links, read by 4 threads at once. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CircuitTableBenchmark {
+  @Param({"64", "4096"})
+  public int circuits;
+
+  private CircuitTable table;
+  /// (link id, circuit id) pairs that are in `table`, in random order.
+  private int[] linkIds;
+  private int[] circuitIds;
+
+  @Setup
+  public void setup() {
+    table = new CircuitTable();
+    linkIds = new int[circuits];
+    circuitIds = new int[circuits];
+    Random r = new Random(61);
+    for (int i = 0; i < circuits; i++) {
+      linkIds[i] = 1 + r.nextInt(16);
+      circuitIds[i] = 2 + 2 * i;
+      table.put(linkIds[i], circuitIds[i], new Hop(null, linkIds[i], circuitIds[i]));
+    }
+  }
+
+  /** One lookup per existing circuit, so the reported time is per `circuits` lookups. */
+  @Benchmark
+  public void getHit(Blackhole bh) {
+    for (int i = 0; i < circuits; i++) {
+      bh.consume(table.get(linkIds[i], circuitIds[i]));
+    }
+  }
+
+  /** One lookup per existing circuit, for circuit ids that were never added. */
+  @Benchmark
+  public void getMiss(Blackhole bh) {
+    for (int i = 0; i < circuits; i++) {
+      bh.consume(table.get(linkIds[i], circuitIds[i] + 1));
+    }
+  }
+}
@@ -0,0 +1,533 @@
+package bench;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import regagent.RegistrationServer;
+
+/** `LoadHarness` measures a whole tor network on one host. It starts a `RegistrationServer`,
+    a local HTTP origin and a TCP echo server, then `--nodes` tor nodes as separate processes
+    on loopback, each registering with the local server and building its circuit through the
+    others. Once every node's proxy is ready, `--clients` threads send HTTP GETs (to the
+    origin) and CONNECT tunnels (to the echo server) through randomly chosen node proxies for
+    `--duration` seconds. It reports throughput, p50/p99 latency, the circuit build time
+    each node printed, and each node's thread count and memory use.
+
+    Each tor node keeps its state in static fields, which is why nodes run as processes
+    rather than in this JVM. Run with the benchmarks jar, which also holds the node classes:
+
+        java -cp bench/target/benchmarks.jar bench.LoadHarness [--nodes=<n>] [--clients=<n>]
+            [--duration=<s>] [--http-bytes=<n>] [--connect-bytes=<n>] [--connect-ratio=<0..1>]
+            [--group=<n>] [--keep-alive=true|false] [--node-args="<tor node options>"] */
+public class LoadHarness {
+  /// How long to wait for a node to print that its proxy is ready.
+  private static final int NODE_START_TIMEOUT_S = 60;
+  /// The read timeout of client sockets; requests that take longer count as failed.
+  private static final int CLIENT_TIMEOUT_MS = 30000;
+
+  private int nodeCount = 4;
+  private int clientCount = 16;
+  private int durationSeconds = 20;
+  private int httpBytes = 16 * 1024;
+  private int connectBytes = 16 * 1024;
+  private double connectRatio = 0.25;
+  private int groupNo = 461;
+  /// Whether each client keeps one connection to each node's proxy open for its GETs.
+  private boolean keepAlive = false;
+  private List<String> nodeArgs = new ArrayList<>();
+
+  public static void main(String[] args) throws Exception {
+    LoadHarness harness = new LoadHarness();
+    if (!harness.parse(args)) {
+      System.out.println("usage: bench.LoadHarness [--nodes=<n>] [--clients=<n>] [--duration=<s>] " +
+          "[--http-bytes=<n>] [--connect-bytes=<n>] [--connect-ratio=<0..1>] [--group=<n>] " +
+          "[--keep-alive=true|false] [--node-args=\"<tor node options>\"]");
+      return;
+    }
+    harness.run();
+    System.exit(0);
+  }
+
+  /** Parses the command line options, returning `false` if any is not valid. */
+  private boolean parse(String[] args) {
+    for (String arg : args) {
+      int separatorIndex = arg.indexOf('=');
+      if (!arg.startsWith("--") || separatorIndex == -1) {
+        return false;
+      }
+      String name = arg.substring(2, separatorIndex);
+      String value = arg.substring(separatorIndex + 1);
+      try {
+        switch (name) {
+          case "nodes":         nodeCount = Integer.parseInt(value);
+                                break;
+          case "clients":       clientCount = Integer.parseInt(value);
+                                break;
+          case "duration":      durationSeconds = Integer.parseInt(value);
+                                break;
+          case "http-bytes":    httpBytes = Integer.parseInt(value);
+                                break;
+          case "connect-bytes": connectBytes = Integer.parseInt(value);
+                                break;
+          case "connect-ratio": connectRatio = Double.parseDouble(value);
+                                break;
+          case "group":         groupNo = Integer.parseInt(value);
+                                break;
+          case "keep-alive":    keepAlive = Boolean.parseBoolean(value);
+                                break;
+          case "node-args":     nodeArgs = value.isBlank() ? new ArrayList<>() :
+                                    Arrays.asList(value.trim().split("\\s+"));
+                                break;
+          default:              return false;
+        }
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return nodeCount > 0 && clientCount > 0 && durationSeconds > 0 && httpBytes >= 0 &&
+        connectBytes > 0 && connectRatio >= 0 && connectRatio <= 1;
+  }
+
+  private void run() throws Exception {
+    RegistrationServer registry = new RegistrationServer(0, 300);
+    registry.start();
+    HttpServer origin = startOrigin();
+    ServerSocket echoServer = startEchoServer();
+    System.out.println("registry on udp " + registry.getLocalPort() + ", origin on " +
+        origin.getAddress().getPort() + ", echo on " + echoServer.getLocalPort());
+
+    List<Node> nodes = new ArrayList<>();
+    try {
+      // Start nodes one at a time so each one can build its circuit through the ones
+      // already registered.
+      for (int i = 1; i <= nodeCount; i++) {
+        Node node = new Node(i, registry.getLocalPort());
+        nodes.add(node);
+        if (!node.ready.await(NODE_START_TIMEOUT_S, TimeUnit.SECONDS)) {
+          System.out.println("node " + i + " did not start; last output:");
+          node.printRecentOutput();
+          return;
+        }
+        System.out.println("node " + i + " ready: proxy " + node.proxyPort + ", circuit " +
+            node.circuitBuildMillis + " ms");
+      }
+
+      Results http = new Results();
+      Results connect = new Results();
+      runClients(nodes, origin.getAddress().getPort(), echoServer.getLocalPort(), http, connect);
+      report(nodes, http, connect);
+    } finally {
+      for (Node node : nodes) {
+        node.process.destroy();
+      }
+      for (Node node : nodes) {
+        if (!node.process.waitFor(5, TimeUnit.SECONDS)) {
+          node.process.destroyForcibly();
+        }
+      }
+      origin.stop(0);
+      echoServer.close();
+      registry.close();
+    }
+  }
+
+  /** Runs the client threads for `durationSeconds`, sampling node thread counts meanwhile. */
+  private void runClients(List<Node> nodes, int originPort, int echoPort,
+                          Results http, Results connect) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    Thread[] clients = new Thread[clientCount];
+    for (int i = 0; i < clientCount; i++) {
+      final Random r = new Random(i);
+      clients[i] = new Thread(() -> {
+        byte[] payload = new byte[connectBytes];
+        r.nextBytes(payload);
+        Socket[] kept = new Socket[nodes.size()];
+        while (System.nanoTime() < deadline) {
+          int nodeIndex = r.nextInt(nodes.size());
+          Node node = nodes.get(nodeIndex);
+          long start = System.nanoTime();
+          if (r.nextDouble() < connectRatio) {
+            boolean ok = tunnel(node.proxyPort, echoPort, payload);
+            connect.record(ok, System.nanoTime() - start, ok ? 2L * connectBytes : 0);
+          } else {
+            boolean ok = get(node.proxyPort, originPort, kept, nodeIndex);
+            http.record(ok, System.nanoTime() - start, ok ? httpBytes : 0);
+          }
+        }
+      });
+      clients[i].start();
+    }
+
+    while (System.nanoTime() < deadline) {
+      for (Node node : nodes) {
+        node.sampleThreads();
+      }
+      Thread.sleep(1000);
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+  }
+
+  /** Sends an HTTP GET for `httpBytes` bytes through a proxy and reads the whole response.
+      With `keepAlive`, the connection in `kept[index]` is used if there is one, and the
+      connection is left there for the next GET if it stays open.
+      @return `true` if and only if the full response arrived. */
+  private boolean get(int proxyPort, int originPort, Socket[] kept, int index) {
+    Socket socket = kept[index];
+    kept[index] = null;
+    try {
+      if (socket == null) {
+        socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        socket.setSoTimeout(CLIENT_TIMEOUT_MS);
+      }
+      String host = "127.0.0.1:" + originPort;
+      socket.getOutputStream().write(("GET http://" + host + "/bytes?n=" + httpBytes +
+          " HTTP/1.1\r\nHost: " + host + "\r\nConnection: " +
+          (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+      InputStream in = socket.getInputStream();
+      String header = readHeader(in);
+      if (header == null || !header.startsWith("HTTP/1.") || !header.contains(" 200")) {
+        return false;
+      }
+      // The proxy closes the connection some time after the response, so stop at the
+      // Content-Length rather than waiting for the close.
+      Matcher m = Pattern.compile("(?i)content-length:\\s*(\\d+)").matcher(header);
+      long remaining = m.find() ? Long.parseLong(m.group(1)) : Long.MAX_VALUE;
+      byte[] buf = new byte[16 * 1024];
+      long total = 0;
+      while (remaining > 0) {
+        int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+        if (read == -1) {
+          break;
+        }
+        total += read;
+        remaining -= read;
+      }
+      boolean ok = total == httpBytes;
+      if (ok && keepAlive && header.startsWith("HTTP/1.1") &&
+          !header.toLowerCase().contains("connection: close")) {
+        kept[index] = socket;
+        socket = null;
+      }
+      return ok;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // no op
+        }
+      }
+    }
+  }
+
+  /** Opens a CONNECT tunnel to the echo server through a proxy, sends `payload` and reads it
+      back.
+      @return `true` if and only if the whole payload came back unchanged. */
+  private boolean tunnel(int proxyPort, int echoPort, byte[] payload) {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+      socket.setSoTimeout(CLIENT_TIMEOUT_MS);
+      String host = "127.0.0.1:" + echoPort;
+      socket.getOutputStream().write(("CONNECT " + host + " HTTP/1.1\r\nHost: " + host +
+          "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      InputStream in = socket.getInputStream();
+      String header = readHeader(in);
+      if (header == null || !header.contains(" 200")) {
+        return false;
+      }
+
+      socket.getOutputStream().write(payload);
+      byte[] echoed = new byte[payload.length];
+      int total = 0;
+      while (total < echoed.length) {
+        int read = in.read(echoed, total, echoed.length - total);
+        if (read == -1) {
+          return false;
+        }
+        total += read;
+      }
+      return Arrays.equals(payload, echoed);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Reads an HTTP response header up to and including the blank line, or returns `null` if
+      the stream ends first. */
+  private static String readHeader(InputStream in) throws IOException {
+    StringBuilder header = new StringBuilder();
+    int curr;
+    while ((curr = in.read()) != -1) {
+      header.append((char) curr);
+      int length = header.length();
+      if (length >= 4 && header.charAt(length - 1) == '\n' && header.charAt(length - 2) == '\r' &&
+          header.charAt(length - 3) == '\n' && header.charAt(length - 4) == '\r') {
+        return header.toString();
+      }
+    }
+    return null;
+  }
+
+  /** Starts an HTTP server on loopback where /bytes?n=<n> responds with `n` bytes. */
+  private static HttpServer startOrigin() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    byte[] chunk = new byte[64 * 1024];
+    Arrays.fill(chunk, (byte) 'x');
+    server.createContext("/bytes", exchange -> {
+      String query = exchange.getRequestURI().getQuery();
+      long n = query != null && query.startsWith("n=") ? Long.parseLong(query.substring(2)) : 0;
+      exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+      exchange.sendResponseHeaders(200, n == 0 ? -1 : n);
+      try (OutputStream out = exchange.getResponseBody()) {
+        while (n > 0) {
+          int length = (int) Math.min(chunk.length, n);
+          out.write(chunk, 0, length);
+          n -= length;
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    return server;
+  }
+
+  /** Starts a TCP server on loopback that writes back everything it reads. */
+  private static ServerSocket startEchoServer() throws IOException {
+    ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    Thread acceptThread = new Thread(() -> {
+      while (true) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (IOException e) {
+          return;
+        }
+        Thread echoThread = new Thread(() -> {
+          try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buf = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+              out.write(buf, 0, read);
+            }
+          } catch (IOException e) {
+            // no op
+          }
+        });
+        echoThread.setDaemon(true);
+        echoThread.start();
+      }
+    });
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    return server;
+  }
+
+  private void report(List<Node> nodes, Results http, Results connect) {
+    System.out.println();
+    System.out.println("nodes " + nodeCount + ", clients " + clientCount + ", duration " +
+        durationSeconds + " s, node args " + nodeArgs);
+    http.print("http", durationSeconds);
+    connect.print("connect", durationSeconds);
+
+    long[] buildTimes = new long[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+      buildTimes[i] = nodes.get(i).circuitBuildMillis;
+    }
+    Arrays.sort(buildTimes);
+    System.out.println(String.format("circuit build ms: min %d, median %d, max %d",
+        buildTimes[0], buildTimes[buildTimes.length / 2], buildTimes[buildTimes.length - 1]));
+
+    System.out.println("node  pid      threads(max)  rss(MB)  heap used(MB)");
+    for (Node node : nodes) {
+      System.out.println(String.format("%-5d %-8d %-13d %-8s %s", node.instanceNo,
+          node.process.pid(), node.maxThreads, node.rssMegabytes(), node.heapUsedMegabytes()));
+    }
+  }
+
+  /** Latency and volume for one kind of request, recorded by many client threads. */
+  private static class Results {
+    private final AtomicLong ok = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    /// The latencies of successful requests, in ns.
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    void record(boolean success, long latencyNanos, long byteCount) {
+      if (!success) {
+        failed.incrementAndGet();
+        return;
+      }
+      ok.incrementAndGet();
+      bytes.addAndGet(byteCount);
+      synchronized (this) {
+        if (latencyCount == latencies.length) {
+          latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = latencyNanos;
+      }
+    }
+
+    synchronized void print(String label, int durationSeconds) {
+      long[] sorted = Arrays.copyOf(latencies, latencyCount);
+      Arrays.sort(sorted);
+      System.out.println(String.format(
+          "%-8s ok %d, failed %d, %.1f req/s, %.2f MB/s, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+          label, ok.get(), failed.get(), ok.get() / (double) durationSeconds,
+          bytes.get() / (1024.0 * 1024.0) / durationSeconds,
+          percentile(sorted, 0.50), percentile(sorted, 0.99),
+          sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+
+  /** A tor node process and what has been learned about it. */
+  private class Node {
+    final int instanceNo;
+    final int proxyPort;
+    final Process process;
+    final CountDownLatch ready = new CountDownLatch(1);
+    volatile long circuitBuildMillis = -1;
+    volatile int maxThreads = 0;
+    /// The last lines the node printed, for diagnosing failures.
+    private final String[] recentOutput = new String[20];
+    private int recentOutputCount = 0;
+
+    Node(int instanceNo, int registryPort) throws IOException {
+      this.instanceNo = instanceNo;
+      this.proxyPort = freePort();
+      List<String> command = new ArrayList<>();
+      command.add(ProcessHandle.current().info().command().orElse("java"));
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add("src.TorMain");
+      command.add(Integer.toString(groupNo));
+      command.add(Integer.toString(instanceNo));
+      command.add(Integer.toString(proxyPort));
+      command.add("--registry=127.0.0.1:" + registryPort);
+      command.add("--registry-udp-port=0");
+      command.addAll(nodeArgs);
+      this.process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+      Thread outputThread = new Thread(this::readOutput);
+      outputThread.setDaemon(true);
+      outputThread.start();
+    }
+
+    private void readOutput() {
+      Pattern buildTime = Pattern.compile("created tor circuit in (\\d+) ms");
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          synchronized (recentOutput) {
+            recentOutput[recentOutputCount++ % recentOutput.length] = line;
+          }
+          Matcher m = buildTime.matcher(line);
+          if (m.find()) {
+            circuitBuildMillis = Long.parseLong(m.group(1));
+          } else if (line.startsWith("proxy ready")) {
+            ready.countDown();
+          }
+        }
+      } catch (IOException e) {
+        // no op; the process ended
+      }
+    }
+
+    void printRecentOutput() {
+      synchronized (recentOutput) {
+        int start = Math.max(0, recentOutputCount - recentOutput.length);
+        for (int i = start; i < recentOutputCount; i++) {
+          System.out.println("  " + recentOutput[i % recentOutput.length]);
+        }
+      }
+    }
+
+    /** Updates `maxThreads` from /proc, where available. */
+    void sampleThreads() {
+      String threads = procStatus("Threads:");
+      if (threads != null) {
+        maxThreads = Math.max(maxThreads, Integer.parseInt(threads.trim()));
+      }
+    }
+
+    String rssMegabytes() {
+      String rss = procStatus("VmRSS:");
+      if (rss == null) {
+        return "n/a";
+      }
+      return Long.toString(Long.parseLong(rss.trim().split("\\s+")[0]) / 1024);
+    }
+
+    /** Asks the JVM of the node for its heap use with jcmd. */
+    String heapUsedMegabytes() {
+      Path java = Paths.get(ProcessHandle.current().info().command().orElse("java"));
+      Path jcmd = java.resolveSibling("jcmd");
+      try {
+        Process p = new ProcessBuilder(jcmd.toString(), Long.toString(process.pid()), "GC.heap_info")
+            .redirectErrorStream(true).start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        p.waitFor(10, TimeUnit.SECONDS);
+        Matcher m = Pattern.compile("used (\\d+)K").matcher(output);
+        return m.find() ? Long.toString(Long.parseLong(m.group(1)) / 1024) : "n/a";
+      } catch (IOException | InterruptedException e) {
+        return "n/a";
+      }
+    }
+
+    private String procStatus(String field) {
+      try {
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(process.pid()), "status"))) {
+          if (line.startsWith(field)) {
+            return line.substring(field.length());
+          }
+        }
+      } catch (IOException e) {
+        // not Linux, or the process is gone
+      }
+      return null;
+    }
+  }
+
+  /** Returns a TCP port that was free a moment ago. */
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import src.CellBuffer;
+import src.SocketManager;
+import src.TorConfig;
+import src.TorEventLoop;
+
+/** Benchmarks `SocketManager.writeToSocket` with 4 threads writing cells to one loopback
+    tor link at once, the way several circuits share a link. The other end of the link reads
+    and discards everything.
+
+    `writeToSocket` never waits for room in a write queue, so a writer that gets more than
+    `MAX_QUEUED` cells ahead of the link waits for it to catch up. The result is the rate at
+    which cells actually leave the node, not just the rate they can be queued. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class WriteToSocketBenchmark {
+  /// The most cells a writer lets the link fall behind by.
+  private static final int MAX_QUEUED = 4096;
+
+  @Param({"THREADS", "NIO"})
+  public TorConfig.IoMode ioMode;
+
+  private ServerSocket serverSocket;
+  private Socket socket;
+  private Queue<CellBuffer> queue;
+  private Thread drainThread;
+
+  @Setup
+  public void setup() throws IOException {
+    TorConfig.ioMode = ioMode;
+    if (ioMode == TorConfig.IoMode.NIO) {
+      TorEventLoop.startLoops(1);
+    }
+
+    serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    drainThread = new Thread(() -> {
+      try (Socket drainSocket = serverSocket.accept()) {
+        InputStream in = drainSocket.getInputStream();
+        byte[] sink = new byte[64 * 1024];
+        while (in.read(sink) != -1) {
+          // discard
+        }
+      } catch (IOException e) {
+        // closed by tearDown
+      }
+    });
+    drainThread.setDaemon(true);
+    drainThread.start();
+
+    socket = SocketManager.openSocket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    SocketManager.addSocket(socket, true);
+    queue = SocketManager.bufferForSocket(socket);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SocketManager.removeSocket(socket);
+    serverSocket.close();
+  }
+
+  @Benchmark
+  public void writeToSocket() {
+    while (queue.size() > MAX_QUEUED) {
+      Thread.onSpinWait();
+    }
+    SocketManager.writeToSocket(socket, CellBuffer.allocate());
+  }
+}
@@ -0,0 +1,139 @@
+package proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import src.Cell;
+import src.RelayCommand;
+
+/** Benchmarks the proxy's conversions between HTTP text and relay data cells: reading lines
+    out of the cells queued for a stream with `BufferedStreamReader.readLine`, reading a body
+    out of them in bulk with `BufferedStreamReader.read`, and packing a request into cells
+    with `HttpRequestThread.handleHttpMessage`. Lives in package `proxy` because
+    `handleHttpMessage` is package-private. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProxyBenchmark {
+  /// The header of a typical browser request, one line per element.
+  private static final String[] REQUEST_HEADER = {
+    "GET http://www.example.com/images/logo.png HTTP/1.1\r\n",
+    "Host: www.example.com\r\n",
+    "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:57.0) Gecko/20100101 Firefox/57.0\r\n",
+    "Accept: image/webp,image/apng,image/*,*/*;q=0.8\r\n",
+    "Accept-Language: en-US,en;q=0.5\r\n",
+    "Accept-Encoding: gzip, deflate\r\n",
+    "Referer: http://www.example.com/\r\n",
+    "Cookie: session=4f2a9c3e8b1d7f6a5e4c3b2a1f0e9d8c; theme=dark\r\n",
+    "Connection: keep-alive\r\n",
+    "\r\n"
+  };
+  /// The number of relay data cells in `responseCells`.
+  private static final int RESPONSE_CELLS = 32;
+
+  /// Relay data cells holding whole lines of text, as a response arrives on a stream.
+  private byte[][] responseCells;
+  /// The number of lines in `responseCells`.
+  private int responseLines;
+  /// The number of bytes of text in `responseCells`.
+  private int responseBytes;
+  /// Where `readBody` reads the text to.
+  private byte[] bodyBuffer = new byte[4096];
+  /// A whole request: `REQUEST_HEADER`, as sent by the browser.
+  private byte[] requestBytes;
+  private HttpRequestThread requestThread;
+  /// A `Socket` that discards everything written to it.
+  private Socket sink;
+
+  @Setup
+  public void setup() {
+    // Fill the cells with header lines, only splitting lines across cells, never ending a
+    // cell in the middle of the last line.
+    StringBuilder text = new StringBuilder();
+    responseLines = 0;
+    while (true) {
+      String line = REQUEST_HEADER[responseLines % (REQUEST_HEADER.length - 1)];
+      if (text.length() + line.length() > RESPONSE_CELLS * Cell.MAX_BODY_LENGTH) {
+        break;
+      }
+      text.append(line);
+      responseLines++;
+    }
+    byte[] textBytes = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+    responseBytes = textBytes.length;
+    int cellCount = (textBytes.length + Cell.MAX_BODY_LENGTH - 1) / Cell.MAX_BODY_LENGTH;
+    responseCells = new byte[cellCount][];
+    for (int i = 0; i < cellCount; i++) {
+      Cell cell = new Cell(new byte[Cell.SIZE]);
+      int offset = i * Cell.MAX_BODY_LENGTH;
+      int length = Math.min(Cell.MAX_BODY_LENGTH, textBytes.length - offset);
+      cell.setRelayHeader(1, 2, RelayCommand.DATA, 0);
+      cell.setBody(textBytes, offset, length);
+      responseCells[i] = cell.bytes();
+    }
+
+    requestBytes = String.join("", REQUEST_HEADER).getBytes(StandardCharsets.ISO_8859_1);
+    sink = new Socket() {
+      @Override
+      public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+      }
+    };
+    requestThread = new HttpRequestThread(sink, null, null, null);
+  }
+
+  /** Reads every line out of `RESPONSE_CELLS` cells of text. */
+  @Benchmark
+  public void readLine(Blackhole bh) {
+    BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    for (byte[] cell : responseCells) {
+      queue.add(cell);
+    }
+    BufferedStreamReader reader = new BufferedStreamReader(queue);
+    for (int i = 0; i < responseLines; i++) {
+      bh.consume(reader.readLine());
+    }
+  }
+
+  /** Reads all the text in `RESPONSE_CELLS` cells, a buffer at a time. */
+  @Benchmark
+  public void readBody(Blackhole bh) {
+    BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    for (byte[] cell : responseCells) {
+      queue.add(cell);
+    }
+    BufferedStreamReader reader = new BufferedStreamReader(queue);
+    int total = 0;
+    while (total < responseBytes) {
+      total += reader.read(bodyBuffer, 0, bodyBuffer.length);
+    }
+    bh.consume(bodyBuffer);
+  }
+
+  /** Reads one request and packs it into cells. */
+  @Benchmark
+  public int packRequest() throws Exception {
+    BufferedStreamReader reader = new BufferedStreamReader(new ByteArrayInputStream(requestBytes));
+    DataCellPacker packer = new DataCellPacker(OutputStream.nullOutputStream(), 1, 2, 0);
+    return requestThread.handleHttpMessage(reader, new ArrayList<>(), packer);
+  }
+}
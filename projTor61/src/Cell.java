@@ -0,0 +1,346 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+
+/** A `Cell` is a reusable view over the bytes of a 512-byte tor cell that reads and writes
+    its fields by name instead of by byte offset. A `Cell` holds no state of its own besides
+    the array it wraps, so one instance can be pointed at cell after cell with `wrap`, and
+    none of its accessors allocate (except `addressHost`, which has to build a `String`).
+
+    Every cell starts with a 2-byte circuit id and a 1-byte `TorCommand`. Open cells
+    (`OPEN`, `OPENED`, `OPEN_FAILED`) follow that with the 4-byte opener and opened agent ids.
+    Relay cells follow it with a 2-byte stream id, 2 zero bytes, a 4-byte digest, a 2-byte
+    body length, a 1-byte `RelayCommand` and up to 498 bytes of body. The body of `BEGIN` and
+    `EXTEND` cells is an address of the form "host:port\0", followed by a 4-byte agent id
+    for `EXTEND` and an optional 1-byte set of flags for `BEGIN`. An `END` cell's body is
+    an optional 1-byte set of flags. All multi-byte fields are big-endian.
+
+    The flag bytes, sendme cells and empty data cells extend the original protocol, and
+    nodes and proxies without them still work with ones that have them:
+    - A proxy sets `BEGIN` flags to say what it supports: `BEGIN_FRAMED` if it frames the
+      stream's HTTP messages, `BEGIN_FLOW_CONTROL` if it sends sendme cells. An exit node
+      that doesn't know the flags reads the address up to its '\0' and ignores them; a
+      `BEGIN` without them (`beginFlags` returns 0) gets the original behavior.
+    - `END_CLEAN` is only set by a proxy that sent `BEGIN_FRAMED`, and lets the exit node
+      keep the web server connection. An `END` with an empty body (`endFlags` returns 0)
+      closes it, as it always did, and exit nodes that don't know the flag ignore the body.
+    - An exit node only holds a stream to its windows, and only sends the empty data cells
+      that keep an idle stream open, if the proxy set `BEGIN_FLOW_CONTROL`. A proxy without
+      the flag would take an empty data cell as the end of the stream, and never sends the
+      sendme cells that reopen a window. Nodes that don't know sendme cells drop them. */
+public final class Cell {
+  /// The number of bytes in a cell.
+  public static final int SIZE = CellBuffer.CELL_SIZE;
+  /// The offset of the body of a relay cell.
+  public static final int BODY_OFFSET = 14;
+  /// The most bytes the body of a relay cell can hold.
+  public static final int MAX_BODY_LENGTH = SIZE - BODY_OFFSET;
+  /// A `BEGIN` flag: the proxy frames every HTTP message on the stream, so the exit node may
+  /// keep the stream's web server connection for another stream if the stream ends cleanly.
+  public static final int BEGIN_FRAMED = 1;
+  /// A `BEGIN` flag: the proxy sends relay sendme cells for the stream and takes empty data
+  /// cells as a sign that the stream is still open, so the exit node may limit the stream to
+  /// its windows and send empty data cells while the web server is idle.
+  public static final int BEGIN_FLOW_CONTROL = 2;
+  /// An `END` flag: the stream ended between complete HTTP exchanges, with nothing left in
+  /// flight on the web server connection.
+  public static final int END_CLEAN = 1;
+
+  /// The bytes of the cell this `Cell` is viewing.
+  private byte[] bytes;
+
+  /** Creates a `Cell` that isn't viewing any cell yet; call `wrap` before using it. */
+  public Cell() {
+    this.bytes = null;
+  }
+
+  /** Creates a `Cell` viewing `bytes`.
+      @param bytes The 512 bytes of a cell. */
+  public Cell(byte[] bytes) {
+    wrap(bytes);
+  }
+
+  /** Points this `Cell` at another cell.
+      @param bytes The 512 bytes of a cell.
+      @return This `Cell`. */
+  public Cell wrap(byte[] bytes) {
+    if (bytes.length != SIZE) {
+      throw new IllegalArgumentException("cell length: " + bytes.length);
+    }
+    this.bytes = bytes;
+    return this;
+  }
+
+  /** Returns the bytes of the cell this `Cell` is viewing. */
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  /** Sets every byte of the cell to 0. */
+  public void clear() {
+    for (int i = 0; i < SIZE; i++) {
+      bytes[i] = 0;
+    }
+  }
+
+  public int circuitId() {
+    return readShort(0);
+  }
+
+  public void setCircuitId(int circuitId) {
+    writeShort(0, circuitId);
+  }
+
+  /** Returns the cell's `TorCommand`, or `null` if the command byte isn't one. */
+  public TorCommand command() {
+    return TorCommand.fromByte(bytes[2]);
+  }
+
+  /** Returns the raw command byte of the cell. */
+  public byte commandByte() {
+    return bytes[2];
+  }
+
+  public void setCommand(TorCommand command) {
+    bytes[2] = command.toByte();
+  }
+
+  /** Returns the agent id of the node that sent an open cell. */
+  public int openerAgentId() {
+    return readInt(3);
+  }
+
+  public void setOpenerAgentId(int agentId) {
+    writeInt(3, agentId);
+  }
+
+  /** Returns the agent id of the node an open cell is addressed to. */
+  public int openedAgentId() {
+    return readInt(7);
+  }
+
+  public void setOpenedAgentId(int agentId) {
+    writeInt(7, agentId);
+  }
+
+  public int streamId() {
+    return readShort(3);
+  }
+
+  public void setStreamId(int streamId) {
+    writeShort(3, streamId);
+  }
+
+  public int digest() {
+    return readInt(7);
+  }
+
+  public void setDigest(int digest) {
+    writeInt(7, digest);
+  }
+
+  public int bodyLength() {
+    return readShort(11);
+  }
+
+  public void setBodyLength(int bodyLength) {
+    writeShort(11, bodyLength);
+  }
+
+  /** Returns the cell's `RelayCommand`, or `null` if the relay command byte isn't one. */
+  public RelayCommand relayCommand() {
+    return RelayCommand.fromByte(bytes[13]);
+  }
+
+  /** Returns the raw relay command byte of the cell. */
+  public byte relayCommandByte() {
+    return bytes[13];
+  }
+
+  public void setRelayCommand(RelayCommand relayCommand) {
+    bytes[13] = relayCommand.toByte();
+  }
+
+  /** Returns `true` if and only if this is a relay cell with the given `RelayCommand`. */
+  public boolean isRelay(RelayCommand relayCommand) {
+    return bytes[2] == TorCommand.RELAY.toByte() && bytes[13] == relayCommand.toByte();
+  }
+
+  /** Fills in the header of a relay cell. The stream id's padding and the digest are zeroed.
+      @param circuitId The circuit id.
+      @param streamId The stream id.
+      @param relayCommand The `RelayCommand`.
+      @param bodyLength The number of body bytes. */
+  public void setRelayHeader(int circuitId, int streamId, RelayCommand relayCommand, int bodyLength) {
+    setCircuitId(circuitId);
+    bytes[2] = TorCommand.RELAY.toByte();
+    setStreamId(streamId);
+    bytes[5] = 0;
+    bytes[6] = 0;
+    setDigest(0);
+    setBodyLength(bodyLength);
+    bytes[13] = relayCommand.toByte();
+  }
+
+  /** Copies `length` bytes from `src` into the body and sets the body length.
+      @throws IllegalArgumentException If `length` is more than `MAX_BODY_LENGTH`. */
+  public void setBody(byte[] src, int offset, int length) {
+    if (length > MAX_BODY_LENGTH) {
+      throw new IllegalArgumentException("body length: " + length);
+    }
+    System.arraycopy(src, offset, bytes, BODY_OFFSET, length);
+    setBodyLength(length);
+  }
+
+  /** Returns the index in `bytes()` of the '\0' that ends the "host:port\0" address in the
+      body of a `BEGIN` or `EXTEND` cell, or -1 if the body has no well-formed address. */
+  public int addressEnd() {
+    int end = BODY_OFFSET + Math.min(bodyLength(), MAX_BODY_LENGTH);
+    int colonIndex = -1;
+    for (int i = BODY_OFFSET; i < end; i++) {
+      if (bytes[i] == ':') {
+        colonIndex = i;
+      } else if (bytes[i] == 0) {
+        return colonIndex > BODY_OFFSET && colonIndex < i - 1 ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the index in `bytes()` of the ':' that separates the host and port of the
+      address ending at `addressEnd`. */
+  private int addressColon(int addressEnd) {
+    int i = addressEnd - 1;
+    while (bytes[i] != ':') {
+      i--;
+    }
+    return i;
+  }
+
+  /** Returns the host of the address in the body of a `BEGIN` or `EXTEND` cell.
+      @param addressEnd The value returned by `addressEnd`, which must not be -1. */
+  public String addressHost(int addressEnd) {
+    int colonIndex = addressColon(addressEnd);
+    return new String(bytes, BODY_OFFSET, colonIndex - BODY_OFFSET, StandardCharsets.ISO_8859_1);
+  }
+
+  /** Returns the port of the address in the body of a `BEGIN` or `EXTEND` cell, or -1 if it
+      isn't a valid port number.
+      @param addressEnd The value returned by `addressEnd`, which must not be -1. */
+  public int addressPort(int addressEnd) {
+    int port = 0;
+    for (int i = addressColon(addressEnd) + 1; i < addressEnd; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      port = port * 10 + digit;
+      if (port > 0xFFFF) {
+        return -1;
+      }
+    }
+    return port;
+  }
+
+  /** Returns the agent id after the address in the body of an `EXTEND` cell.
+      @param addressEnd The value returned by `addressEnd`, which must not be -1. */
+  public int extendAgentId(int addressEnd) {
+    return readInt(addressEnd + 1);
+  }
+
+  /** Writes "host:port\0" into the body and sets the body length to match.
+      @throws IllegalArgumentException If the address doesn't fit in the body. */
+  public void setAddressBody(String host, int port) {
+    int i = writeAddress(host, port);
+    setBodyLength(i - BODY_OFFSET);
+  }
+
+  /** Returns the flags of a `BEGIN` cell, or 0 if it has none.
+      @param addressEnd The value returned by `addressEnd`, which must not be -1. */
+  public int beginFlags(int addressEnd) {
+    return addressEnd + 1 < BODY_OFFSET + bodyLength() ? bytes[addressEnd + 1] & 0xFF : 0;
+  }
+
+  /** Writes "host:port\0" followed by 1 byte of flags into the body of a `BEGIN` cell and
+      sets the body length to match.
+      @param flags E.g. `BEGIN_FRAMED`, or 0.
+      @throws IllegalArgumentException If the address doesn't fit in the body. */
+  public void setBeginBody(String host, int port, int flags) {
+    int i = writeAddress(host, port);
+    if (i + 1 > SIZE) {
+      throw new IllegalArgumentException("address too long: " + host);
+    }
+    bytes[i] = (byte) flags;
+    setBodyLength(i + 1 - BODY_OFFSET);
+  }
+
+  /** Returns the flags of an `END` cell, or 0 if it has none. */
+  public int endFlags() {
+    return bodyLength() > 0 ? bytes[BODY_OFFSET] & 0xFF : 0;
+  }
+
+  /** Writes 1 byte of flags into the body of an `END` cell and sets the body length to match.
+      @param flags E.g. `END_CLEAN`, or 0. */
+  public void setEndBody(int flags) {
+    bytes[BODY_OFFSET] = (byte) flags;
+    setBodyLength(1);
+  }
+
+  /** Writes "host:port\0" followed by a 4-byte agent id into the body of an `EXTEND` cell
+      and sets the body length to match.
+      @throws IllegalArgumentException If the address doesn't fit in the body. */
+  public void setExtendBody(String host, int port, int agentId) {
+    int i = writeAddress(host, port);
+    if (i + 4 > SIZE) {
+      throw new IllegalArgumentException("address too long: " + host);
+    }
+    writeInt(i, agentId);
+    setBodyLength(i + 4 - BODY_OFFSET);
+  }
+
+  /** Writes "host:port\0" at the start of the body.
+      @return The index just past the '\0'. */
+  private int writeAddress(String host, int port) {
+    int portDigits = port < 10 ? 1 : port < 100 ? 2 : port < 1000 ? 3 : port < 10000 ? 4 : 5;
+    int end = BODY_OFFSET + host.length() + 1 + portDigits + 1;
+    if (port < 0 || port > 0xFFFF || end > SIZE) {
+      throw new IllegalArgumentException("address: " + host + ":" + port);
+    }
+
+    int i = BODY_OFFSET;
+    for (int j = 0; j < host.length(); j++) {
+      bytes[i++] = (byte) host.charAt(j);
+    }
+    bytes[i++] = ':';
+    for (int j = i + portDigits - 1; j >= i; j--) {
+      bytes[j] = (byte) ('0' + port % 10);
+      port /= 10;
+    }
+    i += portDigits;
+    bytes[i++] = 0;
+    return i;
+  }
+
+  private int readShort(int offset) {
+    return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+  }
+
+  private void writeShort(int offset, int value) {
+    bytes[offset] = (byte) (value >> 8);
+    bytes[offset + 1] = (byte) value;
+  }
+
+  private int readInt(int offset) {
+    return ((bytes[offset] & 0xFF) << 24) |
+           ((bytes[offset + 1] & 0xFF) << 16) |
+           ((bytes[offset + 2] & 0xFF) << 8) |
+           (bytes[offset + 3] & 0xFF);
+  }
+
+  private void writeInt(int offset, int value) {
+    bytes[offset] = (byte) (value >> 24);
+    bytes[offset + 1] = (byte) (value >> 16);
+    bytes[offset + 2] = (byte) (value >> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+}
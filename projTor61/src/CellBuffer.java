@@ -0,0 +1,114 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A `CellBuffer` is a reference-counted 512-byte tor cell taken from a shared pool, so that
+    cells can travel from a `Socket` read through a hop rewrite to a `Socket` write without
+    being copied or reallocated.
+
+    A new `CellBuffer` has a reference count of 1, held by whoever called `allocate`. Passing
+    a `CellBuffer` to another owner (e.g. putting it on a write queue) passes that reference
+    along; each extra owner must call `retain`, and every owner must call `release` exactly
+    once when done. The last `release` returns the buffer to the pool, after which it must
+    not be touched. */
+public final class CellBuffer {
+  /// The number of bytes in a tor cell.
+  public static final int CELL_SIZE = 512;
+  /// The most `CellBuffer`s the pool holds on to. Extra released buffers are left to the GC.
+  private static final int POOL_SIZE = 4096;
+  /// How many pool slots `allocate` and `release` look at before giving up.
+  private static final int MAX_PROBES = 8;
+  /// The pool of free `CellBuffer`s. Empty slots are `null`.
+  private static final AtomicReferenceArray<CellBuffer> pool = new AtomicReferenceArray<>(POOL_SIZE);
+
+  /// The cell's bytes.
+  public final byte[] bytes;
+  /// A `ByteBuffer` over `bytes`, for channel reads and writes.
+  private final ByteBuffer byteBuffer;
+  /// The number of owners of this `CellBuffer`.
+  private final AtomicInteger refCount;
+
+  /** Sole constructor. */
+  private CellBuffer() {
+    this.bytes = new byte[CELL_SIZE];
+    this.byteBuffer = ByteBuffer.wrap(bytes);
+    this.refCount = new AtomicInteger();
+  }
+
+  /** Returns a `CellBuffer` from the pool, or a new one if the pool is empty. The contents
+      are left over from the buffer's last use, so the caller must overwrite all 512 bytes
+      or call `clear`.
+      @return A `CellBuffer` with a reference count of 1. */
+  public static CellBuffer allocate() {
+    int start = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+    for (int i = 0; i < MAX_PROBES; i++) {
+      int index = (start + i) & (POOL_SIZE - 1);
+      if (pool.get(index) != null) {
+        CellBuffer buffer = pool.getAndSet(index, null);
+        if (buffer != null) {
+          buffer.refCount.set(1);
+          return buffer;
+        }
+      }
+    }
+
+    CellBuffer buffer = new CellBuffer();
+    buffer.refCount.set(1);
+    return buffer;
+  }
+
+  /** Returns a `CellBuffer` holding a copy of a cell.
+      @param cell The 512-byte cell to copy.
+      @return A `CellBuffer` with a reference count of 1. */
+  public static CellBuffer copyOf(byte[] cell) {
+    CellBuffer buffer = allocate();
+    System.arraycopy(cell, 0, buffer.bytes, 0, CELL_SIZE);
+    return buffer;
+  }
+
+  /** Sets every byte of the cell to 0.
+      @return This `CellBuffer`. */
+  public CellBuffer clear() {
+    Arrays.fill(bytes, (byte) 0);
+    return this;
+  }
+
+  /** Returns a `ByteBuffer` over the whole cell, with its position reset to 0 and its limit
+      set to 512. The same `ByteBuffer` is returned every time. */
+  public ByteBuffer byteBuffer() {
+    byteBuffer.clear();
+    return byteBuffer;
+  }
+
+  /** Adds an owner to this `CellBuffer`.
+      @return This `CellBuffer`. */
+  public CellBuffer retain() {
+    if (refCount.getAndIncrement() <= 0) {
+      throw new IllegalStateException("retain of released cell buffer");
+    }
+    return this;
+  }
+
+  /** Removes an owner from this `CellBuffer`, returning it to the pool if it was the last. */
+  public void release() {
+    int remaining = refCount.decrementAndGet();
+    if (remaining > 0) {
+      return;
+    }
+    if (remaining < 0) {
+      throw new IllegalStateException("cell buffer released too many times");
+    }
+
+    int start = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+    for (int i = 0; i < MAX_PROBES; i++) {
+      int index = (start + i) & (POOL_SIZE - 1);
+      if (pool.get(index) == null && pool.compareAndSet(index, null, this)) {
+        return;
+      }
+    }
+  }
+}
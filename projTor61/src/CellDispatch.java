@@ -0,0 +1,165 @@
+package src;
+
+/** `CellDispatch` is a static class that decides what a `TorLinkHandler` should do with a
+    cell that belongs to a circuit, given the cell's command, its relay command and what the
+    `CircuitTable` has for the circuit. Every combination is worked out once, when the class
+    is loaded, into a flat table, so dispatching a cell costs a few array reads instead of a
+    chain of enum conversions and comparisons. */
+public final class CellDispatch {
+  /** The things a `TorLinkHandler` can do with a cell. */
+  public enum Action {
+    /// Release the cell.
+    DROP,
+    /// Accept a new circuit ending at this node and reply `CREATED`.
+    CREATE,
+    /// Reply `CREATE_FAILED`; the circuit already exists.
+    CREATE_FAILED,
+    /// Extend the circuit with a `RelayExtendThread`.
+    EXTEND,
+    /// Rewrite the circuit id and pass the cell to the next hop.
+    FORWARD,
+    /// Pass the cell to the next hop, then tear the circuit down.
+    FORWARD_DESTROY,
+    /// Tear down a circuit ending at this node.
+    DESTROY,
+    /// Open a stream to a web server.
+    BEGIN,
+    /// Write the body to a stream's web server.
+    DATA,
+    /// Close a stream.
+    END,
+    /// Let a stream or circuit send more data cells.
+    SENDME
+  }
+
+  /// The `CircuitTable` has no entry for the circuit.
+  public static final int NO_HOP = 0;
+  /// The circuit ends at this node (`CircuitTable.END`).
+  public static final int END_HOP = 1;
+  /// The next hop is this node's own proxy circuit (`Hop.local`).
+  public static final int LOCAL_HOP = 2;
+  /// The next hop is any other circuit.
+  public static final int REMOTE_HOP = 3;
+
+  /// The number of command indexes; index 0 stands for any byte that isn't a `TorCommand`.
+  private static final int COMMANDS = TorCommand.values().length + 1;
+  /// The number of relay command indexes; index 0 stands for any byte that isn't a
+  /// `RelayCommand`.
+  private static final int RELAY_COMMANDS = RelayCommand.values().length + 1;
+  /// Maps from an unsigned command byte to its index in `TABLE`.
+  private static final byte[] COMMAND_INDEX = new byte[256];
+  /// Maps from an unsigned relay command byte to its index in `TABLE`.
+  private static final byte[] RELAY_COMMAND_INDEX = new byte[256];
+  /// The `Action` for every (hop kind, command index, relay command index).
+  private static final Action[] TABLE = new Action[4 * COMMANDS * RELAY_COMMANDS];
+
+  static {
+    for (TorCommand command : TorCommand.values()) {
+      COMMAND_INDEX[command.toByte() & 0xFF] = (byte) (command.ordinal() + 1);
+    }
+    for (RelayCommand relayCommand : RelayCommand.values()) {
+      RELAY_COMMAND_INDEX[relayCommand.toByte() & 0xFF] = (byte) (relayCommand.ordinal() + 1);
+    }
+    for (int hopKind = NO_HOP; hopKind <= REMOTE_HOP; hopKind++) {
+      for (int i = 0; i < COMMANDS; i++) {
+        TorCommand command = i == 0 ? null : TorCommand.values()[i - 1];
+        for (int j = 0; j < RELAY_COMMANDS; j++) {
+          RelayCommand relayCommand = j == 0 ? null : RelayCommand.values()[j - 1];
+          TABLE[(hopKind * COMMANDS + i) * RELAY_COMMANDS + j] =
+              decide(hopKind, command, relayCommand);
+        }
+      }
+    }
+  }
+
+  private CellDispatch() {}
+
+  /** Returns the hop kind of a `CircuitTable` lookup result.
+      @param hop The `Hop` returned by `CircuitTable.get`, which may be `null`. */
+  public static int hopKind(Hop hop) {
+    if (hop == null) {
+      return NO_HOP;
+    } else if (hop == CircuitTable.END) {
+      return END_HOP;
+    } else {
+      return hop.local ? LOCAL_HOP : REMOTE_HOP;
+    }
+  }
+
+  /** Returns what to do with a cell.
+      @param command The command byte of the cell.
+      @param relayCommand The relay command byte of the cell (ignored unless it's a relay cell).
+      @param hopKind The `hopKind` of the circuit's entry in the `CircuitTable`. */
+  public static Action action(byte command, byte relayCommand, int hopKind) {
+    return TABLE[(hopKind * COMMANDS + COMMAND_INDEX[command & 0xFF]) * RELAY_COMMANDS +
+                 RELAY_COMMAND_INDEX[relayCommand & 0xFF]];
+  }
+
+  /** The rules `TABLE` is built from. */
+  private static Action decide(int hopKind, TorCommand command, RelayCommand relayCommand) {
+    if (command == null) {
+      return Action.DROP;
+    }
+    if (command != TorCommand.RELAY) {
+      relayCommand = null;
+    }
+
+    switch (hopKind) {
+      case NO_HOP:     // Without a circuit mapping, only a create cell or relay extend cell
+                       // can be handled.
+                       if (command == TorCommand.CREATE) {
+                         return Action.CREATE;
+                       }
+                       return relayCommand == RelayCommand.EXTEND ? Action.EXTEND : Action.DROP;
+      case REMOTE_HOP: return command == TorCommand.DESTROY ? Action.FORWARD_DESTROY : Action.FORWARD;
+      case LOCAL_HOP:  // Only forward to the browser when the command is relevant to it;
+                       // handle anything else as the end of the circuit. A destroy cell is
+                       // passed on so that the proxy can replace the circuit.
+                       if (command == TorCommand.DESTROY) {
+                         return Action.FORWARD_DESTROY;
+                       }
+                       if (isForProxy(command, relayCommand)) {
+                         return Action.FORWARD;
+                       }
+                       return endOfCircuitAction(command, relayCommand);
+      default:         return endOfCircuitAction(command, relayCommand);
+    }
+  }
+
+  /** Returns `true` if and only if the proxy at the start of a circuit handles the cell. */
+  private static boolean isForProxy(TorCommand command, RelayCommand relayCommand) {
+    switch (command) {
+      case OPENED:
+      case OPEN_FAILED:
+      case CREATED:
+      case CREATE_FAILED: return true;
+      case RELAY:         return relayCommand == RelayCommand.CONNECTED ||
+                              relayCommand == RelayCommand.BEGIN_FAILED ||
+                              relayCommand == RelayCommand.EXTENDED ||
+                              relayCommand == RelayCommand.EXTEND_FAILED ||
+                              relayCommand == RelayCommand.DATA ||
+                              relayCommand == RelayCommand.END;
+      default:            return false;
+    }
+  }
+
+  /** Returns what to do with a cell on a circuit that ends at this node. */
+  private static Action endOfCircuitAction(TorCommand command, RelayCommand relayCommand) {
+    switch (command) {
+      case CREATE:  return Action.CREATE_FAILED;
+      case DESTROY: return Action.DESTROY;
+      case RELAY:   if (relayCommand == null) {
+                      return Action.DROP;
+                    }
+                    switch (relayCommand) {
+                      case BEGIN:  return Action.BEGIN;
+                      case DATA:   return Action.DATA;
+                      case END:    return Action.END;
+                      case SENDME: return Action.SENDME;
+                      case EXTEND: return Action.EXTEND;
+                      default:     return Action.DROP;
+                    }
+      default:      return Action.DROP;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+package src;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A `CircuitQueue` is a tor `Socket`'s queue of cells to write. It keeps a FIFO queue per
+    circuit and takes cells from them in turn, so a circuit with a lot queued (a download)
+    doesn't hold up the cells of a quieter one (browsing) behind it. Cells of one circuit
+    stay in order.
+
+    With `Scheduler.EWMA` the next cell comes from the circuit that has sent the fewest cells
+    recently, as an exponentially weighted moving average with a half-life of
+    `TorConfig.circuitEwmaHalfLifeMs`; with `Scheduler.ROUND_ROBIN` circuits just take turns.
+    As in Tor, the averages aren't decayed cell by cell: each cell adds the queue's current
+    scale to its circuit's count instead, and the scale grows as time passes, once per tick.
+    Old cells then weigh less than new ones by the same factor that decaying would have
+    applied, so circuits compare the same, and the circuits with cells queued can be kept in a
+    heap by count. Counts are scaled back down when the scale gets large.
+
+    The bytes queued are bounded by `TorConfig.linkQueueBytes`, but only for producers that
+    can afford to wait: `put` and the timed `offer` wait for room, while `add` and `offer`
+    always queue the cell. Cells forwarded by a tor `Socket`'s reader use `add`, since a
+    reader waiting on another `Socket`'s queue could wait on itself through a loop of links;
+    the edges of the circuit, where data enters the tor network, wait instead.
+
+    So the bound doesn't hold at a relay: a queue fed by forwarded cells can grow past it.
+    What limits it there is flow control. A stream begun by a proxy that sends sendmes has at
+    most `FlowWindow.CIRCUIT_START` data cells per circuit in flight towards the proxy, so a
+    relay queues no more than that for each such circuit. Nothing limits data going towards
+    the exit node, nor data for proxies that don't send sendmes, at a relay. */
+public class CircuitQueue extends AbstractQueue<CellBuffer> implements BlockingQueue<CellBuffer> {
+  /** The ways a `CircuitQueue` can choose the circuit to take the next cell from. */
+  public enum Scheduler {
+    /// The circuit that has sent the fewest cells recently.
+    EWMA,
+    /// Each circuit with cells queued in turn.
+    ROUND_ROBIN
+  }
+
+  /** The cells queued for one circuit. */
+  private static class Circuit {
+    final int circuitId;
+    final ArrayDeque<CellBuffer> cells = new ArrayDeque<>();
+    /// The recent cell count, in units of the queue's scale (see `scale`).
+    double scaledCount;
+
+    Circuit(int circuitId) {
+      this.circuitId = circuitId;
+    }
+  }
+
+  /// The largest exponent of the scale before counts are scaled back down, so they stay
+  /// well within the range of a `double`.
+  private static final double MAX_SCALE_EXPONENT = 64;
+
+  private final Scheduler scheduler;
+  /// The most bytes `put` and the timed `offer` let be queued.
+  private final int maxBytes;
+  /// ln(2) over the EWMA half-life in ms.
+  private final double decayPerMs;
+  /// The number of ms the scale stays the same for.
+  private final long tickMs;
+  /// The tick the scale was last worked out for, and the tick at which it was 1. Guarded by
+  /// `lock`.
+  private long currentTick;
+  private long baseTick;
+  /// What a cell adds to its circuit's count during `currentTick`. Guarded by `lock`.
+  private double scale = 1;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  /// Every circuit with cells queued or a recent cell count worth keeping, by circuit id.
+  private final Map<Integer, Circuit> circuits = new HashMap<>();
+  /// The circuits with cells queued: in turn order for `Scheduler.ROUND_ROBIN`, and quietest
+  /// first for `Scheduler.EWMA`.
+  private final Queue<Circuit> active;
+  /// The number of cells queued. Only written with `lock` held.
+  private volatile int count;
+  /// The circuit the last cell was queued on, which the next one most likely shares.
+  private Circuit lastCircuit;
+  /// Set by `close`, after which cells are released instead of queued. Guarded by `lock`.
+  private boolean closed;
+
+  /** Creates a queue configured by `TorConfig`. */
+  public CircuitQueue() {
+    this(TorConfig.circuitScheduler, TorConfig.linkQueueBytes, TorConfig.circuitEwmaHalfLifeMs);
+  }
+
+  /** Creates an empty queue.
+      @param scheduler How to choose the circuit to take the next cell from.
+      @param maxBytes The most bytes that `put` and the timed `offer` let be queued.
+      @param ewmaHalfLifeMs The number of ms it takes a circuit's recent cell count to halve. */
+  public CircuitQueue(Scheduler scheduler, int maxBytes, int ewmaHalfLifeMs) {
+    this.scheduler = scheduler;
+    this.maxBytes = Math.max(maxBytes, CellBuffer.CELL_SIZE);
+    this.decayPerMs = Math.log(2) / Math.max(1, ewmaHalfLifeMs);
+    this.tickMs = Math.max(1, ewmaHalfLifeMs / 10);
+    this.currentTick = System.currentTimeMillis() / tickMs;
+    this.baseTick = currentTick;
+    this.active = scheduler == Scheduler.EWMA ?
+        new PriorityQueue<>((a, b) -> Double.compare(a.scaledCount, b.scaledCount)) :
+        new ArrayDeque<>();
+  }
+
+  /** Called after every cell is queued, outside the lock. Does nothing by default. */
+  protected void cellAdded() {}
+
+  /** Queues a cell on its circuit's queue, even if the queue is over its bound. */
+  @Override
+  public boolean offer(CellBuffer cell) {
+    lock.lock();
+    try {
+      if (closed) {
+        cell.release();
+        return true;
+      }
+      enqueue(cell);
+    } finally {
+      lock.unlock();
+    }
+    cellAdded();
+    return true;
+  }
+
+  /** Queues a cell on its circuit's queue, waiting until the queue is under its bound. */
+  @Override
+  public void put(CellBuffer cell) throws InterruptedException {
+    offer(cell, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /** Queues a cell on its circuit's queue, waiting up to `timeout` for the queue to be under
+      its bound.
+      @return `false` if the wait timed out and the cell wasn't queued. */
+  @Override
+  public boolean offer(CellBuffer cell, long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (!closed && count * CellBuffer.CELL_SIZE >= maxBytes) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      if (closed) {
+        cell.release();
+        return true;
+      }
+      enqueue(cell);
+    } finally {
+      lock.unlock();
+    }
+    cellAdded();
+    return true;
+  }
+
+  /** Releases every queued cell, because the `Socket` they were for is done with. Cells
+      queued from now on are released straight away, as if written, and producers waiting for
+      room stop waiting. */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      while (count > 0) {
+        dequeue().release();
+      }
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public CellBuffer poll() {
+    lock.lock();
+    try {
+      return count == 0 ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public CellBuffer take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+      return dequeueAndSignal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public CellBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeueAndSignal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the cell `poll` would take next, without taking it. */
+  @Override
+  public CellBuffer peek() {
+    lock.lock();
+    try {
+      Circuit next = next();
+      return next == null ? null : next.cells.peekFirst();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super CellBuffer> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super CellBuffer> c, int maxElements) {
+    lock.lock();
+    try {
+      int drained = 0;
+      while (drained < maxElements && count > 0) {
+        c.add(dequeue());
+        drained++;
+      }
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  /** Returns the number of cells `put` could queue without waiting. */
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return Math.max(0, maxBytes / CellBuffer.CELL_SIZE - count);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns an iterator over a snapshot of the queued cells, circuit by circuit. */
+  @Override
+  public Iterator<CellBuffer> iterator() {
+    lock.lock();
+    try {
+      List<CellBuffer> snapshot = new ArrayList<>(count);
+      for (Circuit circuit : active) {
+        snapshot.addAll(circuit.cells);
+      }
+      return Collections.unmodifiableList(snapshot).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @requires `lock` is held. */
+  private void enqueue(CellBuffer cell) {
+    int circuitId = ((cell.bytes[0] & 0xFF) << 8) | (cell.bytes[1] & 0xFF);
+    Circuit circuit = lastCircuit;
+    if (circuit == null || circuit.circuitId != circuitId) {
+      circuit = circuits.get(circuitId);
+      if (circuit == null) {
+        circuit = new Circuit(circuitId);
+        circuits.put(circuitId, circuit);
+      }
+      lastCircuit = circuit;
+    }
+    if (circuit.cells.isEmpty()) {
+      active.add(circuit);
+    }
+    circuit.cells.addLast(cell);
+    // Only a consumer of an empty queue waits.
+    if (count++ == 0) {
+      notEmpty.signal();
+    }
+  }
+
+  /** Dequeues a cell for a consumer that waited, passing the wakeup on to another waiting
+      consumer if cells are left, since `enqueue` only signals an empty queue.
+      @requires `lock` is held and `count > 0`. */
+  private CellBuffer dequeueAndSignal() {
+    CellBuffer cell = dequeue();
+    if (count > 0) {
+      notEmpty.signal();
+    }
+    return cell;
+  }
+
+  /** @requires `lock` is held and `count > 0`. */
+  private CellBuffer dequeue() {
+    Circuit circuit = active.poll();
+    CellBuffer cell = circuit.cells.pollFirst();
+    count--;
+
+    double scale = 0;
+    if (scheduler == Scheduler.EWMA) {
+      scale = scale(System.currentTimeMillis());
+      circuit.scaledCount += scale;
+    }
+    if (!circuit.cells.isEmpty()) {
+      // Back in the heap by its new count, or to the back of the line.
+      active.add(circuit);
+    } else if (scheduler != Scheduler.EWMA || circuit.scaledCount < scale) {
+      forget(circuit);
+    } else if (circuits.size() > 2 * active.size() + 64) {
+      forgetQuietCircuits(scale);
+    }
+    if (count * CellBuffer.CELL_SIZE < maxBytes) {
+      notFull.signal();
+    }
+    return cell;
+  }
+
+  /** Removes the circuits with nothing queued whose recent cell count has decayed below one
+      cell, so circuits that have closed are eventually forgotten.
+      @param scale The current scale.
+      @requires `lock` is held. */
+  private void forgetQuietCircuits(double scale) {
+    circuits.values().removeIf(circuit -> circuit.cells.isEmpty() && circuit.scaledCount < scale);
+    if (lastCircuit != null && circuits.get(lastCircuit.circuitId) != lastCircuit) {
+      lastCircuit = null;
+    }
+  }
+
+  /** @requires `lock` is held. */
+  private void forget(Circuit circuit) {
+    circuits.remove(circuit.circuitId);
+    if (lastCircuit == circuit) {
+      lastCircuit = null;
+    }
+  }
+
+  /** Returns the circuit to take the next cell from, or `null` if nothing is queued.
+      @requires `lock` is held. */
+  private Circuit next() {
+    return active.peek();
+  }
+
+  /** Returns what a cell queued at `now` adds to its circuit's count: e^(decayPerMs * t),
+      where t is the time from `baseTick` to the start of the current tick. Worked out once
+      per tick. Once it would pass e^`MAX_SCALE_EXPONENT`, every count is scaled down to a base
+      of the current tick instead. Scaling every count by the same factor keeps their order,
+      so `active` stays a valid heap.
+      @requires `lock` is held. */
+  private double scale(long now) {
+    long tick = now / tickMs;
+    if (tick != currentTick) {
+      currentTick = tick;
+      double exponent = decayPerMs * (tick - baseTick) * tickMs;
+      if (exponent > MAX_SCALE_EXPONENT) {
+        // May round the counts of long quiet circuits down to 0, which is what they decay to.
+        double factor = Math.exp(-exponent);
+        for (Circuit circuit : circuits.values()) {
+          circuit.scaledCount *= factor;
+        }
+        baseTick = tick;
+        exponent = 0;
+      }
+      scale = Math.exp(exponent);
+    }
+    return scale;
+  }
+}
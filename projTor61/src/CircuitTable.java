@@ -0,0 +1,224 @@
+package src;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A `CircuitTable` maps a circuit on a link to the next `Hop` of that circuit, and is used to
+    direct traffic across the tor network. A circuit is identified by the link id of the
+    `Socket` it arrived on and its circuit id on that `Socket`, packed into one `long` key.
+
+    The table uses open addressing with linear probing over an array of immutable entries.
+    Lookups never lock or allocate, so they can run on every cell from any number of threads;
+    puts and removes are serialized on the table and publish each slot atomically. When the
+    table grows, readers still holding the old array see a consistent snapshot of it. */
+public class CircuitTable {
+  /// The value mapped to circuits that end at this tor node.
+  public static final Hop END = new Hop(null, -1, -1);
+
+  /** An `Entry` is one immutable key-value pair in the table. */
+  private static final class Entry {
+    /// The packed link id and circuit id.
+    final long key;
+    /// The next `Hop`, or `END`.
+    final Hop hop;
+
+    /** Sole constructor. */
+    Entry(long key, Hop hop) {
+      this.key = key;
+      this.hop = hop;
+    }
+  }
+
+  /// Marks a slot whose entry was removed, so probing continues past it.
+  private static final Entry TOMBSTONE = new Entry(-1L, null);
+  /// The number of slots in a new table. Must be a power of 2.
+  private static final int INITIAL_CAPACITY = 64;
+
+  /// The slots of the table. Replaced (never resized in place) when the table grows.
+  private volatile AtomicReferenceArray<Entry> slots;
+  /// The number of live entries. Guarded by `this`.
+  private int size;
+  /// The number of slots that are not `null` (live entries and tombstones). Guarded by `this`.
+  private int used;
+
+  /** Creates an empty `CircuitTable`. */
+  public CircuitTable() {
+    this.slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  }
+
+  /** Packs a link id and circuit id into a key. */
+  private static long key(int linkId, int circuitId) {
+    return ((long) linkId << 32) | (circuitId & 0xFFFFFFFFL);
+  }
+
+  /** Returns the slot to start probing at for a key in a table with `capacity` slots. */
+  private static int indexFor(long key, int capacity) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & (capacity - 1);
+  }
+
+  /** Returns the next `Hop` of a circuit.
+      @param linkId The link id of the `Socket` the circuit arrived on.
+      @param circuitId The circuit id on that `Socket`.
+      @return The next `Hop`, `END` if the circuit ends at this tor node, or `null` if the
+              circuit is unknown. */
+  public Hop get(int linkId, int circuitId) {
+    long key = key(linkId, circuitId);
+    AtomicReferenceArray<Entry> table = slots;
+    int mask = table.length() - 1;
+    for (int i = indexFor(key, table.length()), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+      Entry e = table.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != TOMBSTONE && e.key == key) {
+        return e.hop;
+      }
+    }
+    return null;
+  }
+
+  /** Returns `true` if and only if the circuit has a mapping. */
+  public boolean containsKey(int linkId, int circuitId) {
+    return get(linkId, circuitId) != null;
+  }
+
+  /** Maps a circuit to its next `Hop`, replacing any existing mapping.
+      @param linkId The link id of the `Socket` the circuit arrived on.
+      @param circuitId The circuit id on that `Socket`.
+      @param next The next `Hop`, or `END` if the circuit ends at this tor node. */
+  public synchronized void put(int linkId, int circuitId, Hop next) {
+    if (next == null) {
+      throw new IllegalArgumentException("next hop must not be null; use END");
+    }
+    if ((used + 1) * 2 > slots.length()) {
+      rehash();
+    }
+
+    long key = key(linkId, circuitId);
+    AtomicReferenceArray<Entry> table = slots;
+    int mask = table.length() - 1;
+    int firstTombstone = -1;
+    int i = indexFor(key, table.length());
+    while (true) {
+      Entry e = table.get(i);
+      if (e == null) {
+        break;
+      }
+      if (e == TOMBSTONE) {
+        if (firstTombstone == -1) {
+          firstTombstone = i;
+        }
+      } else if (e.key == key) {
+        table.set(i, new Entry(key, next));
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+
+    if (firstTombstone != -1) {
+      table.set(firstTombstone, new Entry(key, next));
+    } else {
+      table.set(i, new Entry(key, next));
+      used++;
+    }
+    size++;
+  }
+
+  /** Maps a circuit to a new `Hop` only if it's currently mapped to `expected`, as one atomic
+      step with respect to other puts and removes.
+      @param linkId The link id of the `Socket` the circuit arrived on.
+      @param circuitId The circuit id on that `Socket`.
+      @param expected The `Hop` the circuit must be mapped to, compared by identity.
+      @param next The new next `Hop`.
+      @return `true` if and only if the mapping was replaced. */
+  public synchronized boolean replace(int linkId, int circuitId, Hop expected, Hop next) {
+    if (get(linkId, circuitId) != expected) {
+      return false;
+    }
+    put(linkId, circuitId, next);
+    return true;
+  }
+
+  /** Removes a circuit's mapping.
+      @param linkId The link id of the `Socket` the circuit arrived on.
+      @param circuitId The circuit id on that `Socket`.
+      @return The `Hop` the circuit was mapped to, or `null` if it had no mapping. */
+  public synchronized Hop remove(int linkId, int circuitId) {
+    long key = key(linkId, circuitId);
+    AtomicReferenceArray<Entry> table = slots;
+    int mask = table.length() - 1;
+    for (int i = indexFor(key, table.length()); ; i = (i + 1) & mask) {
+      Entry e = table.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != TOMBSTONE && e.key == key) {
+        table.set(i, TOMBSTONE);
+        size--;
+        return e.hop;
+      }
+    }
+  }
+
+  /** Returns the circuit ids of the circuits with a mapping on a link.
+      @param linkId The link id of the `Socket` the circuits arrived on. */
+  public synchronized int[] circuitIds(int linkId) {
+    int[] circuitIds = new int[size];
+    int count = 0;
+    AtomicReferenceArray<Entry> table = slots;
+    for (int i = 0; i < table.length(); i++) {
+      Entry e = table.get(i);
+      if (e != null && e != TOMBSTONE && (int) (e.key >>> 32) == linkId) {
+        circuitIds[count++] = (int) e.key;
+      }
+    }
+    return Arrays.copyOf(circuitIds, count);
+  }
+
+  /** Returns the link ids of the links that have a circuit with a mapping. */
+  public synchronized Set<Integer> linkIds() {
+    Set<Integer> linkIds = new HashSet<>();
+    AtomicReferenceArray<Entry> table = slots;
+    for (int i = 0; i < table.length(); i++) {
+      Entry e = table.get(i);
+      if (e != null && e != TOMBSTONE) {
+        linkIds.add((int) (e.key >>> 32));
+      }
+    }
+    return linkIds;
+  }
+
+  /** Returns the number of circuits with a mapping. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Copies the live entries into a new array, dropping tombstones and doubling the capacity
+      if the table is more than a quarter full. Must be called while holding `this`. */
+  private void rehash() {
+    AtomicReferenceArray<Entry> old = slots;
+    int capacity = old.length();
+    if (size * 4 >= capacity) {
+      capacity *= 2;
+    }
+
+    AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(capacity);
+    int mask = capacity - 1;
+    for (int j = 0; j < old.length(); j++) {
+      Entry e = old.get(j);
+      if (e == null || e == TOMBSTONE) {
+        continue;
+      }
+      int i = indexFor(e.key, capacity);
+      while (table.get(i) != null) {
+        i = (i + 1) & mask;
+      }
+      table.set(i, e);
+    }
+    used = size;
+    slots = table;
+  }
+}
@@ -0,0 +1,201 @@
+package src;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A `DnsCache` resolves the host names that streams and circuits are extended to. Lookups
+    run on the cache's own threads, so a slow name server holds up only the streams waiting on
+    that name, and concurrent lookups of one name share a single resolution. Results are kept
+    for a fixed time (failures for a shorter one), up to a bounded number of names, least
+    recently used first out. Java doesn't expose record TTLs, so the times are configured. */
+public class DnsCache {
+  /** Looks up the address of a host name, blocking until it's known. */
+  interface Resolver {
+    InetAddress resolve(String host) throws UnknownHostException;
+  }
+
+  /// The most lookups run at once. Further lookups wait for one of these to finish.
+  private static final int RESOLVE_THREADS = 8;
+
+  /// The most names kept.
+  private final int maxEntries;
+  /// The number of ms an address is kept after it's resolved.
+  private final long ttlMs;
+  /// The number of ms a failed lookup is kept, so that bad names aren't retried on every stream.
+  private final long negativeTtlMs;
+  /// Lookups by lower case name, least recently used first. Guarded by itself.
+  private final LinkedHashMap<String, Entry> entries;
+  private final ExecutorService resolveExecutor;
+  private final Resolver resolver;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder negativeHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  /// Lookups that joined one already running for the same name.
+  private final LongAdder coalesced = new LongAdder();
+  /// The total ns spent resolving, successfully or not.
+  private final LongAdder resolveNanos = new LongAdder();
+
+  /** A lookup, running or done. */
+  private static class Entry {
+    final CompletableFuture<InetAddress> address = new CompletableFuture<>();
+    /// When the result stops being used, set once `address` is done.
+    volatile long expiresMillis = Long.MAX_VALUE;
+  }
+
+  /** Creates an empty cache.
+      @param maxEntries The most names to keep.
+      @param ttlMs The number of ms to keep an address after it's resolved.
+      @param negativeTtlMs The number of ms to keep a failed lookup. */
+  public DnsCache(int maxEntries, long ttlMs, long negativeTtlMs) {
+    this(maxEntries, ttlMs, negativeTtlMs, InetAddress::getByName);
+  }
+
+  /** Creates an empty cache that looks names up with `resolver`, e.g. one that a test holds
+      up. */
+  DnsCache(int maxEntries, long ttlMs, long negativeTtlMs, Resolver resolver) {
+    this.resolver = resolver;
+    this.maxEntries = maxEntries;
+    this.ttlMs = ttlMs;
+    this.negativeTtlMs = negativeTtlMs;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        // A running lookup may be evicted; those waiting on it still get its result.
+        return size() > DnsCache.this.maxEntries;
+      }
+    };
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(RESOLVE_THREADS, RESOLVE_THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+          Thread thread = new Thread(r, "DnsCache resolve");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    this.resolveExecutor = executor;
+  }
+
+  /** Looks up a host name, using a cached or running lookup of it if there is one. Returns
+      immediately.
+      @param host The host name or ip to look up.
+      @return The address, completed exceptionally with `UnknownHostException` if there is
+              none. Completed already when the result was cached. */
+  public CompletableFuture<InetAddress> resolve(String host) {
+    String name = host.toLowerCase();
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(name);
+      if (entry != null && entry.expiresMillis > System.currentTimeMillis()) {
+        if (!entry.address.isDone()) {
+          coalesced.increment();
+        } else if (entry.address.isCompletedExceptionally()) {
+          negativeHits.increment();
+        } else {
+          hits.increment();
+        }
+        return entry.address;
+      }
+      entry = new Entry();
+      entries.put(name, entry);
+    }
+
+    misses.increment();
+    final Entry lookup = entry;
+    resolveExecutor.execute(() -> {
+      long start = System.nanoTime();
+      InetAddress address = null;
+      try {
+        address = resolver.resolve(name);
+      } catch (UnknownHostException | RuntimeException e) {
+        // no op; cached as a failure below
+      }
+      resolveNanos.add(System.nanoTime() - start);
+      if (address != null) {
+        lookup.expiresMillis = System.currentTimeMillis() + ttlMs;
+        lookup.address.complete(address);
+      } else {
+        lookup.expiresMillis = System.currentTimeMillis() + negativeTtlMs;
+        lookup.address.completeExceptionally(new UnknownHostException(name));
+      }
+    });
+    return lookup.address;
+  }
+
+  /** Looks up a host name like `resolve`, waiting for the result.
+      @throws UnknownHostException If the name has no address. */
+  public InetAddress resolveNow(String host) throws UnknownHostException {
+    try {
+      return resolve(host).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      }
+      // Not expected; `resolve` only fails with `UnknownHostException`.
+      UnknownHostException unknown = new UnknownHostException(host);
+      unknown.initCause(e.getCause());
+      throw unknown;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException(host);
+    }
+  }
+
+  /** Returns the number of lookups answered with a cached address. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** Returns the number of lookups answered with a cached failure. */
+  public long negativeHits() {
+    return negativeHits.sum();
+  }
+
+  /** Returns the number of lookups that joined one already running for the same name. */
+  public long coalesced() {
+    return coalesced.sum();
+  }
+
+  /** Returns the number of lookups that needed a resolution. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** Returns the fraction of lookups that didn't need a resolution of their own, or 0 if
+      there were none. */
+  public double hitRate() {
+    long answered = hits() + negativeHits() + coalesced();
+    long total = answered + misses();
+    return total == 0 ? 0 : (double) answered / total;
+  }
+
+  /** Returns the mean number of ms a resolution took, or 0 if none were run. */
+  public double averageResolveMillis() {
+    long count = misses.sum();
+    return count == 0 ? 0 : resolveNanos.sum() / 1e6 / count;
+  }
+
+  /** Returns the number of names kept. */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d hits, %d negative hits, %d coalesced, %d misses (%.0f%% hit rate), " +
+        "%.1f ms average resolve, %d names",
+        hits(), negativeHits(), coalesced(), misses(), hitRate() * 100,
+        averageResolveMillis(), size());
+  }
+}
@@ -0,0 +1,58 @@
+package src;
+
+/** A `FlowWindow` is the number of relay data cells the exit node may still send on a circuit
+    or stream before the proxy at the other end asks for more with a relay sendme cell. The
+    proxy sends a stream sendme for every `STREAM_INCREMENT` data cells it passes on to the
+    browser, and a circuit sendme (stream id 0) for every `CIRCUIT_INCREMENT` data cells that
+    arrive on the circuit, so a slow browser holds up its own stream, and the cells queued for
+    it stay bounded, without holding up the rest of the circuit. */
+public class FlowWindow {
+  /// The window a circuit starts with.
+  public static final int CIRCUIT_START = 1000;
+  /// The cells a circuit sendme adds to the window.
+  public static final int CIRCUIT_INCREMENT = 100;
+  /// The window a stream starts with.
+  public static final int STREAM_START = 500;
+  /// The cells a stream sendme adds to the window.
+  public static final int STREAM_INCREMENT = 50;
+
+  /// The most the window can be; sendmes beyond it are ignored.
+  private final int start;
+  /// The number of cells that may still be sent. Guarded by `this`.
+  private int remaining;
+
+  /** Creates a full window.
+      @param start The window to start with, e.g. `CIRCUIT_START` or `STREAM_START`. */
+  public FlowWindow(int start) {
+    this.start = start;
+    this.remaining = start;
+  }
+
+  /** Takes one cell from the window, waiting up to `timeoutMs` for a sendme if it's empty.
+      @return `true` if and only if a cell was taken. */
+  public synchronized boolean take(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    long wait = timeoutMs;
+    while (remaining == 0 && wait > 0) {
+      wait(wait);
+      wait = deadline - System.currentTimeMillis();
+    }
+    if (remaining == 0) {
+      return false;
+    }
+    remaining--;
+    return true;
+  }
+
+  /** Adds cells to the window because a sendme arrived, waking any sender waiting for them.
+      @param increment `CIRCUIT_INCREMENT` or `STREAM_INCREMENT`. */
+  public synchronized void increase(int increment) {
+    remaining = Math.min(start, remaining + increment);
+    notifyAll();
+  }
+
+  /** Returns the number of cells that may still be sent. */
+  public synchronized int remaining() {
+    return remaining;
+  }
+}
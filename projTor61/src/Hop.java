@@ -0,0 +1,38 @@
+package src;
+
+import java.net.Socket;
+
+/** A `Hop` represents one step in a tor circuit, which can transmit data between two tor
+    nodes. Each `Hop` consists of a `Socket`, the link id the `SocketManager` gave that
+    `Socket`, and a `int` representing a circuit id. */
+public class Hop {
+  /// The `Socket` associated with this `Hop`.
+  public final Socket s;
+  /// The link id of `s`.
+  public final int linkId;
+  /// The circuit id associated with this `Hop`.
+  public final int circuitId;
+  /// `true` if and only if this `Hop` leads back to this node's own proxy circuit (circuit
+  /// 1 on a `Socket` to this node's agent id), which only wants responses and data.
+  public final boolean local;
+
+  /** Creates a `Hop` that doesn't lead to this node's own proxy circuit.
+      @param s The `Socket` associated with this `Hop`.
+      @param linkId The link id of `s`.
+      @param circuitId The circuit id associated with this `Hop`. */
+  public Hop(Socket s, int linkId, int circuitId) {
+    this(s, linkId, circuitId, false);
+  }
+
+  /** Creates a `Hop`.
+      @param s The `Socket` associated with this `Hop`.
+      @param linkId The link id of `s`.
+      @param circuitId The circuit id associated with this `Hop`.
+      @param local `true` if this `Hop` leads to this node's own proxy circuit. */
+  public Hop(Socket s, int linkId, int circuitId, boolean local) {
+    this.s = s;
+    this.linkId = linkId;
+    this.circuitId = circuitId;
+    this.local = local;
+  }
+}
@@ -0,0 +1,116 @@
+package src;
+
+/** An `IdAllocator` hands out the ids in a range that aren't in use, and takes them back once
+    they're done with. Ids in use are kept in a bitmap, one bit per id, and each allocation
+    carries on from the last id handed out, so an id that was just released isn't handed out
+    again until the rest of the range has been tried. Cells still in flight for an ended
+    stream or circuit then find nothing, rather than its successor. */
+public class IdAllocator {
+  /// The lowest id in the range.
+  private final int first;
+  /// The difference between consecutive ids in the range.
+  private final int step;
+  /// The number of ids in the range.
+  private final int count;
+  /// Bit `i` is set if and only if id `first + i * step` is in use. Guarded by `this`.
+  private final long[] inUse;
+  /// The index of the id to start looking for a free one at. Guarded by `this`.
+  private int next;
+  /// The number of ids in use. Guarded by `this`.
+  private int live;
+  /// The number of times `allocate` found no free id. Guarded by `this`.
+  private long exhaustions;
+
+  /** Creates an allocator with every id free.
+      @param first The lowest id to hand out.
+      @param last The highest id to hand out.
+      @requires `first` <= `last` */
+  public IdAllocator(int first, int last) {
+    this(first, last, 1);
+  }
+
+  /** Creates an allocator with every id free, for a range with only every `step`th id in it,
+      e.g. only odd ids.
+      @param first The lowest id to hand out.
+      @param last The highest id that may be handed out.
+      @param step The difference between consecutive ids.
+      @requires `first` <= `last`, `step` > 0 */
+  public IdAllocator(int first, int last, int step) {
+    this.first = first;
+    this.step = step;
+    this.count = (last - first) / step + 1;
+    this.inUse = new long[(count + 63) / 64];
+  }
+
+  /** Marks a free id as in use.
+      @return The id, or -1 if every id in the range is in use. */
+  public synchronized int allocate() {
+    if (live == count) {
+      exhaustions++;
+      return -1;
+    }
+    int index = nextFree(next);
+    if (index == -1) {
+      index = nextFree(0);
+    }
+    inUse[index >>> 6] |= 1L << index;
+    live++;
+    next = index + 1 == count ? 0 : index + 1;
+    return first + index * step;
+  }
+
+  /** Marks an id as free.
+      @return `true` if and only if the id was in use. */
+  public synchronized boolean release(int id) {
+    int index = indexOf(id);
+    if (index == -1 || (inUse[index >>> 6] & (1L << index)) == 0) {
+      return false;
+    }
+    inUse[index >>> 6] &= ~(1L << index);
+    live--;
+    return true;
+  }
+
+  /** Returns `true` if and only if `id` is in use. */
+  public synchronized boolean isInUse(int id) {
+    int index = indexOf(id);
+    return index != -1 && (inUse[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /** Returns the number of ids in use. */
+  public synchronized int liveIds() {
+    return live;
+  }
+
+  /** Returns the number of times an id was asked for while every id was in use. */
+  public synchronized long exhaustions() {
+    return exhaustions;
+  }
+
+  /** Returns the index of `id` in the range, or -1 if it isn't in the range. */
+  private int indexOf(int id) {
+    int offset = id - first;
+    if (offset < 0 || offset % step != 0 || offset / step >= count) {
+      return -1;
+    }
+    return offset / step;
+  }
+
+  /** Returns the index of the first free id at or after index `from`, or -1 if there is none. */
+  private int nextFree(int from) {
+    int word = from >>> 6;
+    if (word >= inUse.length) {
+      return -1;
+    }
+    // Shifts only use the low 6 bits of `from`, i.e. its bit within the word.
+    long free = ~inUse[word] & (-1L << from);
+    while (free == 0) {
+      if (++word == inUse.length) {
+        return -1;
+      }
+      free = ~inUse[word];
+    }
+    int index = (word << 6) + Long.numberOfTrailingZeros(free);
+    return index < count ? index : -1;
+  }
+}
@@ -0,0 +1,269 @@
+package src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import proxy.CircuitPool;
+import proxy.ProxyCircuit;
+import regagent.Service;
+
+/** A `LocalCircuitBuilder` builds the circuits that route browser proxy traffic on this tor
+    node. Each build tries `parallelism` random paths through the registered tor nodes at
+    once, each over its own tor `Socket`, and keeps the first to finish; the others are
+    abandoned and their `Socket`s closed. Each path starts at a different gateway while
+    there are enough registered nodes, so a slow or dead node only costs the paths through
+    it, not the build. */
+public class LocalCircuitBuilder implements CircuitPool.CircuitBuilder {
+  /// The number of ms a circuit's hops have to answer each cell while it is built.
+  private static final int BUILD_TIMEOUT_MS = 10000;
+  /// The number of hops each circuit is extended by after the first.
+  private static final int EXTENDS = 3;
+
+  /// Returns the tor nodes a circuit may go through.
+  private final Supplier<List<Service>> candidates;
+  /// The number of paths each build tries at once.
+  private final int parallelism;
+  /// Picks the gateway of each build's first path.
+  private final Random random = new Random();
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "LocalCircuitBuilder attempt");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final AtomicLong built = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong buildNanos = new AtomicLong();
+  private volatile long lastBuildNanos;
+
+  /** Creates a builder.
+      @param candidates Returns the tor nodes a circuit may go through, e.g.
+                        `RegAgentThread::getAllServices`.
+      @param parallelism The number of paths each build tries at once. */
+  public LocalCircuitBuilder(Supplier<List<Service>> candidates, int parallelism) {
+    this.candidates = candidates;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /** Builds a circuit, trying `parallelism` paths at once.
+      @return The tor `Socket` to the first hop of the first path built.
+      @throws IOException If every path failed. */
+  @Override
+  public Socket build() throws IOException {
+    System.out.println("creating tor circuit...");
+    long startNanos = System.nanoTime();
+    List<Service> services = candidates.get();
+    if (services.isEmpty()) {
+      failed.incrementAndGet();
+      throw new IOException("no tor nodes registered");
+    }
+
+    CompletionService<Socket> completed = new ExecutorCompletionService<>(executor);
+    List<Attempt> attempts = new ArrayList<>(parallelism);
+    // Consecutive gateways from a random start, which only repeat once every candidate has
+    // been used.
+    int firstGateway = random.nextInt(services.size());
+    for (int i = 0; i < parallelism; i++) {
+      Service gateway = services.get((firstGateway + i) % services.size());
+      Attempt attempt = new Attempt(services, gateway);
+      attempts.add(attempt);
+      completed.submit(attempt);
+    }
+
+    Socket gatewaySocket = null;
+    IOException failure = new IOException("tor circuit not built");
+    try {
+      for (int i = 0; i < parallelism && gatewaySocket == null; i++) {
+        try {
+          gatewaySocket = completed.take().get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            failure = (IOException) e.getCause();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = new IOException("interrupted");
+    } finally {
+      for (Attempt attempt : attempts) {
+        if (attempt.gatewaySocket != gatewaySocket) {
+          attempt.abandon();
+        }
+      }
+    }
+
+    if (gatewaySocket == null) {
+      failed.incrementAndGet();
+      throw failure;
+    }
+    lastBuildNanos = System.nanoTime() - startNanos;
+    buildNanos.addAndGet(lastBuildNanos);
+    built.incrementAndGet();
+    return gatewaySocket;
+  }
+
+  /** Returns the number of ms the last circuit took to build. */
+  public double lastBuildMillis() {
+    return lastBuildNanos / 1e6;
+  }
+
+  /** Returns the average number of ms a circuit has taken to build. */
+  public double averageBuildMillis() {
+    long count = built.get();
+    return count == 0 ? 0 : buildNanos.get() / 1e6 / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d built, %d failed, %.1f ms average, %.1f ms last",
+        built.get(), failed.get(), averageBuildMillis(), lastBuildMillis());
+  }
+
+  /** Reads one whole cell from `in`.
+      @throws IOException If the link closed before the cell arrived. */
+  private static Cell readCell(InputStream in) throws IOException {
+    byte[] bytes = new byte[Cell.SIZE];
+    int totalRead = 0;
+    while (totalRead < Cell.SIZE) {
+      int currentRead = in.read(bytes, totalRead, Cell.SIZE - totalRead);
+      if (currentRead == -1) {
+        throw new IOException("tor link closed");
+      }
+      totalRead += currentRead;
+    }
+    return new Cell(bytes);
+  }
+
+  /** One try at building a circuit over a new tor `Socket`: opens the link to its gateway,
+      creates the circuit and extends it `EXTENDS` times through random candidates, trying
+      another candidate whenever an extend is refused with EXTEND_FAILED. */
+  private static class Attempt implements Callable<Socket> {
+    private final List<Service> candidates;
+    /// The tor node the circuit's first hop is at.
+    private final Service gateway;
+    private final Random r = new Random();
+    /// The tor `Socket` the circuit is built over, once it's open.
+    private volatile Socket gatewaySocket;
+    private volatile boolean abandoned;
+
+    Attempt(List<Service> candidates, Service gateway) {
+      this.candidates = new ArrayList<>(candidates);
+      this.gateway = gateway;
+    }
+
+    /** Stops the attempt, closing its tor `Socket` whether or not the circuit was built. */
+    void abandon() {
+      abandoned = true;
+      close();
+    }
+
+    @Override
+    public Socket call() throws IOException {
+      try {
+        open();
+        extend();
+        if (abandoned) {
+          throw new IOException("abandoned");
+        }
+        return gatewaySocket;
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /** Opens the link to the gateway and creates the circuit on it. */
+    private void open() throws IOException {
+      gatewaySocket = new Socket(gateway.ip, gateway.iport);
+      if (abandoned) {
+        // Abandoned before there was a tor `Socket` for `abandon` to close.
+        throw new IOException("abandoned");
+      }
+      // A hop that never answers fails the attempt instead of holding up the build.
+      gatewaySocket.setSoTimeout(BUILD_TIMEOUT_MS);
+      // The proxy writes whole cells, and sendme cells must not wait behind one another or
+      // the exit node stalls on its window.
+      gatewaySocket.setTcpNoDelay(true);
+
+      // Write open.
+      Cell openCell = new Cell(new byte[Cell.SIZE]);
+      openCell.setCommand(TorCommand.OPEN);
+      openCell.setOpenerAgentId(TorMain.agentId);
+      openCell.setOpenedAgentId(gateway.data);
+      gatewaySocket.getOutputStream().write(openCell.bytes());
+
+      // Read opened.
+      if (readCell(gatewaySocket.getInputStream()).command() != TorCommand.OPENED) {
+        // TODO: also check opener and opened ID in openResponse.
+        throw new IOException("tor link not opened");
+      }
+
+      // Write create.
+      Cell createCell = new Cell(new byte[Cell.SIZE]);
+      createCell.setCircuitId(ProxyCircuit.ID);
+      createCell.setCommand(TorCommand.CREATE);
+      gatewaySocket.getOutputStream().write(createCell.bytes());
+
+      // Read created.
+      if (readCell(gatewaySocket.getInputStream()).command() != TorCommand.CREATED) {
+        // TODO: also check circuit id in created.
+        throw new IOException("tor circuit not created");
+      }
+    }
+
+    /** Extends the circuit `EXTENDS` times, or as many as the candidates allow. */
+    private void extend() throws IOException {
+      int extendSuccesses = 0;
+      while (extendSuccesses < EXTENDS && !candidates.isEmpty() && !abandoned) {
+        Service extendServiceCandidate = candidates.get(r.nextInt(candidates.size()));
+        if (extendSuccesses == 1 && candidates.contains(gateway)) {
+          extendServiceCandidate = gateway;
+        }
+        // Send relay extend.
+        Cell extendCell = new Cell(new byte[Cell.SIZE]);
+        extendCell.setRelayHeader(ProxyCircuit.ID, 0, RelayCommand.EXTEND, 0);
+        extendCell.setExtendBody(extendServiceCandidate.ip.getHostAddress(),
+            extendServiceCandidate.iport, extendServiceCandidate.data);
+        gatewaySocket.getOutputStream().write(extendCell.bytes());
+
+        // Read relay extended. A timeout or any other failure to read it leaves the stream
+        // mid-cell, or with this extend's answer still to come, so it fails the attempt
+        // (`call` closes the `Socket`); only a clean EXTEND_FAILED moves on to another
+        // candidate.
+        Cell reply = readCell(gatewaySocket.getInputStream());
+        if (reply.isRelay(RelayCommand.EXTENDED)) {
+          System.out.println("  Extended tor circuit to node " + extendServiceCandidate.data +
+              " at " + extendServiceCandidate.ip.getHostAddress() +
+              ":" + extendServiceCandidate.iport);
+          extendSuccesses++;
+        } else if (reply.isRelay(RelayCommand.EXTEND_FAILED)) {
+          candidates.remove(extendServiceCandidate);
+        } else {
+          throw new IOException("unexpected reply to relay extend");
+        }
+      }
+    }
+
+    private void close() {
+      Socket socket = gatewaySocket;
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // no op
+        }
+      }
+    }
+  }
+}
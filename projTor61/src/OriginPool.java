@@ -0,0 +1,253 @@
+package src;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** An `OriginPool` makes the connections that streams leaving the tor network at this node
+    have to web servers ("origins"). Connections are made on the pool's own threads, so a
+    slow server never holds up the thread that reads a tor link, and connections whose
+    streams have ended cleanly are kept for a while to be reused by later streams to the same
+    host and port. Host names are looked up through a `DnsCache`. Counts hits, misses and
+    connect latency. */
+public class OriginPool {
+  /** Receives the result of `connect`. */
+  public interface ConnectListener {
+    /** Called on one of the pool's threads once a connection is ready or has failed.
+        @param socket The connection, or `null` if it could not be made. */
+    public void onConnect(Socket socket);
+  }
+
+  /// The number of ms to wait for a server to accept a connection.
+  public static final int CONNECT_TIMEOUT_MS = 10000;
+  /// The most connections made at once. Further connects wait for one of these to finish.
+  private static final int CONNECT_THREADS = 64;
+  /// The number of ms between removals of connections that have been idle too long.
+  private static final int EVICT_INTERVAL_MS = 1000;
+
+  /// The most idle connections kept for each host and port.
+  private final int maxIdlePerOrigin;
+  /// The number of ms a connection may stay idle before it's closed.
+  private final long idleTimeoutMs;
+  /// Idle connections by "host:port", most recently used last. Guarded by itself.
+  private final Map<String, ArrayDeque<IdleConnection>> idle = new HashMap<>();
+  private final ThreadPoolExecutor connectExecutor;
+  /// Looks up the host names of new connections.
+  private final DnsCache dnsCache;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  /// The number of new connections tried, and the total ns spent on them.
+  private final LongAdder connects = new LongAdder();
+  private final LongAdder connectNanos = new LongAdder();
+
+  /** A connection waiting to be reused. */
+  private static class IdleConnection {
+    final Socket socket;
+    final long idleSinceMillis;
+
+    IdleConnection(Socket socket, long idleSinceMillis) {
+      this.socket = socket;
+      this.idleSinceMillis = idleSinceMillis;
+    }
+  }
+
+  /** Creates a pool and starts its eviction of idle connections.
+      @param maxIdlePerOrigin The most idle connections to keep for each host and port, or 0
+                              to never reuse connections.
+      @param idleTimeoutMs The number of ms a connection may stay idle before it's closed.
+      @param dnsCache Looks up the host names of new connections. */
+  public OriginPool(int maxIdlePerOrigin, long idleTimeoutMs, DnsCache dnsCache) {
+    this.maxIdlePerOrigin = maxIdlePerOrigin;
+    this.dnsCache = dnsCache;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.connectExecutor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+          Thread thread = new Thread(r, "OriginPool connect");
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.connectExecutor.allowCoreThreadTimeOut(true);
+
+    ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "OriginPool evict");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictor.scheduleWithFixedDelay(this::evictIdle, EVICT_INTERVAL_MS, EVICT_INTERVAL_MS,
+                                   TimeUnit.MILLISECONDS);
+  }
+
+  /** Gets a connection to a server, reusing an idle one if there is one, and passes it to
+      `listener` on one of the pool's threads. Returns immediately.
+      @param host The host name or ip of the server.
+      @param port The port of the server. */
+  public void connect(String host, int port, ConnectListener listener) {
+    connectExecutor.execute(() -> {
+      Socket socket = takeIdle(host + ":" + port);
+      if (socket != null) {
+        hits.increment();
+        listener.onConnect(socket);
+        return;
+      }
+
+      misses.increment();
+      // A lookup that isn't cached finishes on one of `dnsCache`'s threads, which mustn't be
+      // held up connecting.
+      dnsCache.resolve(host).whenCompleteAsync((address, error) -> {
+        if (address == null) {
+          failures.increment();
+          listener.onConnect(null);
+          return;
+        }
+        listener.onConnect(connectTo(address, port));
+      }, connectExecutor);
+    });
+  }
+
+  /** Makes a new connection, or returns `null` if it could not be made. */
+  private Socket connectTo(InetAddress address, int port) {
+    long start = System.nanoTime();
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+    } catch (IOException | IllegalArgumentException e) {
+      failures.increment();
+      closeQuietly(socket);
+      socket = null;
+    }
+    connects.increment();
+    connectNanos.add(System.nanoTime() - start);
+    return socket;
+  }
+
+  /** Gives back a connection whose stream has ended with nothing left to read on it, to be
+      reused by a later stream to the same server. Closes it instead if enough are kept.
+      @param host The host name or ip the connection was made to, as passed to `connect`.
+      @param port The port the connection was made to. */
+  public void release(String host, int port, Socket socket) {
+    if (maxIdlePerOrigin > 0 && !socket.isClosed()) {
+      synchronized (idle) {
+        ArrayDeque<IdleConnection> connections =
+            idle.computeIfAbsent(host + ":" + port, key -> new ArrayDeque<>());
+        if (connections.size() < maxIdlePerOrigin) {
+          connections.addLast(new IdleConnection(socket, System.currentTimeMillis()));
+          return;
+        }
+      }
+    }
+    closeQuietly(socket);
+  }
+
+  /** Returns the number of connects served by an idle connection. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** Returns the number of connects that needed a new connection. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** Returns the number of new connections that could not be made, including those to host
+      names with no address. */
+  public long failures() {
+    return failures.sum();
+  }
+
+  /** Returns the mean number of ms taken to make a new connection, not counting looking up
+      its host name, or 0 if none were made. */
+  public double averageConnectMillis() {
+    long count = connects.sum();
+    return count == 0 ? 0 : connectNanos.sum() / 1e6 / count;
+  }
+
+  /** Returns the number of idle connections kept. */
+  public int idleCount() {
+    synchronized (idle) {
+      int count = 0;
+      for (ArrayDeque<IdleConnection> connections : idle.values()) {
+        count += connections.size();
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d hits, %d misses, %d failed, %.1f ms average connect, %d idle",
+                         hits(), misses(), failures(), averageConnectMillis(), idleCount());
+  }
+
+  /** Removes and returns the most recently used idle connection to "host:port" that the
+      server hasn't closed, or returns `null` if there isn't one. */
+  private Socket takeIdle(String key) {
+    while (true) {
+      IdleConnection connection;
+      synchronized (idle) {
+        ArrayDeque<IdleConnection> connections = idle.get(key);
+        connection = connections == null ? null : connections.pollLast();
+      }
+      if (connection == null) {
+        return null;
+      }
+      if (isStillOpen(connection.socket)) {
+        return connection.socket;
+      }
+      closeQuietly(connection.socket);
+    }
+  }
+
+  /** Returns `true` if and only if nothing has arrived on an idle connection, not even the
+      end of the stream. Waits up to 1 ms. */
+  private static boolean isStillOpen(Socket socket) {
+    try {
+      socket.setSoTimeout(1);
+      socket.getInputStream().read();
+      // Either closed, or bytes that no stream asked for.
+      return false;
+    } catch (SocketTimeoutException e) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void evictIdle() {
+    long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+    synchronized (idle) {
+      Iterator<ArrayDeque<IdleConnection>> origins = idle.values().iterator();
+      while (origins.hasNext()) {
+        ArrayDeque<IdleConnection> connections = origins.next();
+        // Least recently used first.
+        while (!connections.isEmpty() && connections.peekFirst().idleSinceMillis < cutoff) {
+          closeQuietly(connections.pollFirst().socket);
+        }
+        if (connections.isEmpty()) {
+          origins.remove();
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // no op
+    }
+  }
+}
@@ -1,39 +1,37 @@
 package src;
 
-/** Represents the 8 types of commands used by Relay messages. */
+/** Represents the 9 types of commands used by Relay messages. `SENDME` asks the exit node for
+    more data cells on a stream, or on the whole circuit when its stream id is 0 (see
+    `FlowWindow`). */
 public enum RelayCommand {
-  BEGIN, DATA, END, CONNECTED, EXTEND, EXTENDED, BEGIN_FAILED, EXTEND_FAILED;
+  BEGIN(1), DATA(2), END(3), CONNECTED(4), SENDME(5), EXTEND(6), EXTENDED(7), BEGIN_FAILED(0xb), EXTEND_FAILED(0xc);
+
+  /// Maps from an unsigned relay command byte to its `RelayCommand`, or `null` if there
+  /// isn't one.
+  private static final RelayCommand[] BY_BYTE = new RelayCommand[256];
+  static {
+    for (RelayCommand command : values()) {
+      BY_BYTE[command.value & 0xFF] = command;
+    }
+  }
+
+  /// The byte that represents this `RelayCommand` in a cell.
+  private final byte value;
+
+  RelayCommand(int value) {
+    this.value = (byte) value;
+  }
 
   /** Converts this `RelayCommand` to a byte.
   @return A `byte` corresponding to the `RelayCommand`. */
   public byte toByte() {
-    switch (this) {
-    case BEGIN:         return 1;
-    case DATA:          return 2;
-    case END:           return 3;
-    case CONNECTED:     return 4;
-    case EXTEND:        return 6;
-    case EXTENDED:      return 7;
-    case BEGIN_FAILED:  return 0xb;
-    case EXTEND_FAILED: return 0xc;
-    default:            throw new IllegalStateException("command: " + this);
-    }
+    return value;
   }
 
   /** Converts a byte to a `RelayCommand`.
       @return A `RelayCommand` associated with the byte, or `null` if there is
               no `RelayCommand` associated with it. */
   public static RelayCommand fromByte(byte b) {
-    switch (b) {
-    case 1:   return RelayCommand.BEGIN;
-    case 2:   return RelayCommand.DATA;
-    case 3:   return RelayCommand.END;
-    case 4:   return RelayCommand.CONNECTED;
-    case 6:   return RelayCommand.EXTEND;
-    case 7:   return RelayCommand.EXTENDED;
-    case 0xb: return RelayCommand.BEGIN_FAILED;
-    case 0xc: return RelayCommand.EXTEND_FAILED;
-    default: return null;
-    }
+    return BY_BYTE[b & 0xFF];
   }
 }
@@ -1,13 +1,18 @@
 package src;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** The `SocketManager` is a static class that is responsible for tracking all tor `Socket`s
     opened by the application, as well as relevant information about them such as a tor
@@ -15,148 +20,265 @@ import java.util.concurrent.BlockingQueue;
     and modified via this class's static functions. This class also includes functions for
     getting new circuit ids for a `Socket`.
 
+    Information is kept in concurrent maps and there is no lock shared between `Socket`s, so
+    writes and lookups on different `Socket`s never contend with each other. Changes to a
+    single `Socket`'s information that must be atomic synchronize on its `SocketInfo`.
+
     Any code that initializes or accepts a `Socket` should add it to the `SocketManager`,
     and remove it when the `Socket` is closed or no longer or in use. */
 public class SocketManager {
+  /// The highest circuit id, the most a cell's 2-byte circuit id field holds.
+  private static final int MAX_CIRCUIT_ID = 0xFFFF;
+
   /** A `SocketInfo` stores all of the `SocketManager`'s information about a `Socket`. */
   private static class SocketInfo {
-    /// The `TorSocketWriterThread` responsible for writing to this `Socket`.
-    TorSocketWriterThread t;
+    /// Cells to write to this `Socket`, FIFO per circuit (a `CircuitQueue`).
+    final BlockingQueue<CellBuffer> buf;
+    /// The `TorSocketWriterThread` responsible for writing to this `Socket`, or `null` if
+    /// a `TorEventLoop` writes to it.
+    final TorSocketWriterThread t;
     /// `true` if and only if this application created this `Socket` (instead of adding
     /// it via a call to a `ServerSocket.accept`).
-    boolean initiated;
+    final boolean initiated;
+    /// The id that identifies this `Socket` in `CircuitTable` keys. Never reused.
+    final int linkId;
+    /// The circuit ids this end has handed out for this `Socket` and not yet released.
+    /// Initiated `Socket`s use odd circuit ids and accepted `Socket`s use even ones, so both
+    /// ends never pick the same id.
+    final IdAllocator circuitIds;
     /// The FIFO queue used for mapping relay extend request-response exchange responses
     /// to the appropriate `RelayExtendThread`, or `null` if there are no pending relay
     /// extend requests on this `Socket`.
-    BlockingQueue<byte[]> buffer;
+    volatile BlockingQueue<CellBuffer> buffer;
     /// The agent id associated with this `Socket` or `-1` if the agent id has not been set.
-    int agentId;
+    volatile int agentId;
+    /// The time in ms since which this `Socket` has carried no circuits, or 0 if it carries
+    /// some. Only read and written by `closeIdleSockets`.
+    long idleSinceMillis;
 
     /** Sole constructor.
-        @param t The `TorSocketWriterThread` responsible for writing to this `Socket`.
-        @param initiated `true` if this application created this `Socket`. */
-    SocketInfo(TorSocketWriterThread t, boolean initiated) {
+        @param buf The FIFO queue of cells to write to this `Socket`.
+        @param t The `TorSocketWriterThread` that writes `buf`, or `null`.
+        @param initiated `true` if this application created this `Socket`.
+        @param linkId The link id of this `Socket`. */
+    SocketInfo(BlockingQueue<CellBuffer> buf, TorSocketWriterThread t, boolean initiated, int linkId) {
+      this.buf = buf;
       this.t = t;
       this.initiated = initiated;
+      this.linkId = linkId;
+      // Circuit id 1 is kept for proxy circuits, which the proxy creates itself.
+      this.circuitIds = initiated ? new IdAllocator(3, MAX_CIRCUIT_ID, 2)
+                                  : new IdAllocator(2, MAX_CIRCUIT_ID, 2);
       this.buffer = null;
       this.agentId = -1;
     }
   }
 
   /// Maps from a `Socket` to the `SocketManager`'s information about the `Socket`.
-  private static Map<Socket, SocketInfo> socketToInfo = new HashMap<>();
-  /// For getting circuit ids.
-  private static int nextOddCircuitId = 3;
-  /// For getting circuit ids.
-  private static int nextEvenCircuitId = 2;
+  private static final Map<Socket, SocketInfo> socketToInfo = new ConcurrentHashMap<>();
+  /// Maps from an agent id to the `Socket`s connected to that agent, oldest first. Two nodes
+  /// that open links to each other at once have two; each list is replaced, never changed.
+  private static final Map<Integer, List<Socket>> agentIdToSockets = new ConcurrentHashMap<>();
+  /// For getting link ids.
+  private static final AtomicInteger nextLinkId = new AtomicInteger(1);
 
-  // for debugging, temporary
+  /** Returns the number of `Socket`s the `SocketManager` is managing, e.g. to check that
+      closed links are removed. */
   public static int size() {
-    synchronized (socketToInfo) {
-      return socketToInfo.size();
-    }
+    return socketToInfo.size();
   }
 
-  public static BlockingQueue<byte[]> bufferForSocket(Socket socket) {
-    synchronized (socketToInfo) {
-      if (socketToInfo.containsKey(socket)) {
-        // Need this check in case 2 readers try to write to the same socket, then one removes
-        // it before the second writes.
-        return socketToInfo.get(socket).t.buf;
-      }
-      return null;
-    }
+  /** Returns the queue of cells to write to a `Socket`, or `null` if the `Socket` has been
+      removed. Cells put on the queue are released once they are written. Producers at the
+      edge of a circuit should use `put` or the timed `offer`, which wait while the queue is
+      over `TorConfig.linkQueueBytes`; see `CircuitQueue`.
+      @param socket The `Socket` to get the write queue of. */
+  public static BlockingQueue<CellBuffer> bufferForSocket(Socket socket) {
+    SocketInfo info = socketToInfo.get(socket);
+    // Need this check in case 2 readers try to write to the same socket, then one removes
+    // it before the second writes.
+    return info == null ? null : info.buf;
   }
 
   /** Calls `removeSocket` on all `Socket`s in the `SocketManager`. Should be called before
       shutting tor down. */
   public static void removeAllSockets() {
-    List<Socket> allSockets;
-    synchronized (socketToInfo) {
-      Object[] sockets = socketToInfo.keySet().toArray();
-      for (int i = 0; i < sockets.length; i++) {
-        removeSocket((Socket) sockets[i]);
-      }
+    for (Socket socket : socketToInfo.keySet()) {
+      removeSocket(socket);
+    }
+  }
+
+  /** Opens a `Socket` to another tor node. The `Socket` is created with a channel when
+      `TorConfig.ioMode` is `IoMode.NIO` so that it can be added to the `SocketManager`.
+      @param host The address of the tor node.
+      @param iport The port of the tor node.
+      @return The connected `Socket`.
+      @throws IOException If the `Socket` could not be connected. */
+  public static Socket openSocket(InetAddress host, int iport) throws IOException {
+    if (TorConfig.ioMode != TorConfig.IoMode.NIO) {
+      return new Socket(host, iport);
     }
+    return SocketChannel.open(new InetSocketAddress(host, iport)).socket();
+  }
+
+  /** Adds a `Socket` for the `SocketManager` to manage, running its tasks with
+      `TaskExecutor.platformThreads`. See `addSocket(Socket, boolean, TaskExecutor)`. */
+  public static void addSocket(Socket socket, boolean initiated) throws IOException {
+    addSocket(socket, initiated, TaskExecutor.platformThreads());
   }
 
-  /** Adds a `Socket` for the `SocketManager` to manage.
+  /** Adds a `Socket` for the `SocketManager` to manage, and starts reading and handling its
+      cells and writing the data given to `writeToSocket`.
       @param socket The `Socket` to add.
-      @param initiated `true` if this application breated this `Socket`.
-      @requires `socket` is not managed by the `SocketManager`. */
-  public static void addSocket(Socket socket, boolean initiated) {
-    synchronized (socketToInfo) {
-      if (socketToInfo.containsKey(socket)) {
-        throw new IllegalStateException("socket: " + socket);
+      @param initiated `true` if this application created this `Socket`.
+      @param tasks Runs the `Socket`'s reader in `IoMode.THREADS`, and the relay extends and
+                   streams its cells start.
+      @throws IOException If `socket` could not be serviced; it is closed in that case.
+      @requires `socket` is not managed by the `SocketManager`.
+      @requires `socket` was created with a channel if `TorConfig.ioMode` is `IoMode.NIO`. */
+  public static void addSocket(Socket socket, boolean initiated, TaskExecutor tasks)
+      throws IOException {
+    try {
+      socket.setTcpNoDelay(TorConfig.tcpNoDelay);
+    } catch (IOException e) {
+      // no op; keep the default
+    }
+    int linkId = nextLinkId.getAndIncrement();
+    TorLinkHandler handler = new TorLinkHandler(socket, linkId, initiated, tasks);
+
+    // The `SocketInfo` must be visible before the first cell is handled, so only start
+    // servicing the `Socket` once it has been added.
+    if (TorConfig.ioMode == TorConfig.IoMode.NIO) {
+      TorEventLoop.Link link;
+      try {
+        link = TorEventLoop.attach(socket, handler);
+      } catch (IOException e) {
+        try {
+          socket.close();
+        } catch (IOException e2) {
+          // no op
+        }
+        throw e;
       }
+      put(socket, new SocketInfo(link.writeQueue, null, initiated, linkId));
+      link.start();
+    } else {
       TorSocketWriterThread t = new TorSocketWriterThread(socket);
+      put(socket, new SocketInfo(t.buf, t, initiated, linkId));
       t.start();
-      socketToInfo.put(socket, new SocketInfo(t, initiated));
+      try {
+        tasks.execute(new TorSocketReaderThread(socket, handler));
+      } catch (RejectedExecutionException e) {
+        removeSocket(socket);
+        throw new IOException("no thread to read the socket", e);
+      }
+    }
+  }
+
+  /** Adds a `SocketInfo`, or throws `IllegalStateException` if `socket` already has one. */
+  private static void put(Socket socket, SocketInfo info) {
+    if (socketToInfo.putIfAbsent(socket, info) != null) {
+      throw new IllegalStateException("socket: " + socket);
     }
   }
 
   /** Removes a `Socket` from the `SocketManager`'s collection and closes the `Socket`
       if it's still open.
-      @param socket The `Socket` to close and remove.
-      @requires `socket` is managed by the `SocketManager`. */
+      @param socket The `Socket` to close and remove. */
   public static void removeSocket(Socket socket) {
-    synchronized (socketToInfo) {
-      try {
-        socketToInfo.get(socket).t.socket.close();
-      } catch (IOException e) {
-        // no op
-      }
-      synchronized(socketToInfo.get(socket).t) {
-        socketToInfo.get(socket).t.notify();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // no op
+    }
+    SocketInfo info = socketToInfo.remove(socket);
+    if (info == null) {
+      return;
+    }
+    if (info.agentId != -1) {
+      unindexAgentSocket(info.agentId, socket);
+    }
+    if (info.t != null) {
+      info.t.interrupt();
+    }
+  }
+
+  /** Closes the `Socket`s that have carried no circuits for `idleMs`. Must be called
+      periodically from one thread, which notes when each `Socket` became idle.
+      @param linkIdsInUse The link ids of the `Socket`s that carry circuits now.
+      @param idleMs The number of ms a `Socket` may carry no circuits before it's closed. */
+  public static void closeIdleSockets(Set<Integer> linkIdsInUse, long idleMs) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Socket, SocketInfo> entry : socketToInfo.entrySet()) {
+      SocketInfo info = entry.getValue();
+      if (linkIdsInUse.contains(info.linkId)) {
+        info.idleSinceMillis = 0;
+      } else if (info.idleSinceMillis == 0) {
+        info.idleSinceMillis = now;
+      } else if (now - info.idleSinceMillis >= idleMs) {
+        System.out.println("closing idle tor link " + info.linkId);
+        removeSocket(entry.getKey());
       }
-      socketToInfo.remove(socket);
     }
   }
 
-  /** Writes a `byte[]` of data to a `Socket` managed by the `SocketManager`.
+  /** Writes a cell to a `Socket` managed by the `SocketManager`. Takes over the caller's
+      reference to `cell`, which is released once it is written, or right away if the
+      `Socket` has already been removed.
       @param socket The `Socket` to write to.
-      @param data The `byte`s to write to the `Socket`.
-      @requires `socket` is managed by the `SocketManager`. */
-  public static void writeToSocket(Socket socket, byte[] data) {
-    synchronized (socketToInfo) {
-      if (socketToInfo.containsKey(socket)) {
-        // Need this check in case 2 readers try to write to the same socket, then one removes
-        // it before the second writes.
-        socketToInfo.get(socket).t.buf.add(data);
-      }
+      @param cell The cell to write to the `Socket`. */
+  public static void writeToSocket(Socket socket, CellBuffer cell) {
+    SocketInfo info = socketToInfo.get(socket);
+    if (info != null) {
+      // Need this check in case 2 readers try to write to the same socket, then one removes
+      // it before the second writes.
+      info.buf.add(cell);
+    } else {
+      cell.release();
     }
   }
 
+  /** Writes a copy of a 512-byte cell to a `Socket` managed by the `SocketManager`. Does
+      nothing if the `Socket` has already been removed.
+      @param socket The `Socket` to write to.
+      @param data The cell to write to the `Socket`. */
+  public static void writeToSocket(Socket socket, byte[] data) {
+    writeToSocket(socket, CellBuffer.copyOf(data));
+  }
+
   /** Returns `true` if and only if the `Socket` is known to the `SocketManager`
       and this application created the `Socket`.
       @param socket The `Socket` whose origin to check.
       @requires `socket` is managed by the `SocketManager`. */
   public static boolean socketWasInitiated(Socket socket) {
-    synchronized (socketToInfo) {
-      return socketToInfo.get(socket).initiated;
-    }
+    return socketToInfo.get(socket).initiated;
+  }
+
+  /** Returns the link id of a `Socket`, which identifies it in `CircuitTable` keys.
+      @param socket The `Socket` to get the link id of.
+      @requires `socket` is managed by the `SocketManager`. */
+  public static int linkIdForSocket(Socket socket) {
+    return socketToInfo.get(socket).linkId;
   }
 
-  /** Returns a circuit id that can be used for relay extend requests on the `Socket`.
+  /** Returns a circuit id that can be used for relay extend requests on the `Socket`, and
+      isn't used by any other circuit this end has created on it. The id stays in use until
+      `releaseCircuitIdForSocket` is called for it.
       @param socket The `Socket` to get a new circuit id for.
+      @return The circuit id, or -1 if every circuit id this end may use is in use.
       @requires `socket` is managed by the `SocketManager`. */
   public static int getNextCircuitIdForSocket(Socket socket) {
-    synchronized (socketToInfo) {
-      if (socketToInfo.get(socket).initiated) {
-        nextOddCircuitId += 2;
-        if (nextOddCircuitId == 30001) {
-          // make sure it doesn't overflow
-          nextOddCircuitId = 3;
-        }
-        return nextOddCircuitId;
-      } else {
-        nextEvenCircuitId += 2;
-        if (nextEvenCircuitId == 30000) {
-          // make sure it doesn't overflow
-          nextEvenCircuitId = 2;
-        }
-        return nextEvenCircuitId;
-      }
+    return socketToInfo.get(socket).circuitIds.allocate();
+  }
+
+  /** Makes a circuit id returned by `getNextCircuitIdForSocket` available again, once its
+      circuit is destroyed or was never created. Ids the other end picked are ignored.
+      @param socket The `Socket` the circuit id is on.
+      @param circuitId The circuit id to release. */
+  public static void releaseCircuitIdForSocket(Socket socket, int circuitId) {
+    SocketInfo info = socketToInfo.get(socket);
+    if (info != null) {
+      info.circuitIds.release(circuitId);
     }
   }
 
@@ -164,20 +286,19 @@ public class SocketManager {
       @param socket The `Socket` to set a relay extend buffer for.
       @param buffer The FIFO queue to use as a relay extend buffer.
       @requires `socket` is managed by the `SocketManager`. */
-  public static void setRelayExtendBufferForSocket(Socket socket, BlockingQueue<byte[]> buffer) {
-    synchronized (socketToInfo) {
-      socketToInfo.get(socket).buffer = buffer;
+  public static void setRelayExtendBufferForSocket(Socket socket, BlockingQueue<CellBuffer> buffer) {
+    SocketInfo info = socketToInfo.get(socket);
+    if (info != null) {
+      info.buffer = buffer;
     }
   }
 
-  /** Gets the buffer to write relay extens request-response exchanges responses to.
+  /** Gets the buffer to write relay extend request-response exchanges responses to.
       @param socket The `Socket` to get the relay extend buffer for.
       @return A FIFO queue to use as a relay extend buffer.
       @requires `socket` is managed by the `SocketManager`. */
-  public static BlockingQueue<byte[]> getRelayExtendBufferForSocket(Socket socket) {
-    synchronized (socketToInfo) {
-      return socketToInfo.get(socket).buffer;
-    }
+  public static BlockingQueue<CellBuffer> getRelayExtendBufferForSocket(Socket socket) {
+    return socketToInfo.get(socket).buffer;
   }
 
   /** Sets the agent id for a `Socket`.
@@ -186,40 +307,45 @@ public class SocketManager {
       @requires `socket` is managed by the `SocketManager`.
       @requires The agent id has not been previously set for `socket`. */
   public static void setAgentIdForSocket(Socket socket, int agentId) {
-    synchronized (socketToInfo) {
-      if (socketToInfo.get(socket).agentId != -1) {
+    SocketInfo info = socketToInfo.get(socket);
+    synchronized (info) {
+      if (info.agentId != -1) {
         throw new IllegalStateException("socket: " + socket + "id: " + agentId);
-      } else {
-        socketToInfo.get(socket).agentId = agentId;
       }
+      info.agentId = agentId;
+    }
+    agentIdToSockets.compute(agentId, (id, sockets) -> {
+      List<Socket> added = sockets == null ? new ArrayList<>() : new ArrayList<>(sockets);
+      added.add(socket);
+      return added;
+    });
+    if (!socketToInfo.containsKey(socket)) {
+      // Removed meanwhile, maybe before it was indexed.
+      unindexAgentSocket(agentId, socket);
     }
   }
 
   /** Returns the `Socket` associated with an agent id, or `null` if there is no agent id
-      associated with it.
+      associated with it. If there are several `Socket`s to the agent, the oldest is used.
       @param agentId The agent id to get the `Socket` for.
       @return The `Socket` associated with `agentId`, or `null` if no `Socket` is
               associated with it. */
   public static Socket socketForAgentId(int agentId) {
-    // Looping instead of keeping separate map because it dramatically simplifies the code
-    // and is more space-efficient. This is still technically constant time since we cap
-    // the number of open sockets at any time.
-    Set<Socket> keySet;
-    synchronized (socketToInfo) {
-      keySet = socketToInfo.keySet();
-    }
-    for (Socket s : keySet) {
-      if (socketToInfo.get(s).agentId == agentId) {
-        return s;
-      }
-    }
+    List<Socket> sockets = agentIdToSockets.get(agentId);
+    return sockets == null ? null : sockets.get(0);
+  }
 
-    return null;
+  /** Removes a `Socket` from the `Socket`s of an agent id. Any other `Socket` to the agent
+      stays indexed. */
+  private static void unindexAgentSocket(int agentId, Socket socket) {
+    agentIdToSockets.computeIfPresent(agentId, (id, sockets) -> {
+      List<Socket> remaining = new ArrayList<>(sockets);
+      remaining.remove(socket);
+      return remaining.isEmpty() ? null : remaining;
+    });
   }
 
   public static int agentIdForSocket(Socket socket) {
-    synchronized (socketToInfo) {
-      return socketToInfo.get(socket).agentId;
-    }
+    return socketToInfo.get(socket).agentId;
   }
 }
@@ -0,0 +1,140 @@
+package src;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A `TaskExecutor` runs the blocking per-connection work of a tor node: browser requests,
+    tunnels, tor `Socket` reads, relay extends and the web server side of streams. How each
+    task gets a thread is set by its `Mode`, and it keeps gauges of the tasks it runs. */
+public class TaskExecutor {
+  /** The ways a `TaskExecutor` can give its tasks threads. */
+  public enum Mode {
+    /// A new platform thread for each task.
+    THREADS,
+    /// A new virtual thread for each task, on runtimes that have them (Java 21 and later).
+    VIRTUAL,
+    /// A bounded pool of platform threads, reused once their tasks end. A task that finds
+    /// every thread busy is rejected rather than queued, since it could wait forever on the
+    /// tasks ahead of it: a browser request on its tunnel, or anything on a tor `Socket`'s
+    /// reader.
+    POOL
+  }
+
+  /// The number of seconds a pooled thread waits for another task before it ends.
+  private static final int POOL_KEEP_ALIVE_SECONDS = 60;
+
+  private static TaskExecutor platformThreads;
+
+  private final Mode mode;
+  private final Executor executor;
+
+  private final AtomicInteger live = new AtomicInteger();
+  private final AtomicInteger peak = new AtomicInteger();
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /** Creates an executor.
+      @param mode How to give tasks threads. `Mode.VIRTUAL` falls back to `Mode.THREADS` on
+                  runtimes without virtual threads.
+      @param poolThreads The most threads for `Mode.POOL`. */
+  public TaskExecutor(Mode mode, int poolThreads) {
+    Executor virtual = mode == Mode.VIRTUAL ? virtualThreadPerTask() : null;
+    if (mode == Mode.VIRTUAL && virtual == null) {
+      System.out.println("virtual threads need Java 21; using a thread per task");
+      mode = Mode.THREADS;
+    }
+    this.mode = mode;
+
+    switch (mode) {
+      case VIRTUAL: executor = virtual;
+                    break;
+      case POOL:    ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Math.max(1, poolThreads),
+                        POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>());
+                    executor = pool;
+                    break;
+      default:      executor = task -> new Thread(task).start();
+                    break;
+    }
+  }
+
+  /** Returns the executor for code that isn't given one, which gives each task a new platform
+      thread as tor nodes always have. */
+  public static synchronized TaskExecutor platformThreads() {
+    if (platformThreads == null) {
+      platformThreads = new TaskExecutor(Mode.THREADS, 0);
+    }
+    return platformThreads;
+  }
+
+  /** Runs `task` on a thread of its own.
+      @throws RejectedExecutionException If the task can't be given a thread, in which case
+                                         it never runs and the caller must clean up after it. */
+  public void execute(Runnable task) {
+    int count = live.incrementAndGet();
+    peak.accumulateAndGet(count, Math::max);
+    try {
+      executor.execute(() -> {
+        try {
+          task.run();
+        } finally {
+          live.decrementAndGet();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      live.decrementAndGet();
+      rejected.incrementAndGet();
+      throw e;
+    }
+    started.incrementAndGet();
+  }
+
+  /** Returns how this executor gives its tasks threads. */
+  public Mode mode() {
+    return mode;
+  }
+
+  /** Returns the number of tasks running now. */
+  public int liveTasks() {
+    return live.get();
+  }
+
+  /** Returns the most tasks that have run at once. */
+  public int peakTasks() {
+    return peak.get();
+  }
+
+  /** Returns the number of tasks that have been started. */
+  public long startedTasks() {
+    return started.get();
+  }
+
+  /** Returns the number of tasks that were rejected because they couldn't be given a thread. */
+  public long rejectedTasks() {
+    return rejected.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d live, %d peak, %d started, %d rejected (%s)", liveTasks(),
+        peakTasks(), startedTasks(), rejectedTasks(), mode.name().toLowerCase());
+  }
+
+  /** Returns an executor that starts a virtual thread for each task, or `null` if the runtime
+      has no virtual threads. Looked up by reflection so that the node still builds and runs
+      on Java 17. */
+  private static Executor virtualThreadPerTask() {
+    try {
+      Method factory = java.util.concurrent.Executors.class.getMethod(
+          "newVirtualThreadPerTaskExecutor");
+      return (Executor) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -2,38 +2,33 @@ package src;
 
 /** Represents the 8 types of tor commands. */
 public enum TorCommand {
-  OPEN, OPENED, OPEN_FAILED, CREATE, CREATED, CREATE_FAILED, DESTROY, RELAY;
+  OPEN(5), OPENED(6), OPEN_FAILED(7), CREATE(1), CREATED(2), CREATE_FAILED(8), DESTROY(4), RELAY(3);
+
+  /// Maps from an unsigned command byte to its `TorCommand`, or `null` if there isn't one.
+  private static final TorCommand[] BY_BYTE = new TorCommand[256];
+  static {
+    for (TorCommand command : values()) {
+      BY_BYTE[command.value & 0xFF] = command;
+    }
+  }
+
+  /// The byte that represents this `TorCommand` in a cell.
+  private final byte value;
+
+  TorCommand(int value) {
+    this.value = (byte) value;
+  }
 
   /** Converts this `TorCommand` to a byte.
       @return A `byte` corresponding to this `TorCommand`. */
   public byte toByte() {
-    switch (this) {
-    case CREATE:        return 1;
-    case CREATED:       return 2;
-    case RELAY:         return 3;
-    case DESTROY:       return 4;
-    case OPEN:          return 5;
-    case OPENED:        return 6;
-    case OPEN_FAILED:   return 7;
-    case CREATE_FAILED: return 8;
-    default:            throw new IllegalStateException("command: " + this);
-    }
+    return value;
   }
 
   /** Converts a byte to a `TorCommand`.
       @return A `TorCommand` associated with the byte, or `null` if there is
               no `TorCommand` associated with it. */
   public static TorCommand fromByte(byte b) {
-    switch (b) {
-    case 1: return TorCommand.CREATE;
-    case 2: return TorCommand.CREATED;
-    case 3: return TorCommand.RELAY;
-    case 4: return TorCommand.DESTROY;
-    case 5: return TorCommand.OPEN;
-    case 6: return TorCommand.OPENED;
-    case 7: return TorCommand.OPEN_FAILED;
-    case 8: return TorCommand.CREATE_FAILED;
-    default: return null;
-    }
+    return BY_BYTE[b & 0xFF];
   }
 }
@@ -0,0 +1,291 @@
+package src;
+
+import proxy.CircuitPool;
+import regagent.RegAgentThread;
+
+/** `TorConfig` is a static class that holds the startup options of a tor node. Options are
+    given on the command line after the required arguments, each in the form `--name=value`,
+    and must be parsed with `parse` before any tor `Socket`s are opened. */
+public class TorConfig {
+  /** The ways a tor node can service the reads and writes of its tor `Socket`s. */
+  public enum IoMode {
+    /// Each tor `Socket` gets its own `TorSocketReaderThread` and `TorSocketWriterThread`.
+    THREADS,
+    /// All tor `Socket`s are multiplexed over a small fixed pool of `TorEventLoop`s.
+    NIO
+  }
+
+  /// How tor `Socket`s are read and written (`--io=threads|nio`).
+  public static IoMode ioMode = IoMode.THREADS;
+  /// The number of `TorEventLoop`s to run in `IoMode.NIO` (`--io-threads=<n>`).
+  public static int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+  /// The most bytes of queued cells a tor `Socket` writer sends with one write
+  /// (`--write-batch=<bytes>`). Always at least one cell.
+  public static int writeBatchBytes = 64 * 1024;
+  /// How a tor `Socket`'s writer picks the circuit to send the next cell from
+  /// (`--circuit-scheduler=ewma|round-robin`).
+  public static CircuitQueue.Scheduler circuitScheduler = CircuitQueue.Scheduler.EWMA;
+  /// The number of ms it takes a circuit's recent cell count to halve for
+  /// `CircuitQueue.Scheduler.EWMA` (`--circuit-ewma-halflife-ms=<ms>`).
+  public static int circuitEwmaHalfLifeMs = 30000;
+  /// The most bytes of cells queued for a tor `Socket` before the edges of circuits wait to
+  /// add more (`--link-queue-bytes=<bytes>`).
+  public static int linkQueueBytes = 512 * 1024;
+  /// How the blocking per-connection tasks of the node get threads
+  /// (`--tasks=threads|virtual|pool`).
+  public static TaskExecutor.Mode taskMode = TaskExecutor.Mode.THREADS;
+  /// The most threads for `TaskExecutor.Mode.POOL`, beyond which new connections are turned
+  /// away (`--task-pool-threads=<n>`).
+  public static int taskPoolThreads = 4096;
+  /// Whether tor `Socket`s disable Nagle's algorithm (`--tcp-nodelay=true|false`).
+  public static boolean tcpNoDelay = false;
+  /// The number of ms the proxy lets a partly filled relay data cell wait for more of a
+  /// request before sending it, or 0 to never wait (`--cell-flush-ms=<ms>`).
+  public static int cellFlushMs = 10;
+  /// Whether the proxy keeps HTTP/1.1 connections alive, reusing one tor stream for requests
+  /// to the same server, instead of downgrading them to HTTP/1.0 (`--keep-alive=true|false`).
+  public static boolean keepAlive = false;
+  /// The number of ms a kept-alive browser connection may wait for its next request before
+  /// it and its tor stream are closed (`--keep-alive-idle-ms=<ms>`).
+  public static int keepAliveIdleMs = 15000;
+  /// The most idle web server connections an exit node keeps for each host and port, to be
+  /// reused by later streams, or 0 to close them (`--origin-pool-size=<n>`).
+  public static int originPoolSize = 4;
+  /// The number of circuits the proxy keeps built for its streams (`--proxy-circuits=<n>`).
+  public static int proxyCircuits = 3;
+  /// The number of circuits the proxy keeps built but unused, ready to replace one that fails
+  /// (`--spare-circuits=<n>`).
+  public static int spareCircuits = 1;
+  /// The number of paths the proxy tries at once when it builds a circuit
+  /// (`--circuit-build-parallelism=<n>`).
+  public static int circuitBuildParallelism = 3;
+  /// How the proxy picks the circuit for each new stream
+  /// (`--circuit-selection=least-loaded|isolate-destination`).
+  public static CircuitPool.Selection circuitSelection = CircuitPool.Selection.LEAST_LOADED;
+  /// The number of ms an exit node keeps an idle web server connection
+  /// (`--origin-idle-ms=<ms>`).
+  public static int originIdleMs = 30000;
+  /// The number of ms a tor link may carry no circuits before the node closes it, or 0 to
+  /// keep links open (`--link-idle-ms=<ms>`).
+  public static int linkIdleMs = 60000;
+  /// The most host names a node keeps looked up (`--dns-cache-size=<n>`).
+  public static int dnsCacheSize = 1024;
+  /// The number of ms a node keeps a host name's address (`--dns-ttl-ms=<ms>`).
+  public static int dnsTtlMs = 60000;
+  /// The number of ms a node remembers that a host name has no address
+  /// (`--dns-negative-ttl-ms=<ms>`).
+  public static int dnsNegativeTtlMs = 5000;
+  /// The host of the registration server (`--registry=<host>:<port>`), or `null` to keep
+  /// registrations in this process (`--registry=local`).
+  public static String registryHost = RegAgentThread.DEFAULT_SERVER_HOST;
+  /// The UDP port of the registration server (`--registry=<host>:<port>`).
+  public static int registryPort = RegAgentThread.DEFAULT_SERVER_PORT;
+  /// The UDP port to serve this process's registrations on so that other nodes on the host
+  /// can use them (`--registry-serve=<port>`, which implies `--registry=local`), or -1.
+  public static int registryServePort = -1;
+  /// The number of seconds registrations kept in this process last unless they're renewed
+  /// (`--registry-ttl=<seconds>`).
+  public static int registryTtlSeconds = 300;
+  /// The first local UDP port tried for talking to the registration server, or 0 for any
+  /// (`--registry-udp-port=<port>`).
+  public static int registryUdpPort = RegAgentThread.DEFAULT_UDP_PORT;
+
+  /** Parses the options in `args` starting at index `start`.
+      @param args The command line arguments.
+      @param start The index of the first option in `args`.
+      @return `true` if and only if every option was recognized and valid. */
+  public static boolean parse(String[] args, int start) {
+    for (int i = start; i < args.length; i++) {
+      String arg = args[i];
+      int separatorIndex = arg.indexOf('=');
+      if (!arg.startsWith("--") || separatorIndex == -1) {
+        return false;
+      }
+
+      String name = arg.substring(2, separatorIndex);
+      String value = arg.substring(separatorIndex + 1);
+      try {
+        switch (name) {
+          case "io":          ioMode = IoMode.valueOf(value.toUpperCase());
+                              break;
+          case "io-threads":  ioThreads = Integer.parseInt(value);
+                              if (ioThreads < 1) {
+                                return false;
+                              }
+                              break;
+          case "write-batch": writeBatchBytes = Integer.parseInt(value);
+                              if (writeBatchBytes < 1) {
+                                return false;
+                              }
+                              break;
+          case "tcp-nodelay": tcpNoDelay = parseBoolean(value);
+                              break;
+          case "tasks":       taskMode = TaskExecutor.Mode.valueOf(value.toUpperCase());
+                              break;
+          case "task-pool-threads":
+                              taskPoolThreads = Integer.parseInt(value);
+                              if (taskPoolThreads < 1) {
+                                return false;
+                              }
+                              break;
+          case "circuit-scheduler":
+                              circuitScheduler =
+                                  CircuitQueue.Scheduler.valueOf(value.toUpperCase().replace('-', '_'));
+                              break;
+          case "circuit-ewma-halflife-ms":
+                              circuitEwmaHalfLifeMs = Integer.parseInt(value);
+                              if (circuitEwmaHalfLifeMs < 1) {
+                                return false;
+                              }
+                              break;
+          case "link-queue-bytes":
+                              linkQueueBytes = Integer.parseInt(value);
+                              if (linkQueueBytes < CellBuffer.CELL_SIZE) {
+                                return false;
+                              }
+                              break;
+          case "keep-alive":  keepAlive = parseBoolean(value);
+                              break;
+          case "keep-alive-idle-ms":
+                              keepAliveIdleMs = Integer.parseInt(value);
+                              if (keepAliveIdleMs < 1) {
+                                return false;
+                              }
+                              break;
+          case "proxy-circuits":
+                              proxyCircuits = Integer.parseInt(value);
+                              if (proxyCircuits < 1) {
+                                return false;
+                              }
+                              break;
+          case "spare-circuits":
+                              spareCircuits = Integer.parseInt(value);
+                              if (spareCircuits < 0) {
+                                return false;
+                              }
+                              break;
+          case "circuit-build-parallelism":
+                              circuitBuildParallelism = Integer.parseInt(value);
+                              if (circuitBuildParallelism < 1) {
+                                return false;
+                              }
+                              break;
+          case "circuit-selection":
+                              circuitSelection =
+                                  CircuitPool.Selection.valueOf(value.toUpperCase().replace('-', '_'));
+                              break;
+          case "origin-pool-size":
+                              originPoolSize = Integer.parseInt(value);
+                              if (originPoolSize < 0) {
+                                return false;
+                              }
+                              break;
+          case "origin-idle-ms":
+                              originIdleMs = Integer.parseInt(value);
+                              if (originIdleMs < 1) {
+                                return false;
+                              }
+                              break;
+          case "link-idle-ms":
+                              linkIdleMs = Integer.parseInt(value);
+                              if (linkIdleMs < 0) {
+                                return false;
+                              }
+                              break;
+          case "dns-cache-size":
+                              dnsCacheSize = Integer.parseInt(value);
+                              if (dnsCacheSize < 1) {
+                                return false;
+                              }
+                              break;
+          case "dns-ttl-ms":  dnsTtlMs = Integer.parseInt(value);
+                              if (dnsTtlMs < 0) {
+                                return false;
+                              }
+                              break;
+          case "dns-negative-ttl-ms":
+                              dnsNegativeTtlMs = Integer.parseInt(value);
+                              if (dnsNegativeTtlMs < 0) {
+                                return false;
+                              }
+                              break;
+          case "cell-flush-ms":
+                              cellFlushMs = Integer.parseInt(value);
+                              if (cellFlushMs < 0) {
+                                return false;
+                              }
+                              break;
+          case "registry":    if (value.equals("local")) {
+                                registryHost = null;
+                                break;
+                              }
+                              int portSeparatorIndex = value.lastIndexOf(':');
+                              if (portSeparatorIndex < 1) {
+                                return false;
+                              }
+                              registryHost = value.substring(0, portSeparatorIndex);
+                              registryPort = Integer.parseInt(value.substring(portSeparatorIndex + 1));
+                              if (registryPort < 1 || registryPort > 0xFFFF) {
+                                return false;
+                              }
+                              break;
+          case "registry-serve":
+                              registryServePort = Integer.parseInt(value);
+                              registryHost = null;
+                              if (registryServePort < 0 || registryServePort > 0xFFFF) {
+                                return false;
+                              }
+                              break;
+          case "registry-ttl":
+                              registryTtlSeconds = Integer.parseInt(value);
+                              if (registryTtlSeconds < 1 || registryTtlSeconds > 0xFFFF) {
+                                return false;
+                              }
+                              break;
+          case "registry-udp-port":
+                              registryUdpPort = Integer.parseInt(value);
+                              if (registryUdpPort < 0 || registryUdpPort > 0xFFFE) {
+                                return false;
+                              }
+                              break;
+          default:            return false;
+        }
+      } catch (IllegalArgumentException e) {
+        // Also catches NumberFormatException.
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the most cells a tor `Socket` writer sends with one write. */
+  public static int writeBatchCells() {
+    return Math.max(1, writeBatchBytes / CellBuffer.CELL_SIZE);
+  }
+
+  /** Returns a description of the options accepted by `parse`, for usage messages. */
+  public static String usage() {
+    return "[--io=threads|nio] [--io-threads=<n>] [--write-batch=<bytes>] " +
+        "[--circuit-scheduler=ewma|round-robin] [--circuit-ewma-halflife-ms=<ms>] " +
+        "[--link-queue-bytes=<bytes>] [--tasks=threads|virtual|pool] " +
+        "[--task-pool-threads=<n>] " +
+        "[--tcp-nodelay=true|false] [--cell-flush-ms=<ms>] [--keep-alive=true|false] " +
+        "[--keep-alive-idle-ms=<ms>] [--proxy-circuits=<n>] [--spare-circuits=<n>] " +
+        "[--circuit-build-parallelism=<n>] " +
+        "[--circuit-selection=least-loaded|isolate-destination] [--origin-pool-size=<n>] " +
+        "[--origin-idle-ms=<ms>] [--link-idle-ms=<ms>] " +
+        "[--dns-cache-size=<n>] [--dns-ttl-ms=<ms>] [--dns-negative-ttl-ms=<ms>] " +
+        "[--registry=<host>:<port>|local] " +
+        "[--registry-serve=<port>] [--registry-ttl=<seconds>] [--registry-udp-port=<port>]";
+  }
+
+  /** Parses "true" or "false", throwing `IllegalArgumentException` for anything else. */
+  private static boolean parseBoolean(String value) {
+    if (value.equalsIgnoreCase("true")) {
+      return true;
+    } else if (value.equalsIgnoreCase("false")) {
+      return false;
+    }
+    throw new IllegalArgumentException(value);
+  }
+}
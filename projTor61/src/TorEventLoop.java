@@ -0,0 +1,299 @@
+package src;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A `TorEventLoop` services the reads and writes of many tor `Socket`s on a single thread
+    using a `Selector`. Used instead of a `TorSocketReaderThread` and `TorSocketWriterThread`
+    per `Socket` when `TorConfig.ioMode` is `IoMode.NIO`.
+
+    Cells are read straight into pooled `CellBuffer`s and passed to the `Socket`'s
+    `TorLinkHandler` as soon as they are complete. Cells to write are put on a per-`Socket`
+    `CircuitQueue`, which wakes the loop so it can drain the queue once the `Socket` is writable.
+    Queued cells are sent in batches of up to `TorConfig.writeBatchCells` with one gathering
+    write, and each cell is released once it has been written.
+
+    `TorEventLoop`s are started once with `startLoops`, and `Socket`s are spread across
+    them round-robin by `attach`. */
+public class TorEventLoop extends Thread {
+  /** A `Link` is a `TorEventLoop`'s state for one `Socket`. Created by `attach`; the loop
+      doesn't service the `Socket` until `start` is called. */
+  static class Link {
+    /// The channel of the registered `Socket`.
+    final SocketChannel channel;
+    /// Handles the cells read from `channel`.
+    final TorLinkHandler handler;
+    /// The cell currently being read from `channel`, or `null`.
+    CellBuffer reading;
+    /// The unread remainder of `reading`.
+    ByteBuffer readingBuffer;
+    /// Cells to write to `channel`, FIFO per circuit.
+    final CircuitQueue writeQueue;
+    /// The batch of cells being written to `channel`. Entries before `pendingOffset` or from
+    /// `pendingCount` on are `null`.
+    final CellBuffer[] pending;
+    /// `ByteBuffer`s over the cells in `pending`, holding what's left to write of each.
+    final ByteBuffer[] pendingBuffers;
+    /// The index of the first cell in `pending` that hasn't been fully written.
+    int pendingOffset;
+    /// The number of cells in the current batch.
+    int pendingCount;
+    /// `true` if this `Link` is waiting for the loop to start watching for writability.
+    final AtomicBoolean writeRequested;
+    /// The `TorEventLoop` that services this `Link`.
+    final TorEventLoop loop;
+    /// The key that registers `channel` with the loop's `Selector`.
+    SelectionKey key;
+
+    /** Sole constructor. */
+    Link(SocketChannel channel, TorLinkHandler handler, TorEventLoop loop) {
+      this.channel = channel;
+      this.handler = handler;
+      this.reading = null;
+      this.readingBuffer = null;
+      this.writeQueue = new WriteQueue(this, loop);
+      this.pending = new CellBuffer[TorConfig.writeBatchCells()];
+      this.pendingBuffers = new ByteBuffer[pending.length];
+      this.writeRequested = new AtomicBoolean(false);
+      this.loop = loop;
+    }
+
+    /** Starts reading from and writing to this `Link`'s `Socket`. */
+    void start() {
+      loop.pendingRegistrations.add(this);
+      loop.selector.wakeup();
+    }
+  }
+
+  /** A `WriteQueue` is a `Link`'s queue of cells to write. Adding a cell asks the
+      `TorEventLoop` to write it once the `Link`'s channel is writable, so producers can use
+      it like any other `BlockingQueue`. */
+  private static class WriteQueue extends CircuitQueue {
+    /// The `Link` this queue belongs to.
+    private final Link link;
+    /// The `TorEventLoop` that writes this queue's cells.
+    private final TorEventLoop loop;
+
+    /** Sole constructor. */
+    WriteQueue(Link link, TorEventLoop loop) {
+      this.link = link;
+      this.loop = loop;
+    }
+
+    @Override
+    protected void cellAdded() {
+      loop.requestWrite(link);
+    }
+  }
+
+  /// All running `TorEventLoop`s, or `null` if they have not been started.
+  private static TorEventLoop[] loops;
+  /// Used to spread `Socket`s across `loops`.
+  private static final AtomicInteger nextLoop = new AtomicInteger();
+
+  /// The `Selector` that watches all of this loop's channels.
+  private final Selector selector;
+  /// `Link`s waiting to be registered with `selector`.
+  private final Queue<Link> pendingRegistrations;
+  /// `Link`s with cells waiting to be written.
+  private final Queue<Link> pendingWrites;
+
+  /** Sole constructor.
+      @throws IOException If a `Selector` could not be opened. */
+  private TorEventLoop() throws IOException {
+    this.selector = Selector.open();
+    this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+    this.pendingWrites = new ConcurrentLinkedQueue<>();
+    setDaemon(true);
+  }
+
+  /** Starts the `TorEventLoop`s. Must be called once, before any call to `attach`.
+      @param count The number of `TorEventLoop`s (threads) to start.
+      @throws IOException If a `Selector` could not be opened. */
+  public static synchronized void startLoops(int count) throws IOException {
+    if (loops != null) {
+      throw new IllegalStateException("event loops already started");
+    }
+    TorEventLoop[] newLoops = new TorEventLoop[count];
+    for (int i = 0; i < count; i++) {
+      newLoops[i] = new TorEventLoop();
+      newLoops[i].setName("TorEventLoop-" + i);
+      newLoops[i].start();
+    }
+    loops = newLoops;
+  }
+
+  /** Assigns a `Socket` to one of the `TorEventLoop`s, which will pass every cell read
+      from it to `handler` and call `handler.close` when it closes. The `Socket` isn't read
+      or written until `start` is called on the returned `Link`, but cells can be added to
+      its `writeQueue` right away.
+      @param socket The `Socket` to service. It must have been created with a channel (see
+                    `SocketManager.openSocket`).
+      @param handler The `TorLinkHandler` for `socket`.
+      @return The `Link` for `socket`.
+      @throws IOException If `socket`'s channel could not be made non-blocking.
+      @requires `startLoops` has been called. */
+  static Link attach(Socket socket, TorLinkHandler handler) throws IOException {
+    SocketChannel channel = socket.getChannel();
+    if (channel == null) {
+      throw new IllegalArgumentException("socket has no channel: " + socket);
+    }
+    channel.configureBlocking(false);
+
+    TorEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    return new Link(channel, handler, loop);
+  }
+
+  /** Asks this loop to write a `Link`'s queued cells once its channel is writable. */
+  private void requestWrite(Link link) {
+    if (link.writeRequested.compareAndSet(false, true)) {
+      pendingWrites.add(link);
+      selector.wakeup();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        System.out.println("event loop failed: " + e);
+        return;
+      }
+
+      Link link;
+      while ((link = pendingRegistrations.poll()) != null) {
+        try {
+          // Also write any cells queued before the `Link` was started.
+          int ops = SelectionKey.OP_READ | (link.writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+          link.key = link.channel.register(selector, ops, link);
+        } catch (IOException e) {
+          // Also catches ClosedChannelException.
+          close(link);
+        }
+      }
+
+      while ((link = pendingWrites.poll()) != null) {
+        link.writeRequested.set(false);
+        // `Link`s that haven't been registered yet check their queue when they are.
+        if (link.key != null && link.key.isValid()) {
+          link.key.interestOps(link.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        link = (Link) key.attachment();
+        try {
+          if (key.isReadable() && !readCells(link)) {
+            close(link);
+            continue;
+          }
+          if (key.isValid() && key.isWritable()) {
+            writeCells(link);
+          }
+        } catch (IOException e) {
+          close(link);
+        } catch (RuntimeException e) {
+          // Don't let one bad link stop the loop for all of the others.
+          System.out.println("closing link after error: " + e);
+          close(link);
+        }
+      }
+    }
+  }
+
+  /** Reads as many cells as are available from a `Link` and handles them.
+      @return `false` if the `Link` should be closed. */
+  private boolean readCells(Link link) throws IOException {
+    while (true) {
+      if (link.reading == null) {
+        link.reading = CellBuffer.allocate();
+        link.readingBuffer = link.reading.byteBuffer();
+      }
+      int read = link.channel.read(link.readingBuffer);
+      if (read == -1) {
+        return false;
+      }
+      if (link.readingBuffer.hasRemaining()) {
+        // The rest of the cell hasn't arrived yet.
+        return true;
+      }
+      CellBuffer cell = link.reading;
+      link.reading = null;
+      link.readingBuffer = null;
+      if (!link.handler.handleCell(cell)) {
+        return false;
+      }
+    }
+  }
+
+  /** Writes as many queued cells as a `Link`'s channel will accept, and stops watching for
+      writability once the queue is empty. */
+  private void writeCells(Link link) throws IOException {
+    while (true) {
+      if (link.pendingOffset == link.pendingCount) {
+        // The last batch is done; take the next one.
+        link.pendingOffset = 0;
+        link.pendingCount = 0;
+        CellBuffer cell;
+        while (link.pendingCount < link.pending.length &&
+               (cell = link.writeQueue.poll()) != null) {
+          link.pending[link.pendingCount] = cell;
+          link.pendingBuffers[link.pendingCount] = cell.byteBuffer();
+          link.pendingCount++;
+        }
+        if (link.pendingCount == 0) {
+          link.key.interestOps(link.key.interestOps() & ~SelectionKey.OP_WRITE);
+          return;
+        }
+      }
+
+      link.channel.write(link.pendingBuffers, link.pendingOffset,
+                         link.pendingCount - link.pendingOffset);
+      while (link.pendingOffset < link.pendingCount &&
+             !link.pendingBuffers[link.pendingOffset].hasRemaining()) {
+        link.pending[link.pendingOffset].release();
+        link.pending[link.pendingOffset] = null;
+        link.pendingBuffers[link.pendingOffset] = null;
+        link.pendingOffset++;
+      }
+      if (link.pendingOffset < link.pendingCount) {
+        // The channel is full; wait until it's writable again.
+        return;
+      }
+    }
+  }
+
+  /** Stops servicing a `Link`, releases its buffered and queued cells, and lets its handler
+      release it. */
+  private void close(Link link) {
+    if (link.key != null) {
+      link.key.cancel();
+    }
+    if (link.reading != null) {
+      link.reading.release();
+      link.reading = null;
+    }
+    for (int i = link.pendingOffset; i < link.pendingCount; i++) {
+      link.pending[i].release();
+      link.pending[i] = null;
+    }
+    link.pendingOffset = 0;
+    link.pendingCount = 0;
+    link.writeQueue.close();
+    link.handler.close();
+  }
+}
@@ -0,0 +1,584 @@
+package src;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import proxy.RawDataRelayThread;
+
+/** A `TorLinkHandler` is responsible for handling or delegating all events on one tor `Socket`
+    (i.e. the 8 types of tor commands). It doesn't read from the `Socket` itself: whatever
+    services the `Socket`'s reads (a `TorSocketReaderThread` or a `TorEventLoop`) passes each
+    512-byte cell to `handleCell`, and calls `close` once the `Socket` is done. */
+public class TorLinkHandler {
+  /// A shared table that all `TorLinkHandler`s maintain and reference to direct traffic
+  /// across the tor network.
+  private static final CircuitTable hopTable = new CircuitTable();
+  /// Looks up the host names that streams and circuits are extended to.
+  private static final DnsCache dnsCache =
+      new DnsCache(TorConfig.dnsCacheSize, TorConfig.dnsTtlMs, TorConfig.dnsNegativeTtlMs);
+  /// Makes and keeps the web server connections for streams that leave the tor network here.
+  private static final OriginPool originPool =
+      new OriginPool(TorConfig.originPoolSize, TorConfig.originIdleMs, dnsCache);
+  /// The read timeout of web server connections, in ms. Bounds how long an ended stream's
+  /// connection takes to go back to `originPool`.
+  private static final int ORIGIN_READ_TIMEOUT_MS = 1000;
+  /// Connections to this port carry TLS sessions that belong to the client that set them up,
+  /// so they're never given to another stream.
+  private static final int TLS_PORT = 443;
+  /// The number of ms a relay extend waits for the next hop to answer each cell.
+  private static final int EXTEND_TIMEOUT_MS = 10000;
+  /// One lock per agent id that relay extends are being made to. A tor `Socket` has a single
+  /// relay extend buffer, so extends over the same next hop must take turns: one that finds
+  /// the buffer taken would get the other's responses, and tear down the link as failed.
+  /// An entry is removed once no extend holds or waits for its lock.
+  private static final Map<Integer, ExtendLock> extendLocks = new ConcurrentHashMap<>();
+
+  /// The `Socket` this handler handles events for.
+  private final Socket readSocket;
+  /// Runs the relay extends and streams that this `Socket`'s cells start.
+  private final TaskExecutor tasks;
+  /// The link id of `readSocket`.
+  private final int linkId;
+  /// A map from stream ids to `RawDataRelayThread`s reading data from a web server for that
+  /// stream. Each thread removes itself when its web server connection closes.
+  private Map<Integer, RawDataRelayThread> responseRelayForStream;
+  /// The windows of the circuits ending at this node that streams have begun on, by circuit id.
+  private final Map<Integer, FlowWindow> circuitWindows = new ConcurrentHashMap<>();
+  /// The stream ids of begin cells still waiting for `originPool` to connect.
+  private final Set<Integer> pendingBegins = ConcurrentHashMap.newKeySet();
+  /// `true` until the other end has sent a valid open cell. Only `Socket`s that this
+  /// application did not initiate need to wait for one.
+  private boolean awaitingOpen;
+  /// The view used to read and rewrite the cell being handled. Cells are handled one at a
+  /// time, so a single view is reused for all of them.
+  private final Cell cell;
+
+  /** Sole constructor.
+      @param readSocket The `Socket` to handle events for.
+      @param linkId The link id of `readSocket`.
+      @param initiated `true` if this application created `readSocket`.
+      @param tasks Runs the relay extends and streams that `readSocket`'s cells start. */
+  public TorLinkHandler(Socket readSocket, int linkId, boolean initiated, TaskExecutor tasks) {
+    this.readSocket = readSocket;
+    this.tasks = tasks;
+    this.linkId = linkId;
+    this.responseRelayForStream = new ConcurrentHashMap<>();
+    this.awaitingOpen = !initiated;
+    this.cell = new Cell();
+  }
+
+  /** Handles one cell read from the `Socket`. Takes over the caller's reference to
+      `cellBuffer`: the cell is rewritten in place and passed on when it is forwarded or
+      answered, and released otherwise.
+      @param cellBuffer The 512-byte cell that was read.
+      @return `false` if the `Socket` should be closed, `true` otherwise.
+      @throws IOException If handling the cell failed in a way that should close the `Socket`. */
+  public boolean handleCell(CellBuffer cellBuffer) throws IOException {
+    cell.wrap(cellBuffer.bytes);
+    if (awaitingOpen) {
+      // If we did not initiate, check for open to make sure other end is also a tor node.
+      if (cell.command() != TorCommand.OPEN) {
+        cellBuffer.release();
+        return false;
+      }
+      if (!handleOpenCommand(cellBuffer)) {
+        return false;
+      }
+      awaitingOpen = false;
+      return true;
+    }
+
+    TorCommand command = cell.command();
+
+    // If this is a response intended for another thread, forward it.
+    // Shouldn't need to handle relay connected or relay extended because this case only
+    // happens in relay extend, which only sends open and create request-response exchanges.
+    if (command == TorCommand.OPENED || command == TorCommand.OPEN_FAILED ||
+        command == TorCommand.CREATED || command == TorCommand.CREATE_FAILED) {
+      BlockingQueue<CellBuffer> extendBuffer = SocketManager.getRelayExtendBufferForSocket(readSocket);
+      if (extendBuffer != null) {
+        extendBuffer.add(cellBuffer);
+        return true;
+      }
+    }
+
+    // Handle OPEN commands separately since they don't have circuit ids.
+    if (command == TorCommand.OPEN) {
+      handleOpenCommand(cellBuffer);
+      return true;
+    }
+
+    int circuitId = cell.circuitId();
+    Hop nextHop = hopTable.get(linkId, circuitId);
+    int relayId = (circuitId << 16) | cell.streamId();
+
+    switch (CellDispatch.action(cell.commandByte(), cell.relayCommandByte(),
+                                CellDispatch.hopKind(nextHop))) {
+      case CREATE:          System.out.println("accepted new circuit: " + circuitId);
+                            hopTable.put(linkId, circuitId, CircuitTable.END);
+                            cell.setCommand(TorCommand.CREATED);
+                            SocketManager.writeToSocket(readSocket, cellBuffer);
+                            break;
+      case CREATE_FAILED:   cell.setCommand(TorCommand.CREATE_FAILED);
+                            SocketManager.writeToSocket(readSocket, cellBuffer);
+                            break;
+      case EXTEND:          try {
+                              tasks.execute(new RelayExtendThread(cellBuffer));
+                            } catch (RejectedExecutionException e) {
+                              cell.setBodyLength(0);
+                              cell.setRelayCommand(RelayCommand.EXTEND_FAILED);
+                              SocketManager.writeToSocket(readSocket, cellBuffer);
+                            }
+                            break;
+      case FORWARD:         // Only the circuit id changes, so rewrite it in place and hand the
+                            // same cell to the writer.
+                            cell.setCircuitId(nextHop.circuitId);
+                            SocketManager.writeToSocket(nextHop.s, cellBuffer);
+                            break;
+      case FORWARD_DESTROY: cell.setCircuitId(nextHop.circuitId);
+                            SocketManager.writeToSocket(nextHop.s, cellBuffer);
+                            forgetCircuit(circuitId, nextHop);
+                            System.out.println("circuit was destroyed: " + circuitId);
+                            break;
+      case DESTROY:         cellBuffer.release();
+                            endCircuit(circuitId);
+                            System.out.println("circuit was destroyed: " + circuitId);
+                            break;
+      case BEGIN:           handleBegin(cellBuffer, circuitId, relayId);
+                            break;
+      case DATA:            RawDataRelayThread dataRelay = responseRelayForStream.get(relayId);
+                            if (dataRelay != null) {
+                              // Written by a task of the stream's own, so a slow web server
+                              // only holds up its own stream, not every link on this thread.
+                              dataRelay.writeToServer(cellBuffer, tasks);
+                            } else {
+                              cellBuffer.release();
+                            }
+                            break;
+      case END:             pendingBegins.remove(relayId);
+                            RawDataRelayThread endedRelay = responseRelayForStream.remove(relayId);
+                            if (endedRelay != null && (cell.endFlags() & Cell.END_CLEAN) != 0) {
+                              endedRelay.release();
+                            } else if (endedRelay != null) {
+                              endedRelay.kill();
+                            }
+                            cellBuffer.release();
+                            break;
+      case SENDME:          if (cell.streamId() == 0) {
+                              FlowWindow circuitWindow = circuitWindows.get(circuitId);
+                              if (circuitWindow != null) {
+                                circuitWindow.increase(FlowWindow.CIRCUIT_INCREMENT);
+                              }
+                            } else {
+                              RawDataRelayThread relay = responseRelayForStream.get(relayId);
+                              if (relay != null && relay.streamWindow() != null) {
+                                relay.streamWindow().increase(FlowWindow.STREAM_INCREMENT);
+                              }
+                            }
+                            cellBuffer.release();
+                            break;
+      default:              cellBuffer.release();
+    }
+    return true;
+  }
+
+  /** Opens a stream to the web server named by a relay begin cell at the end of a circuit,
+      reusing the cell for the `CONNECTED` or `BEGIN_FAILED` response. The connection is made
+      by `originPool`, and the response sent from its thread, so this doesn't wait for it. */
+  private void handleBegin(CellBuffer cellBuffer, int circuitId, int relayId) {
+    int addressEnd = cell.addressEnd();
+    // Only the web server connections of framed HTTP streams are ever given to another
+    // stream: anything else (e.g. a TLS tunnel on any port) may still have data in flight.
+    boolean framed = addressEnd != -1 && cell.addressPort(addressEnd) != TLS_PORT &&
+        (cell.beginFlags(addressEnd) & Cell.BEGIN_FRAMED) != 0;
+    // A proxy that doesn't send sendmes would never reopen a window, so its streams have none.
+    boolean flowControl = addressEnd != -1 &&
+        (cell.beginFlags(addressEnd) & Cell.BEGIN_FLOW_CONTROL) != 0;
+    // The response reuses this cell, with an empty body.
+    cell.setBodyLength(0);
+    if (responseRelayForStream.containsKey(relayId) || pendingBegins.contains(relayId)) {
+      cell.setRelayCommand(RelayCommand.BEGIN_FAILED);
+      SocketManager.writeToSocket(readSocket, cellBuffer);
+      return;
+    }
+
+    int iport = addressEnd == -1 ? -1 : cell.addressPort(addressEnd);
+    if (iport == -1) {
+      cell.setRelayCommand(RelayCommand.BEGIN_FAILED);
+      SocketManager.writeToSocket(readSocket, cellBuffer);
+      return;
+    }
+    final String ip = cell.addressHost(addressEnd);
+    pendingBegins.add(relayId);
+    originPool.connect(ip, iport, webSocket -> {
+      // `cell` belongs to the thread handling this link's cells.
+      Cell response = new Cell(cellBuffer.bytes);
+      if (!pendingBegins.remove(relayId)) {
+        // The stream was ended, or the link closed, while connecting.
+        if (webSocket != null) {
+          originPool.release(ip, iport, webSocket);
+        }
+        cellBuffer.release();
+        return;
+      }
+      if (webSocket != null) {
+        try {
+          webSocket.setSoTimeout(ORIGIN_READ_TIMEOUT_MS);
+        } catch (IOException e) {
+          // Broken, so not given back to `originPool` for reuse.
+          try {
+            webSocket.close();
+          } catch (IOException e2) {
+            // no op
+          }
+          webSocket = null;
+        }
+      }
+      if (webSocket == null) {
+        response.setRelayCommand(RelayCommand.BEGIN_FAILED);
+        SocketManager.writeToSocket(readSocket, cellBuffer);
+        return;
+      }
+
+      RawDataRelayThread responseRelayThread = new RawDataRelayThread(
+          readSocket, webSocket, relayId, circuitId, responseRelayForStream, SocketManager.bufferForSocket(readSocket),
+          framed ? originPool : null, ip, iport, flowControl ?
+              circuitWindows.computeIfAbsent(circuitId, id -> new FlowWindow(FlowWindow.CIRCUIT_START)) :
+              null);
+      // In the map before it starts, so that it can remove itself, and connected before any
+      // data it relays.
+      responseRelayForStream.put(relayId, responseRelayThread);
+      response.setRelayCommand(RelayCommand.CONNECTED);
+      SocketManager.writeToSocket(readSocket, cellBuffer);
+      try {
+        tasks.execute(responseRelayThread);
+      } catch (RejectedExecutionException e) {
+        // No thread to relay the server's data, so end the stream just connected.
+        responseRelayForStream.remove(relayId);
+        responseRelayThread.kill();
+        CellBuffer endBuffer = CellBuffer.allocate().clear();
+        new Cell(endBuffer.bytes).setRelayHeader(circuitId, relayId & 0xFFFF, RelayCommand.END, 0);
+        SocketManager.writeToSocket(readSocket, endBuffer);
+      }
+    });
+  }
+
+  /** Returns the pool that makes the web server connections of streams leaving the tor
+      network at this node. */
+  public static OriginPool originPool() {
+    return originPool;
+  }
+
+  /** Returns the cache that looks up the host names streams and circuits are extended to. */
+  public static DnsCache dnsCache() {
+    return dnsCache;
+  }
+
+  /** Starts closing tor links that have carried no circuits for `idleMs`, checking twice
+      every `idleMs`. A link is only closed once every circuit on it has been destroyed, so
+      the grace period lets a new circuit reuse a link that has just gone idle. */
+  public static void startIdleLinkReaper(int idleMs) {
+    ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "TorLinkHandler idle links");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long periodMs = Math.max(1, idleMs / 2);
+    reaper.scheduleWithFixedDelay(() -> SocketManager.closeIdleSockets(hopTable.linkIds(), idleMs),
+                                  periodMs, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Releases everything associated with the `Socket` and removes it from the
+      `SocketManager`. Should be called exactly once, when the `Socket` is done. Every circuit
+      on the `Socket` is destroyed: circuits that end here have their streams ended, and the
+      rest are destroyed on their next hop too, so the failure reaches both ends of each
+      circuit instead of leaving them waiting on it. */
+  public void close() {
+    pendingBegins.clear();
+    for (int key : responseRelayForStream.keySet()) {
+      responseRelayForStream.get(key).kill();
+    }
+    for (int circuitId : hopTable.circuitIds(linkId)) {
+      Hop nextHop = hopTable.get(linkId, circuitId);
+      if (nextHop == null || nextHop == CircuitTable.END) {
+        endCircuit(circuitId);
+        continue;
+      }
+      CellBuffer destroyBuffer = CellBuffer.allocate().clear();
+      Cell destroyCell = new Cell(destroyBuffer.bytes);
+      destroyCell.setCircuitId(nextHop.circuitId);
+      destroyCell.setCommand(TorCommand.DESTROY);
+      SocketManager.writeToSocket(nextHop.s, destroyBuffer);
+      forgetCircuit(circuitId, nextHop);
+    }
+    circuitWindows.clear();
+    try {
+      SocketManager.removeSocket(readSocket);
+    } catch (NullPointerException e) {
+      // no op; closing anyway
+    }
+  }
+
+  /** Forgets a circuit that ends at this node, ending its streams and releasing its id.
+      @param circuitId The circuit's id on `readSocket`. */
+  private void endCircuit(int circuitId) {
+    hopTable.remove(linkId, circuitId);
+    circuitWindows.remove(circuitId);
+    // Relay ids are the circuit id in the high 16 bits and the stream id in the low 16.
+    pendingBegins.removeIf(relayId -> relayId >>> 16 == circuitId);
+    responseRelayForStream.entrySet().removeIf(stream -> {
+      if (stream.getKey() >>> 16 != circuitId) {
+        return false;
+      }
+      stream.getValue().kill();
+      return true;
+    });
+    SocketManager.releaseCircuitIdForSocket(readSocket, circuitId);
+  }
+
+  /** Forgets both directions of a circuit that passes through this node, and releases its
+      ids on both links. The destroy cell must already have been sent on to `nextHop`.
+      @param circuitId The circuit's id on `readSocket`.
+      @param nextHop The circuit's hop on the other link. */
+  private void forgetCircuit(int circuitId, Hop nextHop) {
+    hopTable.remove(linkId, circuitId);
+    hopTable.remove(nextHop.linkId, nextHop.circuitId);
+    SocketManager.releaseCircuitIdForSocket(readSocket, circuitId);
+    SocketManager.releaseCircuitIdForSocket(nextHop.s, nextHop.circuitId);
+  }
+
+  /** Gives up on a circuit this node asked a next hop to create, e.g. one that got no
+      answer in time. A destroy cell is sent in case the next hop created it after all, and
+      the circuit id is released.
+      @param nextHopSocket The `Socket` to the next hop.
+      @param circuitId The circuit's id on `nextHopSocket`. */
+  private static void abandonCircuit(Socket nextHopSocket, int circuitId) {
+    CellBuffer destroyBuffer = CellBuffer.allocate().clear();
+    Cell destroyCell = new Cell(destroyBuffer.bytes);
+    destroyCell.setCircuitId(circuitId);
+    destroyCell.setCommand(TorCommand.DESTROY);
+    SocketManager.writeToSocket(nextHopSocket, destroyBuffer);
+    SocketManager.releaseCircuitIdForSocket(nextHopSocket, circuitId);
+  }
+
+  /** Responds to an open cell from a tor node, reusing the cell for the response. */
+  private boolean handleOpenCommand(CellBuffer cellBuffer) {
+    cell.wrap(cellBuffer.bytes);
+    int openedId = cell.openedAgentId();
+    int openerId = cell.openerAgentId();
+    SocketManager.setAgentIdForSocket(readSocket, openerId);
+
+    if (openedId == TorMain.agentId) {
+      cell.setCommand(TorCommand.OPENED);
+    } else {
+      cell.setCommand(TorCommand.OPEN_FAILED);
+    }
+    SocketManager.writeToSocket(readSocket, cellBuffer);
+    return openedId == TorMain.agentId;
+  }
+
+  /** Returns `true` if and only if a circuit on a `Socket` is this node's own proxy circuit,
+      for `Hop.local`. */
+  private static boolean isLocal(Socket socket, int circuitId) {
+    try {
+      return circuitId == 1 && SocketManager.agentIdForSocket(socket) == TorMain.agentId;
+    } catch (NullPointerException e) {
+      // The `Socket` closed while its circuit was extended, e.g. an abandoned circuit build.
+      return false;
+    }
+  }
+
+  /** An `ExtendLock` is the lock of one agent id in `extendLocks`. It's a `ReentrantLock`
+      rather than a monitor, since it's held while waiting on the next hop, which would pin a
+      virtual thread to its carrier. */
+  private static final class ExtendLock {
+    final ReentrantLock lock = new ReentrantLock();
+    /// The number of extends holding or waiting for `lock`. Only changed inside
+    /// `extendLocks.compute`, which serializes changes for the same agent id.
+    int users;
+  }
+
+  /** Takes the extend lock of an agent id, waiting for any other extend to it to finish.
+      @return The lock, to be passed to `unlockExtends`. */
+  private static ExtendLock lockExtends(int agentId) {
+    ExtendLock entry = extendLocks.compute(agentId, (id, existing) -> {
+      ExtendLock l = existing == null ? new ExtendLock() : existing;
+      l.users++;
+      return l;
+    });
+    entry.lock.lock();
+    return entry;
+  }
+
+  /** Releases the extend lock of an agent id, and forgets it if no other extend wants it. */
+  private static void unlockExtends(int agentId, ExtendLock entry) {
+    entry.lock.unlock();
+    extendLocks.computeIfPresent(agentId, (id, l) -> --l.users == 0 ? null : l);
+  }
+
+  /** A helper thread that handles a series of request-response exchanges triggered by
+      a relay extend request. */
+  private class RelayExtendThread implements Runnable {
+    /// The relay extend request cell, which is reused for the response.
+    CellBuffer extendCell;
+    /// A buffer that contains responses to this thread's requests.
+    BlockingQueue<CellBuffer> readBuffer;
+
+    /** Sole constructor.
+        @param extendCell The relay extend request cell. The thread takes over the
+                          caller's reference to it. */
+    RelayExtendThread(CellBuffer extendCell) {
+      this.extendCell = extendCell;
+      this.readBuffer = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    public void run() {
+      // Get the data from the relay extend cell.
+      final Cell message = new Cell(extendCell.bytes);
+      int addressEnd = message.addressEnd();
+      int circuitId = message.circuitId();
+
+      // The response reuses the request cell, with an empty body.
+      message.setBodyLength(0);
+
+      if (addressEnd == -1 || addressEnd + 4 >= Cell.SIZE) {
+        message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+        SocketManager.writeToSocket(readSocket, extendCell);
+        return;
+      }
+      final String ip = message.addressHost(addressEnd);
+      int iport = message.addressPort(addressEnd);
+      int newAgentId = message.extendAgentId(addressEnd);
+
+      if (newAgentId == TorMain.agentId) {
+        System.out.println("extended circuit: " + circuitId);
+        message.setRelayCommand(RelayCommand.EXTENDED);
+        SocketManager.writeToSocket(readSocket, extendCell);
+        return;
+      }
+
+      // Get/create socket to extend the hop to, and create the circuit on it.
+      Socket nextHopSocket;
+      int newCircuitId;
+      ExtendLock extendLock = lockExtends(newAgentId);
+      try {
+        nextHopSocket = SocketManager.socketForAgentId(newAgentId);
+        if (nextHopSocket == null) {
+          try {
+            nextHopSocket = SocketManager.openSocket(dnsCache.resolveNow(ip), iport);
+            SocketManager.addSocket(nextHopSocket, true, tasks);
+          } catch (IOException | IllegalArgumentException e) {
+            // `IllegalArgumentException` if `iport` is not a valid port.
+            message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+            SocketManager.writeToSocket(readSocket, extendCell);
+            return;
+          }
+
+          SocketManager.setAgentIdForSocket(nextHopSocket, newAgentId);
+          SocketManager.setRelayExtendBufferForSocket(nextHopSocket, readBuffer);
+
+          CellBuffer openBuffer = CellBuffer.allocate().clear();
+          Cell openCell = new Cell(openBuffer.bytes);
+          openCell.setCommand(TorCommand.OPEN);
+          openCell.setOpenerAgentId(TorMain.agentId);
+          openCell.setOpenedAgentId(newAgentId);
+          SocketManager.writeToSocket(nextHopSocket, openBuffer);
+
+          CellBuffer opened;
+          try {
+            opened = readBuffer.poll(EXTEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            SocketManager.removeSocket(nextHopSocket);
+            SocketManager.setRelayExtendBufferForSocket(nextHopSocket, null);
+            message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+            SocketManager.writeToSocket(readSocket, extendCell);
+            return;
+          }
+          boolean wasOpened = false;
+          if (opened != null) {
+            wasOpened = new Cell(opened.bytes).command() == TorCommand.OPENED;
+            opened.release();
+          }
+          if (!wasOpened) {
+            // TODO: also check opener and opened ids
+            SocketManager.removeSocket(nextHopSocket);
+            SocketManager.setRelayExtendBufferForSocket(nextHopSocket, null);
+            message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+            SocketManager.writeToSocket(readSocket, extendCell);
+            return;
+          }
+        } else {
+          SocketManager.setRelayExtendBufferForSocket(nextHopSocket, readBuffer);
+        }
+
+        newCircuitId = SocketManager.getNextCircuitIdForSocket(nextHopSocket);
+        if (newCircuitId == -1) {
+          // Every circuit id on the link is in use.
+          SocketManager.setRelayExtendBufferForSocket(nextHopSocket, null);
+          message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+          SocketManager.writeToSocket(readSocket, extendCell);
+          return;
+        }
+
+        CellBuffer createBuffer = CellBuffer.allocate().clear();
+        Cell createCell = new Cell(createBuffer.bytes);
+        createCell.setCircuitId(newCircuitId);
+        createCell.setCommand(TorCommand.CREATE);
+        SocketManager.writeToSocket(nextHopSocket, createBuffer);
+        CellBuffer created;
+        try {
+          created = readBuffer.poll(EXTEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          created = null;
+        }
+        boolean wasCreated = false;
+        if (created != null) {
+          Cell createdCell = new Cell(created.bytes);
+          wasCreated = createdCell.circuitId() == newCircuitId &&
+              createdCell.command() == TorCommand.CREATED;
+          created.release();
+        }
+        if (!wasCreated) {
+          // Only this circuit failed; the link stays up for the other circuits on it.
+          SocketManager.setRelayExtendBufferForSocket(nextHopSocket, null);
+          abandonCircuit(nextHopSocket, newCircuitId);
+          message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+          SocketManager.writeToSocket(readSocket, extendCell);
+          return;
+        }
+        SocketManager.setRelayExtendBufferForSocket(nextHopSocket, null);
+      } finally {
+        unlockExtends(newAgentId, extendLock);
+      }
+
+      Hop currentHop = new Hop(readSocket, linkId, circuitId, isLocal(readSocket, circuitId));
+      Hop newHop = new Hop(nextHopSocket, SocketManager.linkIdForSocket(nextHopSocket), newCircuitId,
+                           isLocal(nextHopSocket, newCircuitId));
+      // The circuit being extended ends here (`CircuitTable.END`) until now. Claiming it is a
+      // single step, so of two extends of the same circuit only one wins, and the new circuit
+      // id is one no other circuit on the next hop's link has.
+      if (!hopTable.replace(currentHop.linkId, currentHop.circuitId, CircuitTable.END, newHop)) {
+        // Already extended, or destroyed meanwhile. The next hop created a circuit for
+        // nothing, so tear it down.
+        abandonCircuit(nextHopSocket, newCircuitId);
+        message.setRelayCommand(RelayCommand.EXTEND_FAILED);
+        SocketManager.writeToSocket(readSocket, extendCell);
+        return;
+      }
+      hopTable.put(newHop.linkId, newHop.circuitId, currentHop);
+      System.out.println("extended circuit: " + circuitId);
+      message.setRelayCommand(RelayCommand.EXTENDED);
+      SocketManager.writeToSocket(readSocket, extendCell);
+    }
+  }
+}
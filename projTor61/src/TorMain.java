@@ -1,25 +1,22 @@
 package src;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Random;
+import java.net.SocketException;
+import regagent.LocalRegistry;
 import regagent.RegAgentThread;
-import regagent.Service;
+import regagent.RegistrationServer;
+import regagent.ServiceTable;
+import proxy.CircuitPool;
 import proxy.ProxyThread;
-import java.util.Collections;
 
 /** `TorMain` sets up and runs a tor node. */
 public class TorMain {
 
   public static int agentId;
   public static void main(String[] args) {
-    if (args.length != 3) {
-      System.out.println("usage: ./run <group number> <instance number> <HTTP Proxy port>");
+    if (args.length < 3 || !TorConfig.parse(args, 3)) {
+      System.out.println("usage: ./run <group number> <instance number> <HTTP Proxy port> " +
+          TorConfig.usage());
       return;
     }
 
@@ -31,7 +28,8 @@ public class TorMain {
       instanceNo = Integer.parseInt(args[1]);
       iport = Integer.parseInt(args[2]);
     } catch (NumberFormatException e) {
-      System.out.println("usage: ./run <group number> <instance number> <HTTP Proxy port>");
+      System.out.println("usage: ./run <group number> <instance number> <HTTP Proxy port> " +
+          TorConfig.usage());
       return;
     }
 
@@ -43,27 +41,51 @@ public class TorMain {
     // 2. start tor socket
     // 3. start registration service
     // 4. start proxy (could also be 2)
-    TorServerThread torServer = new TorServerThread();
+    if (TorConfig.ioMode == TorConfig.IoMode.NIO) {
+      try {
+        TorEventLoop.startLoops(TorConfig.ioThreads);
+      } catch (IOException e) {
+        System.out.println("failed to start event loops");
+        return;
+      }
+    }
+    TaskExecutor tasks = new TaskExecutor(TorConfig.taskMode, TorConfig.taskPoolThreads);
+    TorServerThread torServer = new TorServerThread(tasks);
     torServer.start();
+    if (TorConfig.linkIdleMs > 0) {
+      TorLinkHandler.startIdleLinkReaper(TorConfig.linkIdleMs);
+    }
 
-    RegAgentThread regThread = new RegAgentThread(groupNo, instanceNo, agentId, torServer.serverSocket.getLocalPort()); // TODO: use Service class instead?
+    RegAgentThread regThread = makeRegAgent(groupNo, instanceNo, torServer.serverSocket.getLocalPort());
+    if (regThread == null) {
+      return;
+    }
     regThread.start();
 
-    Socket proxyCircuitFirstHopSocket = makeLocalCircuit(regThread.getAllServices());
+    LocalCircuitBuilder circuitBuilder =
+        new LocalCircuitBuilder(regThread::getAllServices, TorConfig.circuitBuildParallelism);
+    CircuitPool circuitPool = new CircuitPool(TorConfig.proxyCircuits, TorConfig.spareCircuits,
+        TorConfig.circuitSelection, circuitBuilder);
+    if (!circuitPool.build()) {
+      System.out.println("failed to initialize tor");
+      System.exit(0);
+    }
+    System.out.println("created tor circuit in " +
+        String.format("%.0f", circuitBuilder.lastBuildMillis()) + " ms");
+    // The rest are built while the proxy starts serving on the first.
+    circuitPool.start();
 
-    (new ProxyThread(iport, 1, proxyCircuitFirstHopSocket)).start();
+    (new ProxyThread(iport, circuitPool, tasks)).start();
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
         System.out.println("shutting down...");
-        byte[] destroyCell = new byte[512];
-        destroyCell[1] = 1;
-        destroyCell[2] = TorCommand.DESTROY.toByte();
-        try {
-          proxyCircuitFirstHopSocket.getOutputStream().write(destroyCell);
-        } catch (IOException e) {
-          // no op
-        }
+        System.out.println("origin pool: " + TorLinkHandler.originPool());
+        System.out.println("dns cache: " + TorLinkHandler.dnsCache());
+        System.out.println("circuit builds: " + circuitBuilder);
+        System.out.println("proxy circuits: " + circuitPool);
+        System.out.println("tasks: " + tasks);
+        circuitPool.close();
         regThread.unregisterService();
         SocketManager.removeAllSockets();
       }
@@ -71,108 +93,27 @@ public class TorMain {
     System.out.println("proxy ready...");
   }
 
-  /** Creates the local circuit for routing browser proxy traffic on this tor node. */
-  private static Socket makeLocalCircuit(List<Service> candidates) {
-    System.out.println("creating tor circuit...");
-    Random r = new Random();
-    Socket gatewaySocket = null;
-    Service gatewayServiceCandidate = candidates.get(candidates.size() - 1);
-    try {
-      // Make socket.
-      //System.out.println("Main: creating connection with " + gatewayServiceCandidate);
-      gatewaySocket = new Socket(gatewayServiceCandidate.ip, gatewayServiceCandidate.iport);
-      //System.out.println(gatewaySocket);
-
-      // Write open.
-      byte[] openCell = new byte[512];
-      openCell[2] = TorCommand.OPEN.toByte();
-      openCell[3] = (byte) (TorMain.agentId >> 24);
-      openCell[4] = (byte) (TorMain.agentId >> 16);
-      openCell[5] = (byte) (TorMain.agentId >> 8);
-      openCell[6] = (byte) TorMain.agentId;
-      openCell[7] = (byte) (gatewayServiceCandidate.data >> 24); // opened agent id
-      openCell[8] = (byte) (gatewayServiceCandidate.data >> 16);
-      openCell[9] = (byte) (gatewayServiceCandidate.data >> 8);
-      openCell[10] = (byte) gatewayServiceCandidate.data;
-      gatewaySocket.getOutputStream().write(openCell);
-
-      // Read opened.
-      byte[] openResponse = new byte[512];
-      if (gatewaySocket.getInputStream().read(openResponse) != 512 ||
-          openResponse[2] != TorCommand.OPENED.toByte()) {
-        // TODO: also check opener and opened ID in openResponse.
-        System.out.println("failed to initialize tor");
-        System.exit(0);
-      }
-
-      // Write create.
-      byte[] createCell = new byte[512];
-      createCell[1] = 1;
-      createCell[2] = TorCommand.CREATE.toByte();
-      gatewaySocket.getOutputStream().write(createCell);
-
-      // Read created.
-      byte[] createResponse = new byte[512];
-      if (gatewaySocket.getInputStream().read(createResponse) != 512 ||
-          createResponse[2] != TorCommand.CREATED.toByte()) {
-        // TODO: also check circuit id in created.
-        System.out.println("failed to initialize tor");
-        System.exit(0);
-      }
-    } catch (IOException e) {
-      System.out.println("failed to initialize tor");
-      System.exit(0);
+  /** Creates the thread that registers this tor node with the registry given by `TorConfig`,
+      starting the in-process registration server first if there is one.
+      @return The thread, or `null` if the registration server could not be started. */
+  private static RegAgentThread makeRegAgent(int groupNo, int instanceNo, int torPort) {
+    if (TorConfig.registryHost != null) {
+      return new RegAgentThread(groupNo, instanceNo, agentId, torPort, TorConfig.registryHost,
+          TorConfig.registryPort, TorConfig.registryUdpPort); // TODO: use Service class instead?
     }
 
-    // Extend three times.
-    int extendSuccesses = 0;
-    while (extendSuccesses < 3 && !candidates.isEmpty()) { // todo: can't have empty
-      Service extendServiceCandidate = candidates.get(r.nextInt(candidates.size()));
-      if (extendSuccesses == 1) {
-        extendServiceCandidate = candidates.get(candidates.size() - 1);
-      }
+    ServiceTable table = new ServiceTable(TorConfig.registryTtlSeconds);
+    if (TorConfig.registryServePort != -1) {
+      RegistrationServer server;
       try {
-        // Send relay extend.
-        byte[] ipStrBytes = (extendServiceCandidate.ip.getHostAddress() +
-            ":" + extendServiceCandidate.iport + '\0').getBytes();
-        byte[] extendCell = new byte[512];
-        extendCell[1] = 1;
-        extendCell[2] = TorCommand.RELAY.toByte();
-        extendCell[11] = (byte) ((ipStrBytes.length + 4) >> 8);
-        extendCell[12] = (byte) (ipStrBytes.length + 4);
-        extendCell[13] = RelayCommand.EXTEND.toByte();
-        System.arraycopy(ipStrBytes, 0, extendCell, 14, ipStrBytes.length);
-        extendCell[14 + ipStrBytes.length] = (byte) (extendServiceCandidate.data >> 24); // agent id
-        extendCell[15 + ipStrBytes.length] = (byte) (extendServiceCandidate.data >> 16);
-        extendCell[16 + ipStrBytes.length] = (byte) (extendServiceCandidate.data >> 8);
-        extendCell[17 + ipStrBytes.length] = (byte) extendServiceCandidate.data;
-        gatewaySocket.getOutputStream().write(extendCell);
-
-        // Read relay extended.
-        byte[] extendResponse = new byte[512];
-        while (true) {
-          if (gatewaySocket.getInputStream().read(extendResponse) != 512) {
-            candidates.remove(extendServiceCandidate);
-            break;
-          } else {
-            if (extendResponse[2] == TorCommand.RELAY.toByte() &&
-                extendResponse[13] == RelayCommand.EXTENDED.toByte()) {
-                System.out.println("  Extended tor circuit to node " + extendServiceCandidate.data +
-                    " at " + extendServiceCandidate.ip.getHostAddress() +
-                    ":" + extendServiceCandidate.iport);
-              extendSuccesses++;
-              break;
-            } else {
-              candidates.remove(extendServiceCandidate);
-              break;
-            }
-          }
-        }
-      } catch (IOException e) {
-        candidates.remove(extendServiceCandidate);
+        server = new RegistrationServer(TorConfig.registryServePort, table);
+      } catch (SocketException e) {
+        System.out.println("unable to bind to registry port");
+        return null;
       }
+      server.start();
+      System.out.println("serving registry on udp port " + server.getLocalPort());
     }
-
-    return gatewaySocket;
+    return new RegAgentThread(groupNo, instanceNo, agentId, torPort, new LocalRegistry(table));
   }
 }
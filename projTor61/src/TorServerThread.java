@@ -1,19 +1,30 @@
 package src;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
-/** `TorServerThread` accepts TCP connections on a `ServerSocket`, adds any accepted `Socket`s to
-    the `SocketManager`, and starts a `TorSocketReaderThread` to handle events on the `Socket`. */
+/** `TorServerThread` accepts TCP connections on a `ServerSocket` and adds any accepted `Socket`s
+    to the `SocketManager`, which starts handling events on them. */
 public class TorServerThread extends Thread {
   /// The `ServerSocket` to accept TCP connections on.
   public final ServerSocket serverSocket;
+  /// Runs the tasks of the accepted `Socket`s.
+  private final TaskExecutor tasks;
 
-  /** Sole constructor. */
-  public TorServerThread() {
+  /** Sole constructor.
+      @param tasks Runs the tasks of the accepted `Socket`s. */
+  public TorServerThread(TaskExecutor tasks) {
+    this.tasks = tasks;
     try {
-      this.serverSocket = new ServerSocket(0);
+      if (TorConfig.ioMode == TorConfig.IoMode.NIO) {
+        // Accepted sockets need channels to be registered with a `TorEventLoop`.
+        this.serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+      } else {
+        this.serverSocket = new ServerSocket(0);
+      }
     } catch (IOException e) {
       // shouldn't ever happen
       throw new IllegalStateException();
@@ -26,8 +37,7 @@ public class TorServerThread extends Thread {
     while (true) {
       try {
         Socket newSocket = serverSocket.accept();
-        SocketManager.addSocket(newSocket, false);
-        (new TorSocketReaderThread(newSocket)).start();
+        SocketManager.addSocket(newSocket, false, tasks);
       } catch (IOException e) {
         continue;
       }
@@ -1,38 +1,83 @@
 package src;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Helper class for SocketManager; one TorSocketWriterThread is running for each SocketManager
-    socket. Each instance reads byte arrays from a buffer and writes them to its socket's
-    output stream. The SocketManager is responsible for terminating it. */
+    socket. Each instance reads cells from a buffer and writes them to its socket's
+    output stream. The SocketManager is responsible for terminating it. Used when
+    `TorConfig.ioMode` is `IoMode.THREADS`.
+
+    Whenever it wakes up, the thread takes every cell already queued (up to
+    `TorConfig.writeBatchCells`) and sends them with a single write, so a busy link costs
+    one system call per batch rather than one per cell. Cells are taken in the order the
+    `CircuitQueue` schedules them. Once the thread stops, whether the `Socket` failed or the
+    `SocketManager` removed it, the `Socket` is removed and the cells still queued are
+    released. */
 public class TorSocketWriterThread extends Thread {
   /// The `Socket` to write data to.
   public final Socket socket;
-  /// FIFO data to write to the `socket`.
-  public final BlockingQueue<byte[]> buf;
+  /// Cells to write to the `socket`, FIFO per circuit. Each is released once it's written.
+  public final CircuitQueue buf;
+  /// The most cells to send with one write.
+  private final int maxBatchCells;
+  /// The cells taken from `buf` for the current write.
+  private final List<CellBuffer> batch;
+  /// The bytes of the cells in `batch`, laid end to end.
+  private final byte[] batchBytes;
 
   /** Sole constructor.
       @param socket The `Socket` whose output stream should be written to. */
   public TorSocketWriterThread(Socket socket) {
     this.socket = socket;
-    this.buf = new LinkedBlockingQueue<>();
+    this.buf = new CircuitQueue();
+    this.maxBatchCells = TorConfig.writeBatchCells();
+    this.batch = new ArrayList<>(maxBatchCells);
+    this.batchBytes = new byte[maxBatchCells * CellBuffer.CELL_SIZE];
   }
 
   @Override
   public void run() {
+    try {
+      writeCells();
+    } finally {
+      // Wakes any producer waiting for room in `buf`, which would otherwise wait forever.
+      buf.close();
+      SocketManager.removeSocket(socket);
+    }
+  }
+
+  /** Writes the cells from `buf` to `socket` until the thread is interrupted or a write
+      fails. */
+  private void writeCells() {
+    OutputStream out;
+    try {
+      out = socket.getOutputStream();
+    } catch (IOException e) {
+      return;
+    }
+
     while (true) {
-      byte[] curr;
       try {
-        curr = buf.take();
+        batch.add(buf.take());
       } catch (InterruptedException e) {
         return;
       }
+      buf.drainTo(batch, maxBatchCells - 1);
+
+      int length = 0;
+      for (CellBuffer cell : batch) {
+        System.arraycopy(cell.bytes, 0, batchBytes, length, CellBuffer.CELL_SIZE);
+        length += CellBuffer.CELL_SIZE;
+        cell.release();
+      }
+      batch.clear();
 
       try {
-        socket.getOutputStream().write(curr);
+        out.write(batchBytes, 0, length);
       } catch (IOException e) {
         return;
       }
@@ -2,160 +2,287 @@ package proxy;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import src.Cell;
+import src.RelayCommand;
 
-/** BufferedStreamReader wraps an InputStream for the following benefits:
+/** BufferedStreamReader wraps an InputStream, or the queue of relay cells for a tor stream,
+    for the following benefits:
     - Capable of switching between line-based and byte-based processing.
     - Doesn't trim line termination characters when doing line-based processing.
-    - Returns null or -1 when there's an error reading instead of throwing IOException. */
+    - Returns null or -1 when there's an error reading instead of throwing IOException.
+
+    Bytes are taken from the source in bulk (a whole cell body at a time for cell queues) into
+    one reusable buffer, and lines are found by scanning that buffer for '\n'. Unread bytes are
+    moved to the front of the buffer before each refill rather than wrapping around it, so a
+    line is always one contiguous slice. Since a reader may buffer bytes past the ones it has
+    returned, a source must only ever be read through one BufferedStreamReader. */
 public class BufferedStreamReader {
-  /// The InputStream to read from.
-  private InputStream inputStream;
+  /** Callbacks for cells taken from a tor stream's queue. */
+  public interface DataCellListener {
+    /** Called once for every non-empty relay data cell taken, after its bytes are buffered
+        or returned. Empty data cells only show that the stream is still open, and aren't
+        counted against its window. */
+    public void onDataCell();
+  }
 
+  /// The initial capacity of `buffer`. It doubles whenever a line doesn't fit.
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  /// The number of ms to wait for the next cell from `bufStream` before treating the stream
+  /// as ended.
+  static final int CELL_TIMEOUT_MS = 5000;
+
+  /// The InputStream to read from, or `null` if reading from `bufStream`.
+  private InputStream inputStream;
+  /// The relay data cells to read the bodies of, or `null` if reading from `inputStream`.
   private BlockingQueue<byte[]> bufStream;
-  List<Integer> leftover;
+  /// Called for every data cell taken from `bufStream`, or `null`.
+  private DataCellListener listener;
+  /// The view used to read the headers of cells taken from `bufStream`.
+  private final Cell cell = new Cell();
+  /// Bytes taken from the source but not yet returned are `buffer[position..limit)`.
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int position = 0;
+  private int limit = 0;
 
-  /** Sole constructor.
+  /** Creates a reader for a byte stream.
       @param inputStream The InputStream to read from. */
   public BufferedStreamReader(InputStream inputStream) {
     this.inputStream = inputStream;
   }
 
+  /** Creates a reader for the bodies of the relay data cells of a tor stream. The stream ends
+      at the first cell that isn't a relay data cell, or when no cell arrives for 5 seconds.
+      @param bufStream The queue cells for the tor stream are put on. */
   public BufferedStreamReader(BlockingQueue<byte[]> bufStream) {
     this.bufStream = bufStream;
   }
 
-  /** Reads and returns the next line from the InputStream (terminated by '\n').
+  /** Creates a reader for the bodies of the relay data cells of a tor stream, like
+      `BufferedStreamReader(bufStream)`, that tells `listener` about every data cell it takes.
+      @param bufStream The queue cells for the tor stream are put on.
+      @param listener The listener to call for every data cell taken from `bufStream`. */
+  public BufferedStreamReader(BlockingQueue<byte[]> bufStream, DataCellListener listener) {
+    this(bufStream);
+    this.listener = listener;
+  }
+
+  /** Reads and returns the next line (terminated by '\n'). Bytes are decoded as ISO-8859-1, so
+      `getBytes(StandardCharsets.ISO_8859_1)` returns exactly the bytes that were read.
       @return The line read, or null if there is no line or an error. */
   public String readLine() {
-    StringBuilder lineBuilder = new StringBuilder();
-    String line;
-    if (bufStream != null) {
-      if (leftover != null) {
-        for (int i = 0; i < leftover.size(); i++) {
-          char current = (char) leftover.get(i).byteValue();
-          lineBuilder.append(current);
-          if (current == '\n') {
-            if (i == leftover.size() - 1) {
-              leftover = null;
-              return lineBuilder.toString();
-            }
-            leftover = new ArrayList<>(leftover.subList(i + 1, leftover.size()));
-            return lineBuilder.toString();
-          }
-        }
-        leftover = null;
-      }
-      while (true) {
-        byte[] buf;
-        try {
-          buf = bufStream.poll(5000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-          if (lineBuilder.length() == 0) {
-            return null;
-          } else {
-            return lineBuilder.toString();
-          }
-        }
-        if (buf == null || buf[2] != 3 || buf[13] != 2) {
-          if (lineBuilder.length() == 0) {
-            return null;
-          } else {
-            return lineBuilder.toString();
-          }
-        }
-        final int length = ((buf[11] & 0xFF) << 8) | (buf[12] & 0xFF);
-        for (int i = 14; i < 14 + length; i++) {
-          char current = (char) buf[i];
-          lineBuilder.append(current);
-          if (current == '\n') {
-            if (i == 13 + length) {
-              leftover = null;
-              return lineBuilder.toString();
-            }
-            leftover = new ArrayList<>();
-            for (int j = 0; j < length - (i - 14) - 1; j++) {
-              leftover.add(buf[j + i + 1] & 0xFF);
-            }
-            return lineBuilder.toString();
-          }
-        }
-      }
+    int length = nextLineLength(Integer.MAX_VALUE);
+    if (length == 0) {
+      return null;
     }
+    String line = new String(buffer, position, length, StandardCharsets.ISO_8859_1);
+    position += length;
+    return line;
+  }
 
-    int current;
-    try {
-      while ((current = inputStream.read()) != -1) {
-        lineBuilder.append((char) current);
-        if (current == (int) '\n') {
-          return lineBuilder.toString();
-        }
-      }
-    } catch (IOException e) {
-      // no op
+  /** Reads the next line (terminated by '\n') into `b` starting at `off`. If the line is longer
+      than `len` bytes, only its first `len` bytes are read and the rest are left for the next
+      read.
+      @return The number of bytes read, or -1 if there is no line or an error. */
+  public int readLine(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
     }
-
-    if (lineBuilder.length() == 0) {
-      return null;
-    } else {
-      return lineBuilder.toString();
+    int length = nextLineLength(len);
+    if (length == 0) {
+      return -1;
     }
+    System.arraycopy(buffer, position, b, off, length);
+    position += length;
+    return length;
   }
 
   public int readChunk(byte[] cell) {
-    if (bufStream != null) {
-      throw new IllegalStateException("not yet implemented");
+    return readChunk(cell, 0, cell.length);
+  }
+
+  /** Reads up to `len` bytes into `b` starting at `off`, waiting only until at least one byte
+      is available.
+      @return The number of bytes read, -1 at the end of the stream or if there is an error, or
+              0 if the read timed out. */
+  public int readChunk(byte[] b, int off, int len) {
+    try {
+      return readBytes(b, off, len);
+    } catch (SocketTimeoutException e) {
+      return 0;
+    } catch (IOException e) {
+      return -1;
     }
+  }
+
+  /** Reads up to `len` bytes into `b` starting at `off`, waiting only until at least one byte
+      is available. When reading cells, also reads the bodies of any further data cells that
+      have already arrived and fit, so a caller can pass several cells on in one write.
+      @return The number of bytes read, or -1 if there are no bytes or an error. */
+  public int read(byte[] b, int off, int len) {
     try {
-      return inputStream.read(cell);
+      return readBytes(b, off, len);
     } catch (IOException e) {
-      return 0;
+      return -1;
     }
   }
 
-  /** Reads and returns the next byte from the InputStream.
+  /** Reads and returns the next byte.
       @return The byte read, or -1 if there is no byte or an error. */
   public int read() {
-    if (bufStream != null) {
-      if (leftover != null) {
-        if (leftover.size() == 1) {
-          int result = leftover.get(0);
-          leftover = null;
-          return result;
-        } else {
-          return leftover.remove(0);
-        }
-      } else {
-        byte[] buf;
-        try {
-          buf = bufStream.poll(5000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
+    try {
+      while (position == limit) {
+        if (fill() == -1) {
           return -1;
         }
-        if (buf == null || buf[2] != 3 || buf[13] != 2) {
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  /** Returns `true` if and only if the tor stream is known to have ended without waiting for
+      another cell: nothing is buffered and the next cell that has arrived isn't a data cell.
+      Discards any empty data cells that have arrived.
+      @requires This reader reads cells. */
+  public boolean hasEnded() {
+    if (position != limit) {
+      return false;
+    }
+    byte[] next;
+    while ((next = bufStream.peek()) != null && cell.wrap(next).isRelay(RelayCommand.DATA)) {
+      if (cell.bodyLength() != 0) {
+        return false;
+      }
+      bufStream.poll();
+    }
+    return next != null;
+  }
+
+  private int readBytes(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position == limit) {
+      if (inputStream != null && len >= buffer.length) {
+        // Nothing is buffered and the caller wants more than a buffer's worth, so copying
+        // through the buffer would only add work.
+        return inputStream.read(b, off, len);
+      }
+      do {
+        if (fill() == -1) {
           return -1;
         }
-        final int length = ((buf[11] & 0xFF) << 8) | (buf[12] & 0xFF);
-        if (length > 1) {
-          leftover = new ArrayList<>();
-          for (int i = 0; i < length - 1; i++) {
-            leftover.add(buf[i + 15] & 0xFF);
-          }
+      } while (position == limit);
+    }
+    int count = Math.min(len, limit - position);
+    System.arraycopy(buffer, position, b, off, count);
+    position += count;
+    if (bufStream != null && position == limit) {
+      count += readQueuedCells(b, off + count, len - count);
+    }
+    return count;
+  }
+
+  /** Copies the bodies of the data cells at the head of `bufStream` straight into `b`, for as
+      long as they fit in `len` bytes, without waiting for any more cells to arrive.
+      @requires Nothing is buffered.
+      @return The number of bytes copied. */
+  private int readQueuedCells(byte[] b, int off, int len) {
+    int count = 0;
+    byte[] next;
+    // Only this reader takes cells from `bufStream`, so the peeked cell is the one polled.
+    while ((next = bufStream.peek()) != null && cell.wrap(next).isRelay(RelayCommand.DATA)) {
+      int length = Math.min(cell.bodyLength(), Cell.MAX_BODY_LENGTH);
+      if (length > len - count) {
+        break;
+      }
+      bufStream.poll();
+      System.arraycopy(next, Cell.BODY_OFFSET, b, off + count, length);
+      count += length;
+      dataCellTaken(length);
+    }
+    return count;
+  }
+
+  /** Buffers bytes until the first `max` unread ones include a '\n', there are `max` unread
+      ones, or the source has ended or failed.
+      @return The number of bytes up to and including the first '\n', at most `max`, or the
+              number of bytes left if the source has ended or failed. */
+  private int nextLineLength(int max) {
+    int scanned = 0;
+    while (true) {
+      int available = Math.min(limit - position, max);
+      for (; scanned < available; scanned++) {
+        if (buffer[position + scanned] == '\n') {
+          return scanned + 1;
         }
-        if (length == 0) {
-          return -1;
-        } else {
-          return buf[14] & 0xFF;
+      }
+      if (scanned == max) {
+        return scanned;
+      }
+      try {
+        if (fill() == -1) {
+          return scanned;
         }
+      } catch (IOException e) {
+        return scanned;
+      }
+    }
+  }
+
+  /** Appends the next bytes from the source to the unread ones, first moving the unread bytes
+      to the front of `buffer` and growing it if it's full.
+      @return The number of bytes added (0 for an empty cell), or -1 at the end of the stream.
+      @throws IOException If there is an error reading from `inputStream`. */
+  private int fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+
+    if (inputStream != null) {
+      ensureCapacity(1);
+      int count = inputStream.read(buffer, limit, buffer.length - limit);
+      if (count > 0) {
+        limit += count;
       }
+      return count;
     }
+
+    byte[] next;
     try {
-      return inputStream.read();
-    } catch (IOException e) {
+      next = bufStream.poll(CELL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      return -1;
+    }
+    if (next == null || !cell.wrap(next).isRelay(RelayCommand.DATA)) {
       return -1;
     }
+    int length = Math.min(cell.bodyLength(), Cell.MAX_BODY_LENGTH);
+    ensureCapacity(length);
+    System.arraycopy(next, Cell.BODY_OFFSET, buffer, limit, length);
+    limit += length;
+    dataCellTaken(length);
+    return length;
+  }
+
+  private void dataCellTaken(int length) {
+    if (listener != null && length > 0) {
+      listener.onDataCell();
+    }
+  }
+
+  /** Grows `buffer` if needed so `count` more bytes fit after `limit`. */
+  private void ensureCapacity(int count) {
+    if (buffer.length - limit < count) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, limit + count));
+    }
   }
 }
@@ -0,0 +1,287 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A `CircuitPool` keeps the proxy's circuits through the tor network and picks the circuit
+    for each new stream. It keeps `size` circuits in use and `spares` more built but unused.
+    A circuit that fails is replaced by a spare straight away, and a new spare is built in
+    the background; the streams on a failed circuit end, and the rest carry on. */
+public class CircuitPool {
+  /** Builds a circuit through the tor network for the proxy. */
+  public interface CircuitBuilder {
+    /** Builds a circuit with id `ProxyCircuit.ID` over a new tor `Socket`.
+        @return The tor `Socket` to the circuit's first hop.
+        @throws IOException If the circuit could not be built. */
+    Socket build() throws IOException;
+  }
+
+  /** The ways a `CircuitPool` can pick the circuit for a new stream. */
+  public enum Selection {
+    /// The circuit with the fewest streams open.
+    LEAST_LOADED,
+    /// The same circuit for every stream to a host while the pool's circuits stay the same,
+    /// so streams to different hosts tend to take different paths.
+    ISOLATE_DESTINATION
+  }
+
+  /// The number of ms to wait before trying again after a circuit fails to build.
+  private static final int REBUILD_DELAY_MS = 1000;
+  /// The number of ms a new stream waits for a circuit when none are built.
+  private static final int ACQUIRE_TIMEOUT_MS = 10000;
+
+  private final int size;
+  private final int spares;
+  private final Selection selection;
+  private final CircuitBuilder builder;
+  /// The circuits in use, for new streams. Only changed with `this` locked.
+  private final List<ProxyCircuit> circuits = new CopyOnWriteArrayList<>();
+  /// The circuits built but not yet in use. Guarded by `this`.
+  private final ArrayDeque<ProxyCircuit> spareCircuits = new ArrayDeque<>();
+  private volatile boolean closed;
+
+  /// The cells delivered and dropped, and the streams overflowed, on circuits no longer in the
+  /// pool.
+  private final AtomicLong retiredDelivered = new AtomicLong();
+  private final AtomicLong retiredDropped = new AtomicLong();
+  private final AtomicLong retiredOverflowed = new AtomicLong();
+  /// The times a stream found every stream id in use, on circuits no longer in the pool.
+  private final AtomicLong retiredExhaustions = new AtomicLong();
+
+  /** Creates an empty pool. Call `build` or `start` to build its circuits.
+      @param size The number of circuits to keep in use.
+      @param spares The number of circuits to keep built but unused.
+      @param selection How to pick the circuit for a new stream.
+      @param builder Builds each circuit. */
+  public CircuitPool(int size, int spares, Selection selection, CircuitBuilder builder) {
+    this.size = Math.max(1, size);
+    this.spares = Math.max(0, spares);
+    this.selection = selection;
+    this.builder = builder;
+  }
+
+  /** Builds one circuit and adds it to the pool, in use if fewer than `size` are, or else as a
+      spare.
+      @return `true` if and only if the circuit was built. */
+  public boolean build() {
+    Socket gatewaySocket;
+    try {
+      gatewaySocket = builder.build();
+    } catch (IOException e) {
+      return false;
+    }
+
+    ProxyCircuit circuit = new ProxyCircuit(gatewaySocket, this::failed);
+    synchronized (this) {
+      if (circuit.failed() || closed) {
+        // Already gone, so `failed` had nothing to remove.
+        circuit.destroy();
+        return false;
+      }
+      if (circuits.size() < size) {
+        circuits.add(circuit);
+      } else {
+        spareCircuits.add(circuit);
+      }
+      notifyAll();
+    }
+    return true;
+  }
+
+  /** Starts a thread that builds circuits until the pool has `size` in use and `spares`
+      spare, and replaces those that fail for as long as the pool is open. */
+  public void start() {
+    Thread rebuildThread = new Thread(() -> {
+      while (!closed) {
+        if (!full()) {
+          if (!build()) {
+            sleep(REBUILD_DELAY_MS);
+          }
+          continue;
+        }
+        synchronized (this) {
+          try {
+            while (!closed && full()) {
+              wait();
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "CircuitPool rebuild");
+    rebuildThread.setDaemon(true);
+    rebuildThread.start();
+  }
+
+  /** Picks the circuit for a new stream to `host` and counts the stream on it, waiting up to
+      `ACQUIRE_TIMEOUT_MS` for a circuit to be built if there are none. The caller must
+      `release` the circuit when the stream ends.
+      @return The circuit, or `null` if there are none. */
+  public ProxyCircuit acquire(String host) {
+    long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+    while (true) {
+      ProxyCircuit circuit = select(host);
+      if (circuit != null) {
+        circuit.acquire();
+        return circuit;
+      }
+
+      long wait = deadline - System.currentTimeMillis();
+      if (closed || wait <= 0) {
+        return null;
+      }
+      synchronized (this) {
+        try {
+          wait(Math.min(wait, REBUILD_DELAY_MS));
+        } catch (InterruptedException e) {
+          return null;
+        }
+      }
+    }
+  }
+
+  /** Counts a stream that `acquire` returned `circuit` for as closed. */
+  public void release(ProxyCircuit circuit) {
+    circuit.release();
+  }
+
+  /** Destroys every circuit and stops rebuilding them. */
+  public void close() {
+    List<ProxyCircuit> all;
+    synchronized (this) {
+      closed = true;
+      all = new ArrayList<>(circuits);
+      all.addAll(spareCircuits);
+      circuits.clear();
+      spareCircuits.clear();
+      notifyAll();
+    }
+    for (ProxyCircuit circuit : all) {
+      circuit.destroy();
+      retire(circuit);
+    }
+  }
+
+  /** Returns the number of circuits in use. */
+  public int size() {
+    return circuits.size();
+  }
+
+  /** Returns the number of spare circuits. */
+  public synchronized int spares() {
+    return spareCircuits.size();
+  }
+
+  /** Returns the number of cells passed to streams on the pool's circuits. */
+  public long deliveredCells() {
+    long count = retiredDelivered.get();
+    for (ProxyCircuit circuit : live()) {
+      count += circuit.distributor.deliveredCells();
+    }
+    return count;
+  }
+
+  /** Returns the number of cells dropped on the pool's circuits because their stream wasn't
+      open. */
+  public long droppedCells() {
+    long count = retiredDropped.get();
+    for (ProxyCircuit circuit : live()) {
+      count += circuit.distributor.droppedCells();
+    }
+    return count;
+  }
+
+  /** Returns the number of streams on the pool's circuits ended because their mailbox was
+      full. */
+  public long overflowedStreams() {
+    long count = retiredOverflowed.get();
+    for (ProxyCircuit circuit : live()) {
+      count += circuit.distributor.overflowedStreams();
+    }
+    return count;
+  }
+
+  /** Returns the number of times a new stream found every stream id on its circuit in use. */
+  public long streamIdExhaustions() {
+    long count = retiredExhaustions.get();
+    for (ProxyCircuit circuit : live()) {
+      count += circuit.streamIds.exhaustions();
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d in use, %d spare, %d cells delivered, %d dropped, " +
+        "%d streams overflowed, %d stream id exhaustions", size(), spares(), deliveredCells(),
+        droppedCells(), overflowedStreams(), streamIdExhaustions());
+  }
+
+  /** Returns the circuits in use and spare. */
+  private synchronized List<ProxyCircuit> live() {
+    List<ProxyCircuit> all = new ArrayList<>(circuits);
+    all.addAll(spareCircuits);
+    return all;
+  }
+
+  /** Adds the counts of a circuit leaving the pool to the pool's totals. */
+  private void retire(ProxyCircuit circuit) {
+    retiredDelivered.addAndGet(circuit.distributor.deliveredCells());
+    retiredDropped.addAndGet(circuit.distributor.droppedCells());
+    retiredOverflowed.addAndGet(circuit.distributor.overflowedStreams());
+    retiredExhaustions.addAndGet(circuit.streamIds.exhaustions());
+  }
+
+  /** Returns `true` if and only if the pool has all the circuits it keeps. */
+  private synchronized boolean full() {
+    return circuits.size() >= size && spareCircuits.size() >= spares;
+  }
+
+  /** Returns the circuit for a new stream to `host`, or `null` if there are none. */
+  private ProxyCircuit select(String host) {
+    List<ProxyCircuit> usable = new ArrayList<>(circuits);
+    usable.removeIf(ProxyCircuit::failed);
+    if (usable.isEmpty()) {
+      return null;
+    } else if (selection == Selection.ISOLATE_DESTINATION) {
+      return usable.get(Math.floorMod(host == null ? 0 : host.hashCode(), usable.size()));
+    }
+
+    ProxyCircuit leastLoaded = usable.get(0);
+    for (ProxyCircuit circuit : usable) {
+      if (circuit.streams() < leastLoaded.streams()) {
+        leastLoaded = circuit;
+      }
+    }
+    return leastLoaded;
+  }
+
+  /** Removes a failed circuit, putting a spare in use in its place, so the rebuild thread
+      only has to build a new spare. */
+  private synchronized void failed(ProxyCircuit circuit) {
+    if (circuits.remove(circuit)) {
+      ProxyCircuit spare = spareCircuits.poll();
+      if (spare != null) {
+        circuits.add(spare);
+      }
+      retire(circuit);
+    } else if (spareCircuits.remove(circuit)) {
+      retire(circuit);
+    }
+    notifyAll();
+  }
+
+  private static void sleep(int ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      // no op
+    }
+  }
+}
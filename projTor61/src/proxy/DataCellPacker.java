@@ -0,0 +1,122 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import src.Cell;
+import src.RelayCommand;
+
+/** DataCellPacker packs the bytes sent on a tor stream into relay data cells, filling each
+    cell before sending it. A partly filled cell is sent when `flush` is called (e.g. at the
+    end of an HTTP header or body), or once it has waited `flushDelayMs` without filling up,
+    so a slow sender's data isn't held back indefinitely. */
+class DataCellPacker {
+  /// Sends partly filled cells that have waited too long, for every DataCellPacker.
+  private static final ScheduledExecutorService flushTimer = makeFlushTimer();
+
+  /// The stream that cells are written to (that of the tor link).
+  private final OutputStream out;
+  /// The cell being filled.
+  private final Cell cell = new Cell(new byte[Cell.SIZE]);
+  /// The number of body bytes in `cell`.
+  private int bodyLength = 0;
+  /// The number of ms a partly filled cell waits for more data before it's sent, or 0 to
+  /// send it at the end of every write.
+  private final int flushDelayMs;
+  /// Whether a timed flush of `cell` is scheduled.
+  private boolean flushScheduled = false;
+  /// The number of cells sent.
+  private int cellsSent = 0;
+
+  /** Creates a packer for one tor stream.
+      @param out The stream of the tor link to write cells to.
+      @param circuitId The id of the circuit the tor stream is on.
+      @param streamId The id of the tor stream.
+      @param flushDelayMs The number of ms a partly filled cell waits for more data before
+                          it's sent, or 0 to send it at the end of every write. */
+  DataCellPacker(OutputStream out, int circuitId, int streamId, int flushDelayMs) {
+    this.out = out;
+    this.flushDelayMs = flushDelayMs;
+    cell.setRelayHeader(circuitId, streamId, RelayCommand.DATA, 0);
+  }
+
+  /** Packs `len` bytes of `b` starting at `off` into cells, sending each cell that fills up.
+      @return The number of cells sent by this call. */
+  synchronized int write(byte[] b, int off, int len) throws IOException {
+    int sent = 0;
+    while (len > 0) {
+      int count = Math.min(len, Cell.MAX_BODY_LENGTH - bodyLength);
+      System.arraycopy(b, off, cell.bytes(), Cell.BODY_OFFSET + bodyLength, count);
+      bodyLength += count;
+      off += count;
+      len -= count;
+      if (bodyLength == Cell.MAX_BODY_LENGTH) {
+        send();
+        sent++;
+      }
+    }
+
+    if (bodyLength > 0) {
+      if (flushDelayMs == 0) {
+        send();
+        sent++;
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        flushTimer.schedule(this::timedFlush, flushDelayMs, TimeUnit.MILLISECONDS);
+      }
+    }
+    return sent;
+  }
+
+  /** Packs all of `b` into cells, sending each cell that fills up.
+      @return The number of cells sent by this call. */
+  int write(byte[] b) throws IOException {
+    return write(b, 0, b.length);
+  }
+
+  /** Sends the partly filled cell, if there is one.
+      @return The number of cells sent by this call (0 or 1). */
+  synchronized int flush() throws IOException {
+    if (bodyLength == 0) {
+      return 0;
+    }
+    send();
+    return 1;
+  }
+
+  /** Returns the number of cells sent so far. */
+  synchronized int cellsSent() {
+    return cellsSent;
+  }
+
+  private synchronized void timedFlush() {
+    flushScheduled = false;
+    try {
+      flush();
+    } catch (IOException e) {
+      // no op; the next write will fail the same way and report it
+    }
+  }
+
+  /** Writes `cell` with its first `bodyLength` body bytes, then empties it. */
+  private void send() throws IOException {
+    byte[] bytes = cell.bytes();
+    cell.setBodyLength(bodyLength);
+    // Don't leak the tail of a previous cell's data.
+    Arrays.fill(bytes, Cell.BODY_OFFSET + bodyLength, Cell.SIZE, (byte) 0);
+    out.write(bytes);
+    bodyLength = 0;
+    cellsSent++;
+  }
+
+  private static ScheduledExecutorService makeFlushTimer() {
+    return Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "DataCellPacker flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
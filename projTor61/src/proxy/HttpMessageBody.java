@@ -0,0 +1,179 @@
+package proxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** HttpMessageBody finds where the body of an HTTP/1.1 message ends (RFC 7230 section 3.3.3)
+    and copies it, so that several messages can be passed on, one after another, over one
+    connection. Header lines are as returned by `BufferedStreamReader.readLine`, with their
+    line terminators. */
+final class HttpMessageBody {
+  /** Where a body's bytes are copied to. */
+  interface Sink {
+    void write(byte[] b, int off, int len) throws IOException;
+  }
+
+  /// The length of a body sent with chunked transfer coding.
+  static final long CHUNKED = -1;
+  /// The length of a response body that ends when the server closes the connection.
+  static final long UNTIL_CLOSE = -2;
+
+  private HttpMessageBody() {}
+
+  /** Returns the length of the body that follows a request header.
+      @param header The lines of the header, including the request line.
+      @return The number of bytes in the body, or `CHUNKED`. */
+  static long requestLength(List<String> header) {
+    if (isChunked(header)) {
+      return CHUNKED;
+    }
+    long contentLength = contentLength(header);
+    return contentLength == -1 ? 0 : contentLength;
+  }
+
+  /** Returns the length of the body that follows a response header.
+      @param header The lines of the header, including the status line.
+      @param requestMethod The method of the request the response answers.
+      @return The number of bytes in the body, `CHUNKED` or `UNTIL_CLOSE`. */
+  static long responseLength(List<String> header, String requestMethod) {
+    int status = statusCode(header.get(0));
+    if (requestMethod.equalsIgnoreCase("HEAD") || (status >= 100 && status < 200) ||
+        status == 204 || status == 304) {
+      return 0;
+    }
+    if (isChunked(header)) {
+      return CHUNKED;
+    }
+    long contentLength = contentLength(header);
+    return contentLength == -1 ? UNTIL_CLOSE : contentLength;
+  }
+
+  /** Returns `true` if and only if the connection a message was sent on stays open after it:
+      HTTP/1.1 unless it says `Connection: close`, or HTTP/1.0 if it says
+      `Connection: keep-alive`.
+      @param header The lines of the header, including the request or status line. */
+  static boolean keepsAlive(List<String> header) {
+    String connection = headerValue(header, "Connection");
+    if (connection != null && connection.toLowerCase().contains("close")) {
+      return false;
+    }
+    if (header.get(0).toUpperCase().contains("HTTP/1.0")) {
+      return connection != null && connection.toLowerCase().contains("keep-alive");
+    }
+    return true;
+  }
+
+  /** Returns the status code in a status line, or -1 if it has none. */
+  static int statusCode(String statusLine) {
+    String[] parts = statusLine.trim().split(" ", 3);
+    if (parts.length < 2) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Copies a body from `reader` to `sink`, unchanged (chunk sizes and trailers included).
+      @param length The length of the body, as returned by `requestLength` or `responseLength`.
+      @param chunk A buffer to copy through.
+      @return `true` if and only if the whole body was copied. */
+  static boolean copy(BufferedStreamReader reader, long length, Sink sink, byte[] chunk)
+      throws IOException {
+    if (length == CHUNKED) {
+      return copyChunked(reader, sink, chunk);
+    }
+    while (length != 0) {
+      int max = length == UNTIL_CLOSE ? chunk.length : (int) Math.min(chunk.length, length);
+      int count = reader.read(chunk, 0, max);
+      if (count == -1) {
+        return length == UNTIL_CLOSE;
+      }
+      sink.write(chunk, 0, count);
+      if (length != UNTIL_CLOSE) {
+        length -= count;
+      }
+    }
+    return true;
+  }
+
+  private static boolean copyChunked(BufferedStreamReader reader, Sink sink, byte[] chunk)
+      throws IOException {
+    while (true) {
+      String sizeLine = reader.readLine();
+      if (sizeLine == null) {
+        return false;
+      }
+      writeLine(sink, sizeLine);
+      long size;
+      try {
+        int extensionIndex = sizeLine.indexOf(';');
+        size = Long.parseLong(
+            (extensionIndex == -1 ? sizeLine : sizeLine.substring(0, extensionIndex)).trim(), 16);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+
+      if (size == 0) {
+        // The trailer, ended by a blank line.
+        String line;
+        while ((line = reader.readLine()) != null) {
+          writeLine(sink, line);
+          if (line.equals("\n") || line.equals("\r\n")) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      // The chunk's data, then the line break after it.
+      if (!copy(reader, size, sink, chunk)) {
+        return false;
+      }
+      String lineBreak = reader.readLine();
+      if (lineBreak == null) {
+        return false;
+      }
+      writeLine(sink, lineBreak);
+    }
+  }
+
+  private static void writeLine(Sink sink, String line) throws IOException {
+    byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+    sink.write(bytes, 0, bytes.length);
+  }
+
+  private static boolean isChunked(List<String> header) {
+    String transferEncoding = headerValue(header, "Transfer-Encoding");
+    return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+  }
+
+  /** Returns the Content-Length of a message, or -1 if it has none or it's invalid. */
+  private static long contentLength(List<String> header) {
+    String value = headerValue(header, "Content-Length");
+    if (value == null) {
+      return -1;
+    }
+    try {
+      long contentLength = Long.parseLong(value);
+      return contentLength < 0 ? -1 : contentLength;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Returns the trimmed value of the first header field named `name`, or `null`. */
+  static String headerValue(List<String> header, String name) {
+    for (int i = 1; i < header.size(); i++) {
+      String line = header.get(i);
+      int separatorIndex = line.indexOf(':');
+      if (separatorIndex != -1 && line.substring(0, separatorIndex).trim().equalsIgnoreCase(name)) {
+        return line.substring(separatorIndex + 1).trim();
+      }
+    }
+    return null;
+  }
+}
@@ -1,20 +1,29 @@
 package proxy;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import src.Cell;
+import src.FlowWindow;
+import src.RelayCommand;
+import src.TaskExecutor;
+import src.TorConfig;
 
 /** HttpRequestThread sends one HTTP or HTTP connect request from the browser client to the
     server, then sends the response from the server to the browser. The request
-    will always be downgraded to HTTP/1.0 and Connection: close. If the request is
+    will always be downgraded to HTTP/1.0 and Connection: close, unless
+    `TorConfig.keepAlive` is set, in which case requests are passed on unchanged for as long
+    as the browser and server keep the connection alive. If the request is
     for connect, it starts two threads to relay the data in both directions. */
-public class HttpRequestThread extends Thread {
+public class HttpRequestThread implements Runnable {
   /** Callbacks for events in a HttpRequestThread. */
   public interface HttpRequestListener {
     /** Called when a request is received from the client socket.
@@ -23,31 +32,52 @@ public class HttpRequestThread extends Thread {
   }
   /// The number of ms to wait for a read from a socket before giving up and closing the connection.
   public static final int SO_TIMEOUT_MS = 5000;
+  /// The most bytes of request or response data copied at once: the bodies of 32 cells.
+  private static final int DATA_CHUNK_SIZE = 32 * Cell.MAX_BODY_LENGTH;
 
   /// The socket for communication with the browser client.
   private Socket clientSocket;
-  /// The socket for communication with the server.
+  /// The circuits to choose from for each tor stream.
+  private final CircuitPool circuitPool;
+  /// Runs the thread that relays a tunnel's data from the browser.
+  private final TaskExecutor tasks;
+  /// The circuit the tor stream `streamId` is on, or `null` if it has none.
+  private ProxyCircuit circuit;
+  /// The tor `Socket` of the circuit the tor stream `streamId` is on.
   private Socket serverSocket;
   /// An HttpRequestListener that is called when events occur in this thread.
   private HttpRequestListener listener;
   private BlockingQueue<byte[]> responseBuf;
+  /// The id of the tor stream on `circuit`, given out by the circuit when the stream begins.
   private int streamId;
-  private int circuitId = 1;
+  private int circuitId = ProxyCircuit.ID;
+  /// The host and port of the server the tor stream `streamId` is to.
+  private String originHost;
+  private int originPort;
+  /// The number of data cells read from the tor stream `streamId` since the last stream
+  /// sendme was sent for it.
+  private int cellsSinceSendme;
 
   /** Sole constructor.
       @param clientSocket The socket for communication with the browser (must not be null).
-      @param listener The HttpRequestListener to call when events occur in this thread. */
-  public HttpRequestThread(Socket clientSocket, HttpRequestListener listener, Socket torSocket) {
+      @param listener The HttpRequestListener to call when events occur in this thread.
+      @param circuitPool The circuits to choose from for each tor stream.
+      @param tasks Runs the thread that relays a tunnel's data from the browser. */
+  public HttpRequestThread(Socket clientSocket, HttpRequestListener listener,
+                           CircuitPool circuitPool, TaskExecutor tasks) {
     try {
       clientSocket.setSoTimeout(SO_TIMEOUT_MS);
+      // Responses are written a header or many cells at a time, so Nagle's algorithm has
+      // nothing to coalesce; it would only hold a body back until the header is acknowledged.
+      clientSocket.setTcpNoDelay(true);
     } catch (IOException e) {
       // no op
     }
     this.clientSocket = clientSocket;
-    this.serverSocket = torSocket;
+    this.circuitPool = circuitPool;
+    this.tasks = tasks;
     this.listener = listener;
-    this.responseBuf = new LinkedBlockingQueue<>();
-    this.streamId = StreamIdGenerator.next();
+    this.responseBuf = StreamDispatcher.newMailbox();
   }
 
   @Override
@@ -62,7 +92,7 @@ public class HttpRequestThread extends Thread {
       }
 
       if (listener != null) {
-        listener.onRequestReceived(modifyHttpHeaderLine(line));
+        listener.onRequestReceived(TorConfig.keepAlive ? line : modifyHttpHeaderLine(line));
       }
 
       List<String> bufferedLines = new ArrayList<>();
@@ -86,28 +116,38 @@ public class HttpRequestThread extends Thread {
           }
         }
 
-        (new RawDataRelayThread(serverSocket, clientSocket, streamId, circuitId)).start();
+        try {
+          tasks.execute(new RawDataRelayThread(serverSocket, clientSocket, reader, streamId,
+                                               circuitId));
+        } catch (RejectedExecutionException e) {
+          endStream(false);
+          clientSocket.getOutputStream().write("HTTP/1.0 503 Service Unavailable\r\n\r\n".getBytes());
+          clientSocket.close();
+          return;
+        }
         clientSocket.getOutputStream().write("HTTP/1.0 200 OK\r\n\r\n".getBytes());
         clientSocket.setSoTimeout(0);
         serverSocket.setSoTimeout(0);
-        BufferedStreamReader responseReader = new BufferedStreamReader(responseBuf);
-        int curr;
-        while ((curr = responseReader.read()) != -1) {
-          clientSocket.getOutputStream().write(curr);
-        }
+        relayResponseData(newResponseReader(), clientSocket.getOutputStream());
         clientSocket.close();
       } else {
         if (serverSocket == null) {
+          // No circuit to send it on.
+          clientSocket.getOutputStream().write("HTTP/1.0 502 Bad Gateway\r\n\r\n".getBytes());
+          clientSocket.close();
           return;
         }
-
-        while (!bufferedLines.isEmpty()) {
-          // Send the lines of the header that have been read.
-          writeTorData(serverSocket, modifyHttpHeaderLine(bufferedLines.remove(0)).getBytes());
+        if (TorConfig.keepAlive) {
+          handlePersistentConnection(reader, bufferedLines, opened);
+          return;
         }
 
-        handleHttpMessage(clientSocket, serverSocket);
+        DataCellPacker packer = new DataCellPacker(serverSocket.getOutputStream(), circuitId,
+                                                   streamId, TorConfig.cellFlushMs);
+        handleHttpMessage(reader, bufferedLines, packer);
         handleHttpResponse(clientSocket);
+        // The exit node may still have the stream open, e.g. if the response timed out.
+        endStream(false);
       }
     } catch (IOException e) {
       try {
@@ -119,85 +159,234 @@ public class HttpRequestThread extends Thread {
         // no op
       }
       return;
+    } finally {
+      releaseStream();
     }
   }
 
-  private byte[] dataCell = new byte[512];
-  private int dataCellOffset = 14;
-
-  private void writeTorData(Socket writeSocket, byte[] data) throws IOException {
-    dataCell[0] = (byte) (circuitId >> 8);
-    dataCell[1] = (byte) circuitId;
-    dataCell[2] = 3; // relay
-    dataCell[3] = (byte) (streamId >> 8);
-    dataCell[4] = (byte) streamId;
-    dataCell[11] = (byte) ((512 - 14) >> 8);
-    dataCell[12] = (byte) (512 - 14);
-    dataCell[13] = 2; // relay data
-
-    for (int i = 0; i < data.length; i++) {
-      dataCell[dataCellOffset] = data[i];
-      dataCellOffset++;
-      if (dataCellOffset == 512) {
-        writeSocket.getOutputStream().write(dataCell);
-        dataCellOffset = 14;
-      }
+  /** Sends an HTTP request read by reader to the tor stream, rewriting only its header. The
+      body after the header is framed by `HttpMessageBody`, as on persistent connections.
+      @param bufferedLines The lines of the header that have already been read. The rest of
+                           the header is read onto its end.
+      @param packer The packer for the tor stream.
+      @return The number of cells sent. */
+  // Package-private for the benchmarks.
+  int handleHttpMessage(BufferedStreamReader reader, List<String> bufferedLines,
+                        DataCellPacker packer) throws IOException {
+    boolean headerEnded = readHeader(reader, bufferedLines);
+    for (String line : bufferedLines) {
+      packer.write(modifyHttpHeaderLine(line).getBytes(StandardCharsets.ISO_8859_1));
     }
-
-    if (dataCell[dataCellOffset - 1] == (int) '\n' && (dataCell[dataCellOffset - 2] == (int) '\n' ||
-        dataCell[dataCellOffset - 3] == (int) '\n')) {
-      dataCell[11] = (byte) ((dataCellOffset - 14) >> 8);
-      dataCell[12] = (byte) (dataCellOffset - 14);
-      for (int i = dataCellOffset; i < 512; i++) {
-        dataCell[i] = 0;
-      }
-      writeSocket.getOutputStream().write(dataCell);
-      dataCell[11] = (byte) ((512 - 14) >> 8);
-      dataCell[12] = (byte) (512 - 14);
-      dataCellOffset = 14;
+    if (headerEnded) {
+      // Send the body straight after the header, without a partial cell in between.
+      HttpMessageBody.copy(reader, HttpMessageBody.requestLength(bufferedLines), packer::write,
+                           new byte[DATA_CHUNK_SIZE]);
     }
+    packer.flush();
+    return packer.cellsSent();
   }
 
-  /** Handles an HTTP header and body sent from readSocket to writeSocket. */
-  private void handleHttpMessage(Socket readSocket, Socket writeSocket) throws IOException {
-    BufferedStreamReader reader = new BufferedStreamReader(readSocket.getInputStream());
+  /** Sends the response arriving on the stream to writeSocket, rewriting only its header. */
+  private void handleHttpResponse(Socket writeSocket) throws IOException {
+    BufferedStreamReader reader = newResponseReader();
+    OutputStream out = writeSocket.getOutputStream();
+    StringBuilder header = new StringBuilder();
     String line;
     while ((line = reader.readLine()) != null) {
-      writeTorData(writeSocket, modifyHttpHeaderLine(line).getBytes());
+      header.append(modifyHttpHeaderLine(line));
       if (line.equals("\n") || line.equals("\r\n")) {
         break;
       }
     }
+    out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+    relayResponseData(reader, out);
 
-    //(new RawDataRelayThread(writeSocket, readSocket, streamId, circuitId)).run();
+    writeSocket.close();
+    //(new RawDataRelayThread(writeSocket, reader, streamId, circuitId)).run();
   }
 
-  private void handleHttpResponse(Socket writeSocket) throws IOException {
-    BufferedStreamReader reader = new BufferedStreamReader(responseBuf);
-    String line;
-    while ((line = reader.readLine()) != null) {
-      writeSocket.getOutputStream().write(modifyHttpHeaderLine(line).getBytes());
-      if (line.equals("\n") || line.equals("\r\n")) {
+  /** Passes requests from the browser to servers, and their responses back, for as long as
+      the browser and the servers keep the connection alive. Requests to the same server reuse
+      one tor stream; a request to another server ends it and begins a new one. Requests the
+      browser sends without waiting for a response (pipelining) are answered in order, one at
+      a time. The connection is closed once it has been idle for
+      `TorConfig.keepAliveIdleMs`.
+      @param header The lines of the first request's header that have already been read.
+      @param opened Whether the tor stream for the first request was opened. */
+  private void handlePersistentConnection(BufferedStreamReader reader, List<String> header,
+                                          boolean opened) throws IOException {
+    OutputStream out = clientSocket.getOutputStream();
+    byte[] chunk = new byte[DATA_CHUNK_SIZE];
+    BufferedStreamReader responseReader = newResponseReader();
+    DataCellPacker packer = new DataCellPacker(serverSocket.getOutputStream(), circuitId,
+                                               streamId, TorConfig.cellFlushMs);
+    // `true` while every response on the stream has been read in full, so ending the stream
+    // leaves nothing in flight on the exit node's web server connection.
+    boolean clean = true;
+    while (readHeader(reader, header)) {
+      if (!opened) {
+        out.write("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n".getBytes());
         break;
       }
+      clean = false;
+
+      // Send the request.
+      String method = header.get(0).trim().split(" ")[0];
+      for (String line : header) {
+        if (!line.toLowerCase().startsWith("proxy-connection:")) {
+          packer.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        }
+      }
+      if (!HttpMessageBody.copy(reader, HttpMessageBody.requestLength(header), packer::write,
+                                chunk)) {
+        break;
+      }
+      packer.flush();
+
+      // Send the response back, after any interim (1xx) responses.
+      List<String> responseHeader = new ArrayList<>();
+      int status = -1;
+      do {
+        responseHeader.clear();
+        if (!readHeader(responseReader, responseHeader)) {
+          break;
+        }
+        writeHeader(out, responseHeader);
+        status = HttpMessageBody.statusCode(responseHeader.get(0));
+      } while (status >= 100 && status < 200 && status != 101);
+      if (responseHeader.isEmpty() || status == 101) {
+        // The stream ended, or switched to a protocol that can't be framed.
+        break;
+      }
+      long responseLength = HttpMessageBody.responseLength(responseHeader, method);
+      if (!HttpMessageBody.copy(responseReader, responseLength, out::write, chunk) ||
+          responseLength == HttpMessageBody.UNTIL_CLOSE ||
+          !HttpMessageBody.keepsAlive(header) || !HttpMessageBody.keepsAlive(responseHeader)) {
+        break;
+      }
+      clean = true;
+
+      // Wait for the next request.
+      clientSocket.setSoTimeout(TorConfig.keepAliveIdleMs);
+      String line = reader.readLine();
+      if (line == null) {
+        break;
+      }
+      clientSocket.setSoTimeout(SO_TIMEOUT_MS);
+      if (listener != null) {
+        listener.onRequestReceived(line);
+      }
+      header = new ArrayList<>();
+      header.add(line);
+      if (!readHeader(reader, header)) {
+        break;
+      }
+
+      String previousHost = originHost;
+      int previousPort = originPort;
+      setOrigin(line, HttpMessageBody.headerValue(header, "Host"));
+      if (!originHost.equals(previousHost) || originPort != previousPort ||
+          responseReader.hasEnded()) {
+        endStream(clean);
+        responseBuf = StreamDispatcher.newMailbox();
+        responseReader = newResponseReader();
+        // The new stream may be on another circuit.
+        opened = beginStream(true);
+        packer = new DataCellPacker(serverSocket.getOutputStream(), circuitId, streamId,
+                                    TorConfig.cellFlushMs);
+      }
     }
 
-    int curr;
-    while ((curr = reader.read()) != -1) {
-      writeSocket.getOutputStream().write(curr);
+    endStream(clean);
+    clientSocket.close();
+  }
+
+  /** Reads header lines onto the end of `header` until it ends with a blank line.
+      @return `true` if and only if the header is complete. */
+  private static boolean readHeader(BufferedStreamReader reader, List<String> header) {
+    while (header.isEmpty() || !isBlankLine(header.get(header.size() - 1))) {
+      String line = reader.readLine();
+      if (line == null) {
+        return false;
+      }
+      header.add(line);
     }
+    return true;
+  }
 
-    writeSocket.close();
-    /*
-    byte[] endCell = new byte[512];
-    endCell[0] = (byte) (circuitId >> 8);
-    endCell[1] = (byte) circuitId;
-    endCell[2] = 3; // relay
-    endCell[4] = (byte) (streamId >> 8);
-    endCell[5] = (byte) streamId;
-    endCell[13] = 3; // end
-    serverSocket.getOutputStream().write(endCell);*/
-    //(new RawDataRelayThread(writeSocket, reader, streamId, circuitId)).run();
+  private static boolean isBlankLine(String line) {
+    return line.equals("\n") || line.equals("\r\n");
+  }
+
+  private static void writeHeader(OutputStream out, List<String> header) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    for (String line : header) {
+      builder.append(line);
+    }
+    out.write(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /** Returns a reader for `responseBuf` that asks the exit node for more of the tor stream
+      `streamId` as its data cells are read. */
+  private BufferedStreamReader newResponseReader() {
+    cellsSinceSendme = 0;
+    return new BufferedStreamReader(responseBuf, this::onResponseCell);
+  }
+
+  /** Sends a stream sendme for every `FlowWindow.STREAM_INCREMENT` non-empty data cells read,
+      so the exit node only gets ahead of the browser by the stream's window. */
+  private void onResponseCell() {
+    if (++cellsSinceSendme < FlowWindow.STREAM_INCREMENT) {
+      return;
+    }
+    cellsSinceSendme = 0;
+    Cell sendmeCell = new Cell(new byte[Cell.SIZE]);
+    sendmeCell.setRelayHeader(circuitId, streamId, RelayCommand.SENDME, 0);
+    try {
+      serverSocket.getOutputStream().write(sendmeCell.bytes());
+    } catch (IOException e) {
+      // no op; the tor link is gone, and so is the stream
+    }
+  }
+
+  /** Ends the tor stream `streamId`, so the exit node closes its connection to the server, or
+      keeps it for another stream if the stream was framed and ended cleanly.
+      @param clean `true` if and only if every response on the stream was read in full. */
+  private void endStream(boolean clean) throws IOException {
+    if (circuit == null) {
+      return;
+    }
+    Cell endCell = new Cell(new byte[Cell.SIZE]);
+    endCell.setRelayHeader(circuitId, streamId, RelayCommand.END, 0);
+    if (clean) {
+      endCell.setEndBody(Cell.END_CLEAN);
+    }
+    try {
+      serverSocket.getOutputStream().write(endCell.bytes());
+    } finally {
+      releaseStream();
+    }
+  }
+
+  /** Stops passing on the cells of the tor stream `streamId`, gives its id back to its circuit
+      and counts it as closed there. */
+  private void releaseStream() {
+    if (circuit != null) {
+      circuit.distributor.removeStream(streamId);
+      circuit.streamIds.release(streamId);
+      circuitPool.release(circuit);
+      circuit = null;
+    }
+  }
+
+  /** Writes everything left on a stream to out, as many cells' worth at a time as have arrived. */
+  private static void relayResponseData(BufferedStreamReader reader, OutputStream out) throws IOException {
+    byte[] chunk = new byte[DATA_CHUNK_SIZE];
+    int count;
+    while ((count = reader.read(chunk, 0, chunk.length)) != -1) {
+      out.write(chunk, 0, count);
+    }
   }
 
   /** Parses an HTTP header line to downgrade to HTTP/1.0 and Connection: close.
@@ -236,55 +425,81 @@ public class HttpRequestThread extends Thread {
       return false;
     }
 
-    String[] alternateComponents = bufferedLines.get(0).toLowerCase().split(" ")[1].split(":");
+    setOrigin(bufferedLines.get(0), line == null ? null : line.substring(5).trim());
+    // Only `handlePersistentConnection` frames the messages on its streams.
+    return beginStream(TorConfig.keepAlive &&
+                       !bufferedLines.get(0).trim().toLowerCase().startsWith("connect"));
+  }
+
+  /** Sets `originHost` and `originPort` to the server a request is for.
+      @param firstLine The first line of the request.
+      @param hostLine The value of the request's Host header field, or `null` if it has none. */
+  private void setOrigin(String firstLine, String hostLine) {
+    String[] alternateComponents = firstLine.toLowerCase().split(" ")[1].split(":");
     String[] ipComponents;
-    if (line == null) {
+    if (hostLine == null) {
       ipComponents = alternateComponents;
     } else {
-      ipComponents = line.substring(6).trim().split(":");
+      ipComponents = hostLine.split(":");
     }
 
-    String ip = ipComponents[0];
-    int iport = -1;
+    // Host names are case insensitive; one spelling lets the exit node's caches match them.
+    originHost = ipComponents[0].trim().toLowerCase();
+    originPort = -1;
     if (ipComponents.length == 2) {
-      iport = Integer.parseInt(ipComponents[1]);
+      originPort = Integer.parseInt(ipComponents[1]);
     } else if (alternateComponents.length > 1) {
       try {
-        iport = Integer.parseInt(alternateComponents[alternateComponents.length - 1]);
+        originPort = Integer.parseInt(alternateComponents[alternateComponents.length - 1]);
       } catch (NumberFormatException e) {
         // no op
       }
     }
 
-    if (iport == -1) {
+    if (originPort == -1) {
       // Use default ports.
       if (alternateComponents[0].startsWith("https")) {
-        iport = 443;
+        originPort = 443;
       } else {
-        iport = 80;
+        originPort = 80;
       }
     }
+  }
 
-    byte[] bodyData = (ip + ":" + iport + "\0").getBytes();
-    byte[] beginCell = new byte[512];
-    beginCell[0] = (byte) (circuitId >> 8);
-    beginCell[1] = (byte) circuitId;
-    beginCell[2] = 3; // relay
-    beginCell[3] = (byte) (streamId >> 8);
-    beginCell[4] = (byte) streamId;
-    beginCell[11] = (byte) (bodyData.length >> 8);
-    beginCell[12] = (byte) bodyData.length;
-    beginCell[13] = 1; // begin
-    for (int i = 14; i < 14 + bodyData.length; i++) {
-      beginCell[i] = bodyData[i - 14];
+  /** Begins a tor stream to `originHost`:`originPort` on a circuit from `circuitPool`, and
+      sets `streamId` to the id the circuit gives it.
+      @param framed `true` if every HTTP message on the stream is framed, so the exit node may
+                    keep its web server connection for another stream once it ends cleanly.
+      @return `true` if and only if the exit node connected to the server. */
+  private boolean beginStream(boolean framed) throws IOException {
+    Cell beginCell = new Cell(new byte[Cell.SIZE]);
+    beginCell.setRelayHeader(circuitId, 0, RelayCommand.BEGIN, 0);
+    try {
+      beginCell.setBeginBody(originHost, originPort,
+                             Cell.BEGIN_FLOW_CONTROL | (framed ? Cell.BEGIN_FRAMED : 0));
+    } catch (IllegalArgumentException e) {
+      return false;
     }
 
-    SharedDataDistributionThread.sharedInstance().addStream(this.streamId, this.responseBuf);
-    serverSocket.getOutputStream().write(beginCell);
+    circuit = circuitPool.acquire(originHost);
+    if (circuit == null) {
+      return false;
+    }
+    streamId = circuit.streamIds.allocate();
+    if (streamId == -1) {
+      // Every stream id on the circuit is in use.
+      circuitPool.release(circuit);
+      circuit = null;
+      return false;
+    }
+    serverSocket = circuit.gatewaySocket;
+    beginCell.setStreamId(streamId);
+    circuit.distributor.addStream(this.streamId, this.responseBuf);
+    serverSocket.getOutputStream().write(beginCell.bytes());
 
     try {
       byte[] connectedCell = responseBuf.poll(25000, TimeUnit.MILLISECONDS);
-      return connectedCell != null && connectedCell[2] == 3 && connectedCell[13] == 4;
+      return connectedCell != null && new Cell(connectedCell).isRelay(RelayCommand.CONNECTED);
     } catch (InterruptedException e) {
       return false;
     }
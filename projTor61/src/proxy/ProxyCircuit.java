@@ -0,0 +1,80 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import src.Cell;
+import src.IdAllocator;
+import src.TorCommand;
+
+/** A `ProxyCircuit` is one of the proxy's circuits through the tor network. Each circuit is
+    built over its own tor `Socket` to its first hop, on which it is always circuit `ID`, so a
+    link that fails takes only its own circuit with it. */
+public class ProxyCircuit {
+  /// The circuit id of every proxy circuit on its own tor `Socket`.
+  public static final int ID = 1;
+  /// The highest stream id. Stream id 0 is for cells about the whole circuit.
+  private static final int MAX_STREAM_ID = 0xFFFF;
+
+  /// The tor `Socket` to the circuit's first hop.
+  final Socket gatewaySocket;
+  /// Passes the cells arriving on `gatewaySocket` to their streams.
+  final StreamDispatcher distributor;
+  /// The ids of the streams open on the circuit.
+  final IdAllocator streamIds = new IdAllocator(1, MAX_STREAM_ID);
+  /// The number of streams open on the circuit.
+  private final AtomicInteger streams = new AtomicInteger();
+  private volatile boolean failed;
+
+  /** Creates a circuit and starts reading its cells.
+      @param gatewaySocket The tor `Socket` the circuit was built over.
+      @param onFailure Called once if the circuit's link fails or the circuit is destroyed. */
+  ProxyCircuit(Socket gatewaySocket, Consumer<ProxyCircuit> onFailure) {
+    this.gatewaySocket = gatewaySocket;
+    this.distributor = new StreamDispatcher(gatewaySocket, () -> {
+      failed = true;
+      onFailure.accept(this);
+    });
+    distributor.setDaemon(true);
+    distributor.start();
+  }
+
+  /** Counts a stream opened on this circuit. */
+  void acquire() {
+    streams.incrementAndGet();
+  }
+
+  /** Counts a stream on this circuit as closed. */
+  void release() {
+    streams.decrementAndGet();
+  }
+
+  /** Returns the number of streams open on this circuit. */
+  int streams() {
+    return streams.get();
+  }
+
+  /** Returns `true` if and only if the circuit can no longer carry streams. */
+  boolean failed() {
+    return failed;
+  }
+
+  /** Destroys the circuit and closes its tor `Socket`. */
+  void destroy() {
+    failed = true;
+    Cell destroyCell = new Cell(new byte[Cell.SIZE]);
+    destroyCell.setCircuitId(ID);
+    destroyCell.setCommand(TorCommand.DESTROY);
+    try {
+      gatewaySocket.getOutputStream().write(destroyCell.bytes());
+    } catch (IOException e) {
+      // no op; already gone
+    }
+    try {
+      gatewaySocket.close();
+    } catch (IOException e) {
+      // no op
+    }
+  }
+}
@@ -5,6 +5,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import src.TaskExecutor;
 
 // Assign stream ID to each new HTTPRequest thread
 
@@ -12,21 +14,17 @@ import java.util.Date;
     tunneling. Takes a port number as a command line argument. */
 public class ProxyThread extends Thread {
   /// The port number to accept connections on.
-  public static SharedDataDistributionThread distributorThread;
   private int iport;
-  public final int circuitId;
-  private Socket gatewaySocket;
+  /// The circuits to send browser traffic on.
+  private final CircuitPool circuitPool;
+  /// Runs each browser connection's `HttpRequestThread`.
+  private final TaskExecutor tasks;
   private static ProxyThread sharedInstance;
 
-  public ProxyThread(int iport, int circuitId, Socket gatewaySocket) {
+  public ProxyThread(int iport, CircuitPool circuitPool, TaskExecutor tasks) {
     this.iport = iport;
-    this.circuitId = circuitId;
-    this.gatewaySocket = gatewaySocket;
-    try {
-      gatewaySocket.setSoTimeout(5000);
-    } catch (IOException e) {
-      // no op
-    }
+    this.circuitPool = circuitPool;
+    this.tasks = tasks;
     ProxyThread.sharedInstance = this;
   }
 
@@ -42,39 +40,39 @@ public class ProxyThread extends Thread {
       return;
     }
 
-    ProxyThread.distributorThread = new SharedDataDistributionThread(gatewaySocket);
-    distributorThread.start();
-
     // Accept new TCP connections until proxy is closed.
     while (true) {
+      Socket clientSocket;
+      try {
+        clientSocket = serverSocket.accept();
+      } catch (IOException e) {
+        continue;
+      }
       try {
-        (new HttpRequestThread(serverSocket.accept(), new HttpRequestThread.HttpRequestListener() {
+        tasks.execute(new HttpRequestThread(clientSocket, new HttpRequestThread.HttpRequestListener() {
           @Override
           public void onRequestReceived(String firstHeaderLine) {
             System.out.print(new SimpleDateFormat("dd MMM HH:mm:ss").format(new Date()) +
                              " - >>> " + firstHeaderLine);
           }
-        }, gatewaySocket)).start();
-      } catch (IOException e) {
-        continue;
+        }, circuitPool, tasks));
+      } catch (RejectedExecutionException e) {
+        // Too busy; the browser can try again.
+        try {
+          clientSocket.close();
+        } catch (IOException e2) {
+          // no op
+        }
       }
     }
   }
 
-  public Socket getGatewaySocket() {
-    return this.gatewaySocket;
+  public CircuitPool getCircuitPool() {
+    return this.circuitPool;
   }
 
-  public void setGatewaySocket(Socket gatewaySocket) {
-    if (gatewaySocket == null) {
-      throw new IllegalArgumentException();
-    }
-    this.gatewaySocket = gatewaySocket;
-    try {
-      gatewaySocket.setSoTimeout(5000);
-    } catch (IOException e) {
-      // no op
-    }
+  public TaskExecutor getTaskExecutor() {
+    return this.tasks;
   }
 
   public static ProxyThread sharedInstance() {
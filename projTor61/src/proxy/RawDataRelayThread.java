@@ -4,11 +4,28 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import src.Cell;
+import src.CellBuffer;
+import src.FlowWindow;
+import src.OriginPool;
+import src.RelayCommand;
+import src.TaskExecutor;
 
-/** RawDataRelayThread reads data byte-by-byte from from a TCP socket until it closes, and
-    writes that data byte-by-byte to another TCP socket. Can be used for HTTP connect requests. */
-public class RawDataRelayThread extends Thread {
+/** RawDataRelayThread relays one tor stream's data from a TCP socket into tor until the
+    socket closes or the stream ends. Data is read as many bytes as have arrived at a time, up
+    to a cell body, and sent as relay data cells: written straight to another TCP socket (the
+    proxy's side of an HTTP connect request), or put on a tor link's write queue within the
+    stream and circuit windows (the exit side, where an empty cell is also sent while the web
+    server is idle). On the exit side it also writes the stream's data cells from tor to the
+    web server, through `writeToServer`, and sends a relay end cell once it's done. */
+public class RawDataRelayThread implements Runnable {
   /// The socket connected to the browser to write data to.
   public final Socket writeSocket;
   /// The socket connected to the server to read data from.
@@ -16,9 +33,39 @@ public class RawDataRelayThread extends Thread {
   public final Socket readSocket;
   private int streamId;
   private int circuitId;
-  private boolean killed;
+  private volatile boolean killed;
   private Map<Integer, RawDataRelayThread> removeWhenDone;
-  private BlockingQueue<byte[]> buf;
+  /// The tor link's write queue to put data cells on, or `null` to write them to `writeSocket`.
+  private BlockingQueue<CellBuffer> buf;
+  /// Where `readSocket` goes back to if the stream is released between reads, or `null`.
+  private OriginPool pool;
+  /// The host and port `readSocket` was connected to through `pool`.
+  private String originHost;
+  private int originPort;
+  /// Set when the other end of the circuit ends the stream and `readSocket` may be reused.
+  private volatile boolean released;
+  /// The most ms between cells sent while `readSocket` is idle. An empty data cell is sent
+  /// when this passes without data. Half the proxy's cell timeout, so an idle stream is
+  /// never mistaken there for an ended one.
+  private static final int IDLE_CELL_INTERVAL_MS = BufferedStreamReader.CELL_TIMEOUT_MS / 2;
+  /// The number of data cells that may still be sent on the stream, or `null` if unlimited.
+  private FlowWindow streamWindow;
+  /// The number of data cells that may still be sent on the circuit, or `null` if unlimited.
+  private FlowWindow circuitWindow;
+  /// The number of ms between checks of whether the thread was killed while waiting on a
+  /// window or a full write queue.
+  private static final int WINDOW_WAIT_MS = 1000;
+  /// The most data cells from the tor link that may wait to be written to the web server.
+  /// Cells on that side of a stream have no window, so a stream whose web server falls this
+  /// far behind is ended rather than left to grow without bound.
+  private static final int MAX_QUEUED_WRITES = 8192;
+
+  /// Data cells from the tor link waiting to be written to `readSocket`, in order.
+  private final Queue<CellBuffer> toServer = new ConcurrentLinkedQueue<>();
+  /// The number of cells in `toServer`.
+  private final AtomicInteger queuedWrites = new AtomicInteger();
+  /// `true` while a task is writing `toServer` to `readSocket`.
+  private final AtomicBoolean writing = new AtomicBoolean();
 
   /** Sole constructor.
       @param readSocket The TCP socket to read data from (must not be null).
@@ -37,59 +84,102 @@ public class RawDataRelayThread extends Thread {
     this.readSocket = readSocket;
   }
 
-  public RawDataRelayThread(Socket writeSocket, Socket readSocket, int streamId, int circuitId, Map<Integer, RawDataRelayThread> removeWhenDone, BlockingQueue<byte[]> buf) {
+  public RawDataRelayThread(Socket writeSocket, Socket readSocket, int streamId, int circuitId, Map<Integer, RawDataRelayThread> removeWhenDone, BlockingQueue<CellBuffer> buf) {
     this(writeSocket, readSocket, streamId, circuitId);
     this.removeWhenDone = removeWhenDone;
     this.buf = buf;
   }
 
-  public RawDataRelayThread(Socket writeSocket, BufferedStreamReader reader, int streamId, int circuitId) {
+  /** Creates a thread that relays from a web server connection made by `pool` onto a tor
+      link, giving the connection back to `pool` if the stream is released while it's idle.
+      `readSocket` should have a read timeout, which bounds how long that takes.
+      If `circuitWindow` isn't `null`, data cells are only sent while both the stream's window
+      and `circuitWindow` allow it, and empty data cells are sent while `readSocket` is idle.
+      @param originHost The host `readSocket` was connected to through `pool`.
+      @param originPort The port `readSocket` was connected to through `pool`.
+      @param circuitWindow The window of the circuit the stream is on, or `null` if the proxy
+                           that began the stream doesn't send sendmes. */
+  public RawDataRelayThread(Socket writeSocket, Socket readSocket, int streamId, int circuitId, Map<Integer, RawDataRelayThread> removeWhenDone, BlockingQueue<CellBuffer> buf,
+                            OriginPool pool, String originHost, int originPort, FlowWindow circuitWindow) {
+    this(writeSocket, readSocket, streamId, circuitId, removeWhenDone, buf);
+    this.streamWindow = circuitWindow == null ? null : new FlowWindow(FlowWindow.STREAM_START);
+    this.circuitWindow = circuitWindow;
+    this.pool = pool;
+    this.originHost = originHost;
+    this.originPort = originPort;
+  }
+
+  /** Creates a thread that relays the rest of what `reader` reads from `readSocket`, for when
+      some of it has already been read (e.g. an HTTP connect request's header).
+      @param reader The reader already being used for `readSocket` (must not be null). */
+  public RawDataRelayThread(Socket writeSocket, Socket readSocket, BufferedStreamReader reader, int streamId, int circuitId) {
     this.writeSocket = writeSocket;
     this.reader = reader;
     this.streamId = streamId;
     this.circuitId = circuitId;
     this.killed = false;
-    this.readSocket = null;
+    this.readSocket = readSocket;
   }
 
   @Override
   public void run() {
-    byte[] message = new byte[512];
-    message[0] = (byte) (circuitId >> 8);
-    message[1] = (byte) circuitId;
-    message[2] = 3; // relay
-    message[3] = (byte) (streamId >> 8);
-    message[4] = (byte) streamId;
-    message[5] = 0;
-    message[6] = 0;
-    message[13] = 2; // data
-
-    int offset = 14;
-
     try {
-      byte[] cellData = new byte[512 - 14];
-      int curr;
-      while ((curr = reader.readChunk(cellData)) != -1) {
-        System.arraycopy(cellData, 0, message, 14, curr);
-        message[11] = (byte) (curr >> 8);
-        message[12] = (byte) curr;
-        if (buf == null) {
-          writeSocket.getOutputStream().write(message);
-        } else {
-          byte[] messageCopy = new byte[512];
-          System.arraycopy(message, 0, messageCopy, 0, 512);
-          buf.add(messageCopy);
+      if (buf == null) {
+        Cell message = new Cell(new byte[Cell.SIZE]);
+        int curr;
+        while (!killed &&
+               (curr = reader.readChunk(message.bytes(), Cell.BODY_OFFSET, Cell.MAX_BODY_LENGTH)) != -1) {
+          message.setRelayHeader(circuitId, streamId, RelayCommand.DATA, curr);
+          writeSocket.getOutputStream().write(message.bytes());
+        }
+      } else {
+        // Read straight into the body of a pooled cell, then hand the cell to the link's
+        // writer, which releases it once it's written.
+        Cell message = new Cell();
+        long lastCellMillis = System.currentTimeMillis();
+        boolean reusable = false;
+        while (true) {
+          CellBuffer cell = CellBuffer.allocate().clear();
+          int curr = reader.readChunk(cell.bytes, Cell.BODY_OFFSET, Cell.MAX_BODY_LENGTH);
+          if (curr == -1 || killed || released) {
+            // Only a read that timed out leaves nothing on the connection for its next user.
+            reusable = curr == 0 && released && !killed && pool != null;
+            cell.release();
+            break;
+          }
+          if (curr == 0 && !idleCellDue(lastCellMillis)) {
+            cell.release();
+            continue;
+          }
+          // Empty cells carry no data, so they're sent outside the windows.
+          if (curr != 0 && !takeWindows()) {
+            // Killed or released with data still unsent.
+            cell.release();
+            break;
+          }
+          message.wrap(cell.bytes).setRelayHeader(circuitId, streamId, RelayCommand.DATA, curr);
+          if (!queueCell(cell)) {
+            break;
+          }
+          lastCellMillis = System.currentTimeMillis();
+        }
+        sendEnd();
+        if (reusable) {
+          removeWhenDone.remove(this.streamId, this);
+          pool.release(originHost, originPort, readSocket);
+          return;
         }
       }
       readSocket.close();
       if (removeWhenDone != null) {
-        removeWhenDone.remove(this.streamId);
+        removeWhenDone.remove(this.streamId, this);
       }
-    } catch (IOException e) {
+    } catch (IOException | InterruptedException e) {
       try {
+        sendEnd();
         readSocket.close();
         if (removeWhenDone != null) {
-          removeWhenDone.remove(this.streamId);
+          removeWhenDone.remove(this.streamId, this);
         }
         //writeSocket.close();
       } catch (IOException e2) {
@@ -99,7 +189,141 @@ public class RawDataRelayThread extends Thread {
     }
   }
 
+  /** Queues the body of a data cell from the tor link to be written to the web server by a
+      task from `tasks`, so the caller never waits on the web server. Cells are written in the
+      order they're queued. Takes over the caller's reference to `cell`. */
+  public void writeToServer(CellBuffer cell, TaskExecutor tasks) {
+    if (killed || queuedWrites.incrementAndGet() > MAX_QUEUED_WRITES) {
+      queuedWrites.decrementAndGet();
+      cell.release();
+      // The relay sees the closed socket and ends the stream.
+      closeServer();
+      return;
+    }
+    toServer.add(cell);
+    if (writing.compareAndSet(false, true)) {
+      try {
+        tasks.execute(this::drainWrites);
+      } catch (RejectedExecutionException e) {
+        writing.set(false);
+        closeServer();
+      }
+    }
+  }
+
+  /** Writes the cells in `toServer` to the web server until there are none left. */
+  private void drainWrites() {
+    Cell message = new Cell();
+    do {
+      CellBuffer cell;
+      while ((cell = toServer.poll()) != null) {
+        queuedWrites.decrementAndGet();
+        try {
+          if (!killed) {
+            message.wrap(cell.bytes);
+            readSocket.getOutputStream().write(cell.bytes, Cell.BODY_OFFSET, message.bodyLength());
+          }
+        } catch (IOException e) {
+          closeServer();
+        } finally {
+          cell.release();
+        }
+      }
+      writing.set(false);
+      // A cell queued after the last poll, but before `writing` was cleared, is written here.
+    } while (!toServer.isEmpty() && writing.compareAndSet(false, true));
+  }
+
+  /** Closes the socket being read from without killing the thread, which then ends the
+      stream as if the web server had closed it. */
+  private void closeServer() {
+    try {
+      readSocket.close();
+    } catch (IOException e) {
+      // no op
+    }
+  }
+
+  /** Tells the other end of the circuit that the stream has ended, unless it ended it. */
+  private void sendEnd() {
+    if (buf == null || killed || released) {
+      return;
+    }
+    CellBuffer cell = CellBuffer.allocate().clear();
+    new Cell(cell.bytes).setRelayHeader(circuitId, streamId, RelayCommand.END, 0);
+    buf.add(cell);
+  }
+
+  /** Returns the window of the stream, which relay sendme cells for it add to, or `null` if
+      the stream's data cells aren't limited. */
+  public FlowWindow streamWindow() {
+    return streamWindow;
+  }
+
+  /** Returns `true` if and only if an empty data cell should be sent now to show the proxy that
+      the idle stream is still open: the proxy takes them, none has been sent for
+      `IDLE_CELL_INTERVAL_MS`, and the stream's window isn't low. Empty cells aren't taken from
+      the windows, so they're held back while the proxy is behind, to leave room in its
+      mailbox for the data cells the window still allows.
+      @param lastCellMillis When the last cell was sent. */
+  private boolean idleCellDue(long lastCellMillis) {
+    return streamWindow != null &&
+        System.currentTimeMillis() - lastCellMillis >= IDLE_CELL_INTERVAL_MS &&
+        streamWindow.remaining() >= FlowWindow.STREAM_START / 2;
+  }
+
+  /** Takes a cell from the stream's and the circuit's windows, waiting until both allow it.
+      @return `false` if the thread was killed or released while waiting. */
+  private boolean takeWindows() throws InterruptedException {
+    for (FlowWindow window : new FlowWindow[] {streamWindow, circuitWindow}) {
+      while (window != null && !window.take(WINDOW_WAIT_MS)) {
+        if (killed || released) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Puts a data cell on the tor link's write queue, waiting while the queue is full so that
+      reading from the web server keeps pace with the link.
+      @return `false` if the thread was killed or released while waiting; `cell` is released. */
+  private boolean queueCell(CellBuffer cell) throws InterruptedException {
+    while (!buf.offer(cell, WINDOW_WAIT_MS, TimeUnit.MILLISECONDS)) {
+      if (killed || released) {
+        cell.release();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Stops relaying once the socket being read from is idle and gives it back to the
+      `OriginPool` it came from, because the other end of the circuit ended the stream. Kills
+      the thread instead if the socket didn't come from an `OriginPool`. */
+  public void release() {
+    if (pool == null) {
+      kill();
+      return;
+    }
+    this.released = true;
+  }
+
+  /** Stops relaying and closes the socket being read from, e.g. because the other end of the
+      circuit ended the stream. */
   public void kill() {
     this.killed = true;
+    if (readSocket != null) {
+      try {
+        readSocket.close();
+      } catch (IOException e) {
+        // no op
+      }
+    }
+    CellBuffer cell;
+    while ((cell = toServer.poll()) != null) {
+      queuedWrites.decrementAndGet();
+      cell.release();
+    }
   }
 }
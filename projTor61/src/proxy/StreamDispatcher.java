@@ -0,0 +1,181 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import src.Cell;
+import src.FlowWindow;
+import src.RelayCommand;
+import src.TorCommand;
+
+/** A `StreamDispatcher` reads the cells arriving on one proxy circuit's tor `Socket` and passes
+    each to the mailbox of the stream it is for. If the link fails or the circuit is destroyed,
+    every stream on it is ended.
+
+    Streams are looked up in a concurrent map, so adding and removing streams never holds up
+    the reader, and cells are only ever offered to mailboxes, never put: a stream whose reader
+    falls behind can't stall the other streams on the circuit. Mailboxes are bounded by the
+    stream window, which a well-behaved exit node never overruns; a stream whose mailbox
+    overflows anyway is ended rather than left with a gap in its data. */
+public class StreamDispatcher extends Thread {
+  /// The most cells a stream's mailbox holds: a full stream window of data cells, the relay
+  /// connected cell and the relay end cell.
+  public static final int MAILBOX_CAPACITY = FlowWindow.STREAM_START + 2;
+
+  private final Socket readSocket;
+  /// The mailboxes of the streams open on the circuit, by stream id.
+  private final Map<Integer, BlockingQueue<byte[]>> streams = new ConcurrentHashMap<>();
+  /// Called once the circuit can no longer carry streams.
+  private final Runnable onFailure;
+  /// Set once the circuit has failed, after which new streams are ended as they are added.
+  private volatile boolean failed;
+  /// The number of data cells that have arrived on the circuit since the last circuit sendme
+  /// was sent. Only touched by this thread.
+  private int cellsSinceSendme;
+
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong overflowed = new AtomicLong();
+
+  /** Creates a thread to read the cells of the circuit on `readSocket`.
+      @param onFailure Called once if the link fails or the circuit is destroyed. */
+  public StreamDispatcher(Socket readSocket, Runnable onFailure) {
+    super("StreamDispatcher");
+    this.readSocket = readSocket;
+    this.onFailure = onFailure;
+  }
+
+  /** Returns a new, empty mailbox for a stream, with room for `MAILBOX_CAPACITY` cells. */
+  public static BlockingQueue<byte[]> newMailbox() {
+    return new ArrayBlockingQueue<>(MAILBOX_CAPACITY);
+  }
+
+  @Override
+  public void run() {
+    try {
+      readSocket.setSoTimeout(0); // remove this later
+      Cell cell = new Cell();
+      while (true) {
+        byte[] buf = new byte[512];
+        int totalRead = 0;
+        while (totalRead < 512) {
+          int currentRead = readSocket.getInputStream().read(buf, totalRead, 512 - totalRead);
+          if (currentRead == -1) {
+            return;
+          }
+          totalRead += currentRead;
+        }
+
+        cell.wrap(buf);
+        if (cell.command() == TorCommand.DESTROY) {
+          return;
+        }
+        boolean data = cell.isRelay(RelayCommand.DATA);
+        // Empty data cells are only sent to keep an idle stream open, outside the windows.
+        if (data && cell.bodyLength() > 0) {
+          countCircuitCell();
+        }
+        dispatch(cell.streamId(), buf, data);
+      }
+    } catch (IOException e) {
+      // no op; the circuit is gone
+    } finally {
+      fail();
+    }
+  }
+
+  /** Offers a cell to the mailbox of its stream without waiting. Data cells leave the last
+      slot free, so there is always room for the end cell of a stream that overflows. */
+  private void dispatch(int streamId, byte[] buf, boolean data) throws IOException {
+    BlockingQueue<byte[]> mailbox = streams.get(streamId);
+    if (mailbox == null) {
+      // The stream has ended, or was never begun.
+      dropped.incrementAndGet();
+      return;
+    }
+    if ((!data || mailbox.remainingCapacity() > 1) && mailbox.offer(buf)) {
+      delivered.incrementAndGet();
+      return;
+    }
+
+    // The exit node sent more than the stream's window, or the stream's reader is gone.
+    overflowed.incrementAndGet();
+    if (streams.remove(streamId, mailbox)) {
+      mailbox.offer(endCell(streamId));
+      readSocket.getOutputStream().write(endCell(streamId));
+    }
+  }
+
+  /** Ends every stream on the circuit and reports the failure. */
+  private void fail() {
+    failed = true;
+    for (int streamId : streams.keySet()) {
+      BlockingQueue<byte[]> mailbox = streams.remove(streamId);
+      if (mailbox != null) {
+        mailbox.offer(endCell(streamId));
+      }
+    }
+    try {
+      readSocket.close();
+    } catch (IOException e) {
+      // no op
+    }
+    onFailure.run();
+  }
+
+  /** Returns a relay end cell for `streamId`, which ends its reader as if the exit node had
+      ended the stream. */
+  private static byte[] endCell(int streamId) {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(ProxyCircuit.ID, streamId, RelayCommand.END, 0);
+    return cell.bytes();
+  }
+
+  /** Sends a circuit sendme for every `FlowWindow.CIRCUIT_INCREMENT` data cells that arrive on
+      the circuit. They're counted as they arrive, whether or not their stream is still open,
+      so that cells for ended streams still count towards the circuit's window. */
+  private void countCircuitCell() throws IOException {
+    if (++cellsSinceSendme < FlowWindow.CIRCUIT_INCREMENT) {
+      return;
+    }
+    cellsSinceSendme = 0;
+    Cell sendmeCell = new Cell(new byte[Cell.SIZE]);
+    sendmeCell.setRelayHeader(ProxyCircuit.ID, 0, RelayCommand.SENDME, 0);
+    readSocket.getOutputStream().write(sendmeCell.bytes());
+  }
+
+  /** Stops passing cells to the stream `id`. */
+  public void removeStream(int id) {
+    streams.remove(id);
+  }
+
+  /** Passes the cells of the stream `id` to `mailbox` from now on, or ends the stream straight
+      away if the circuit has already failed.
+      @param mailbox A mailbox from `newMailbox`. */
+  public void addStream(int id, BlockingQueue<byte[]> mailbox) {
+    streams.put(id, mailbox);
+    // Checked after the put: either `fail` sees the stream, or the stream sees `failed`.
+    if (failed && streams.remove(id, mailbox)) {
+      mailbox.offer(endCell(id));
+    }
+  }
+
+  /** Returns the number of cells passed to a stream's mailbox. */
+  public long deliveredCells() {
+    return delivered.get();
+  }
+
+  /** Returns the number of cells dropped because their stream wasn't open. */
+  public long droppedCells() {
+    return dropped.get();
+  }
+
+  /** Returns the number of streams ended because their mailbox was full. */
+  public long overflowedStreams() {
+    return overflowed.get();
+  }
+}
@@ -0,0 +1,41 @@
+package regagent;
+
+import java.util.List;
+
+/** A `LocalRegistry` is a `Registry` whose registrations live in a `ServiceTable` in this
+    process, so nothing is ever sent over the network and every request succeeds right away.
+    Useful for a single node, or for the node of a single-host cluster that also runs the
+    `RegistrationServer` the other nodes use. */
+public class LocalRegistry implements Registry {
+  /// The registrations.
+  private final ServiceTable table;
+
+  /** Sole constructor.
+      @param table The table to keep registrations in. */
+  public LocalRegistry(ServiceTable table) {
+    this.table = table;
+  }
+
+  @Override
+  public boolean registerService(Service service) {
+    service.expirationTimeMillis = table.register(service);
+    return true;
+  }
+
+  @Override
+  public boolean unregisterService(Service service) {
+    table.unregister(service);
+    return true;
+  }
+
+  @Override
+  public Service[] fetchServicesBeginningWith(String start) {
+    List<Service> services = table.fetch(start, Integer.MAX_VALUE);
+    return services.toArray(new Service[services.size()]);
+  }
+
+  @Override
+  public boolean probeServer() {
+    return true;
+  }
+}
@@ -19,18 +19,26 @@ import java.util.List;
 public class RegAgentThread extends Thread {
   /// A 2-byte authentication token represented as an int.
   public static final int MAGIC_ID = 0xC461;
+  /// The host of the registration server used unless another one is given.
+  public static final String DEFAULT_SERVER_HOST = "cse461.cs.washington.edu";
+  /// The port of the registration server used unless another one is given.
+  public static final int DEFAULT_SERVER_PORT = 46101;
+  /// The first local UDP port tried for talking to the registration server unless another
+  /// one is given.
+  public static final int DEFAULT_UDP_PORT = 1500;
   /// The maximum number of ms to wait before timing out when waiting for a server response.
   public static final int REQUEST_TIMEOUT_MS = 5000;
   /// The maximum number of times to send a request to the server before giving up.
   public static final int MAX_REQUEST_TRIES = 3;
   /// The number of links in a circuit.
   public static final int CIRCUIT_LENGTH = 3;
-  /// The DatagramSocket used to read probe requests from the server.
+  /// The DatagramSocket used to read probe requests from the server, or `null` if the
+  /// registry isn't a server.
   private DatagramSocket readSocket = null;
   /// The DatagramSocket used to send requests to the server.
   private DatagramSocket writeSocket = null;
-  /// The RequestHandler used to make and send requests, except registration renewal requests.
-  private RequestHandler requestHandler;
+  /// The Registry used to make and send requests, except registration renewal requests.
+  private Registry registry;
   /// The thread that handles automatic service registration renewal.
   private RegistrationRenewalThread registrationRenewer;
   /// The thread that handles probes from the server.
@@ -47,6 +55,21 @@ public class RegAgentThread extends Thread {
   private Service service;
 
   public RegAgentThread(int groupNo, int instanceNo, int agentId, int iport) {
+    this(groupNo, instanceNo, agentId, iport, DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT,
+         DEFAULT_UDP_PORT);
+  }
+
+  /** Creates a thread that registers a tor node with a specific registration server.
+      @param groupNo The group number in the name of the service to register.
+      @param instanceNo The instance number in the name of the service to register.
+      @param agentId The agent id of the tor node.
+      @param iport The port the tor node accepts tor connections on.
+      @param serverHost The host name or ip of the registration server.
+      @param serverPort The UDP port of the registration server.
+      @param udpPort The first local UDP port to try binding to; the agent needs two
+                     adjacent ones. 0 to let the system pick. */
+  public RegAgentThread(int groupNo, int instanceNo, int agentId, int iport,
+                        String serverHost, int serverPort, int udpPort) {
     this.groupNo = groupNo;
     this.instanceNo = instanceNo;
     this.agentId = agentId;
@@ -54,23 +77,22 @@ public class RegAgentThread extends Thread {
 
     InetAddress serverAddress;
     try {
-      serverAddress = InetAddress.getByName("cse461.cs.washington.edu");
+      serverAddress = InetAddress.getByName(serverHost);
     } catch (UnknownHostException e) {
       return;
       // TODO
     }
-    final int serverPort = 46101;
 
-    // Bind to adjacent ports.
-    int startPort = 1500;
+    // Bind to adjacent ports (the server probes the port after the one requests come from).
+    int startPort = udpPort;
     while (writeSocket == null || readSocket == null) {
       try {
         writeSocket = new DatagramSocket(startPort);
-        startPort += 1;
+        startPort = writeSocket.getLocalPort() + 1;
         readSocket = new DatagramSocket(startPort);
         writeSocket.setSoTimeout(REQUEST_TIMEOUT_MS);
-      } catch (SocketException e) {
-        startPort++;
+      } catch (SocketException | IllegalArgumentException e) {
+        startPort = udpPort == 0 ? 0 : startPort + 1;
         if (writeSocket != null) {
           writeSocket.close();
         }
@@ -85,18 +107,35 @@ public class RegAgentThread extends Thread {
 
     // Prepare request handler.
     RequestHandler.setServer(serverAddress, serverPort);
-    requestHandler = new RequestHandler(MAGIC_ID, writeSocket, MAX_REQUEST_TRIES, null);
+    registry = new RequestHandler(MAGIC_ID, writeSocket, MAX_REQUEST_TRIES, null);
+  }
+
+  /** Creates a thread that registers a tor node with a `Registry` in this process, such as
+      a `LocalRegistry`. No UDP ports are used.
+      @param groupNo The group number in the name of the service to register.
+      @param instanceNo The instance number in the name of the service to register.
+      @param agentId The agent id of the tor node.
+      @param iport The port the tor node accepts tor connections on.
+      @param registry The `Registry` to register with. */
+  public RegAgentThread(int groupNo, int instanceNo, int agentId, int iport, Registry registry) {
+    this.groupNo = groupNo;
+    this.instanceNo = instanceNo;
+    this.agentId = agentId;
+    this.iport = iport;
+    this.registry = registry;
   }
 
   @Override
   public void run() {
     // Handle probes from server.
     System.out.println("registering tor node...");
-    probeHandler = new ProbeHandlerThread(readSocket, MAGIC_ID, null);
-    probeHandler.start();
+    if (readSocket != null) {
+      probeHandler = new ProbeHandlerThread(readSocket, MAGIC_ID, null);
+      probeHandler.start();
+    }
 
     // Handle automatic registration renewal.
-    registrationRenewer = new RegistrationRenewalThread(requestHandler, null);
+    registrationRenewer = new RegistrationRenewalThread(registry, null);
     registrationRenewer.start();
 
     // Register the service.
@@ -109,7 +148,7 @@ public class RegAgentThread extends Thread {
     final String serviceName = "Tor61Router-" + String.format("%04d", groupNo) + "-" +
         String.format("%04d", instanceNo);
     service = new Service(localhostIp, iport, agentId, serviceName);
-    if (requestHandler.registerService(service)) {
+    if (registry.registerService(service)) {
       registrationRenewer.addService(service);
     } else {
       // TODO
@@ -118,15 +157,20 @@ public class RegAgentThread extends Thread {
 
   // Unregisters the service associated with the tor server.
   public void unregisterService() {
-    requestHandler.unregisterService(service);
+    registry.unregisterService(service);
     registrationRenewer.removeService(service);
     //System.out.println("unregistered service");
   }
 
   // Return all reported services available
   public List<Service> getAllServices() {
-    List<Service> candidates = new ArrayList<>(Arrays.asList(
-        requestHandler.fetchServicesBeginningWith("Tor61Router-" + groupNo + "-")));
+    // Names are registered with zero-padded numbers, so fetch with the same padding.
+    Service[] fetched = registry.fetchServicesBeginningWith(
+        "Tor61Router-" + String.format("%04d", groupNo) + "-");
+    List<Service> candidates = new ArrayList<>();
+    if (fetched != null) {
+      candidates.addAll(Arrays.asList(fetched));
+    }
     // Register the service.
     InetAddress localhostIp = null;
     try {
@@ -138,6 +182,8 @@ public class RegAgentThread extends Thread {
       service = new Service(localhostIp, iport, agentId, "Tor61Router-" + String.format("%04d", groupNo) + "-" +
               String.format("%04d", instanceNo));
     }
+    // This node may have been fetched too; keep it once, at the end.
+    candidates.remove(service);
     candidates.add(service);
     return candidates;
   }
@@ -24,25 +24,25 @@ public class RegistrationRenewalThread extends Thread {
   private static final int BUFFER_TIME = 30000;
   /// The Services to keep registered.
   private List<Service> servicesToRegister;
-  /// The RequestHandler used to re-register Services.
-  private final RequestHandler requestHandler;
+  /// The Registry used to re-register Services.
+  private final Registry registry;
   /// Used to sort Services by expiration time.
   private final Comparator<Service> comparator;
   /// Used to notify a listener of events on this thread.
   private RegistrationEventListener listener;
 
   /** Creates a new registration renewal thread.
-      @param requestHandler The `RequestHandler` to use to send registrations to the server.
+      @param registry The `Registry` to renew registrations with.
       @param taskListener A TaskListener called when this thread successfully renews
                           registration for a Service or fails to do so.
-      @throws IllegalArgumentException If `requestHandler` is null. */
-  public RegistrationRenewalThread(RequestHandler requestHandler,
+      @throws IllegalArgumentException If `registry` is null. */
+  public RegistrationRenewalThread(Registry registry,
                                    RegistrationEventListener listener) {
-    if (requestHandler == null) {
+    if (registry == null) {
       throw new IllegalArgumentException();
     }
     this.listener = listener;
-    this.requestHandler = requestHandler;
+    this.registry = registry;
     this.servicesToRegister = new ArrayList<>();
     this.comparator = new Comparator<Service>() {
       // Note: this comparator imposes orderings that are inconsistent with equals.
@@ -97,7 +97,7 @@ public class RegistrationRenewalThread extends Thread {
           while (!servicesToRegister.isEmpty() && servicesToRegister.get(0).expirationTimeMillis -
                  System.currentTimeMillis() <= BUFFER_TIME) {
             final Service currentService = servicesToRegister.get(0);
-            if (requestHandler.registerService(servicesToRegister.get(0))) {
+            if (registry.registerService(servicesToRegister.get(0))) {
               if (listener != null) {
                 listener.onServiceRegistrationRenewed(currentService);
               }
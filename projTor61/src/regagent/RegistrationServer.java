@@ -0,0 +1,179 @@
+package regagent;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** A `RegistrationServer` is a stand-in for the registration server that agents normally
+    talk to, so that a whole tor network can run on one host (e.g. for load tests). It
+    answers REGISTER, FETCH, UNREGISTER and PROBE requests over UDP with the same packet
+    formats `RequestHandler` sends and expects, and forgets any registration that isn't
+    renewed within its lifetime. Unlike the real server, it never probes agents.
+
+    Registrations are kept in a `ServiceTable`, which can be shared with a `LocalRegistry`
+    so that the node running the server uses it without going through UDP. */
+public class RegistrationServer extends Thread {
+  /// The maximum number of bytes in a UDP packet (excluding the default header).
+  private static final int MAX_UDP_PACKET_SIZE = 65507;
+  /// The most services a fetch response can hold; `RequestHandler` reads the count as a
+  /// signed byte.
+  private static final int MAX_FETCH_RESULTS = 127;
+  /// The number of ms between removals of expired registrations.
+  private static final int EXPIRE_INTERVAL_MS = 1000;
+
+  /// The socket requests are received on and responses are sent from.
+  private final DatagramSocket socket;
+  /// The registrations.
+  private final ServiceTable table;
+
+  /** Creates a server bound to a UDP port on all local addresses. Call `start` to begin
+      answering requests.
+      @param iport The UDP port to bind to, or 0 for any free port.
+      @param lifetimeSeconds The number of seconds a registration lasts unless it's renewed.
+      @throws SocketException If the port could not be bound. */
+  public RegistrationServer(int iport, int lifetimeSeconds) throws SocketException {
+    this(iport, new ServiceTable(lifetimeSeconds));
+  }
+
+  /** Creates a server bound to a UDP port on all local addresses that keeps its
+      registrations in `table`. Call `start` to begin answering requests.
+      @param iport The UDP port to bind to, or 0 for any free port.
+      @param table The table to keep registrations in.
+      @throws SocketException If the port could not be bound. */
+  public RegistrationServer(int iport, ServiceTable table) throws SocketException {
+    this.socket = new DatagramSocket(iport);
+    this.socket.setSoTimeout(EXPIRE_INTERVAL_MS);
+    this.table = table;
+    setName("RegistrationServer");
+    setDaemon(true);
+  }
+
+  /** Returns the UDP port this server is bound to. */
+  public int getLocalPort() {
+    return socket.getLocalPort();
+  }
+
+  /** Stops answering requests and releases the port. */
+  public void close() {
+    socket.close();
+  }
+
+  @Override
+  public void run() {
+    byte[] buf = new byte[MAX_UDP_PACKET_SIZE];
+    DatagramPacket request = new DatagramPacket(buf, buf.length);
+    long nextExpireMillis = System.currentTimeMillis() + EXPIRE_INTERVAL_MS;
+    while (true) {
+      // Sweep between requests, and whenever the socket has been idle for a while.
+      if (System.currentTimeMillis() >= nextExpireMillis) {
+        table.expire();
+        nextExpireMillis = System.currentTimeMillis() + EXPIRE_INTERVAL_MS;
+      }
+      request.setLength(buf.length);
+      try {
+        socket.receive(request);
+      } catch (SocketTimeoutException e) {
+        continue;
+      } catch (IOException e) {
+        // Closed.
+        return;
+      }
+
+      byte[] response = handleRequest(buf, request.getLength());
+      if (response == null) {
+        continue;
+      }
+      try {
+        socket.send(new DatagramPacket(response, response.length,
+                                       request.getAddress(), request.getPort()));
+      } catch (IOException e) {
+        // no op; the agent will retry
+      }
+    }
+  }
+
+  /** Returns the response to a request, or `null` if it is malformed and should be ignored. */
+  private byte[] handleRequest(byte[] buf, int length) {
+    if (length < 4) {
+      return null;
+    }
+    Command command = Command.fromByte(buf[3]);
+    if (command == null) {
+      return null;
+    }
+
+    switch (command) {
+      case REGISTER:   if (length < 15 || length != 15 + (buf[14] & 0xFF)) {
+                         return null;
+                       }
+                       Service registered = new Service(addressAt(buf, 4),
+                           ((buf[8] & 0xFF) << 8) | (buf[9] & 0xFF), intAt(buf, 10),
+                           new String(buf, 15, buf[14] & 0xFF, StandardCharsets.ISO_8859_1));
+                       table.register(registered);
+                       byte[] registeredResponse = responseHeader(buf, 6, Command.REGISTERED);
+                       registeredResponse[4] = (byte) (table.lifetimeSeconds() >> 8);
+                       registeredResponse[5] = (byte) table.lifetimeSeconds();
+                       return registeredResponse;
+      case UNREGISTER: if (length != 10) {
+                         return null;
+                       }
+                       Service unregistered = new Service(addressAt(buf, 4),
+                           ((buf[8] & 0xFF) << 8) | (buf[9] & 0xFF), 0);
+                       table.unregister(unregistered);
+                       return responseHeader(buf, 4, Command.ACK);
+      case FETCH:      if (length < 5 || length != 5 + (buf[4] & 0xFF)) {
+                         return null;
+                       }
+                       String prefix = new String(buf, 5, buf[4] & 0xFF, StandardCharsets.ISO_8859_1);
+                       List<Service> matches = table.fetch(prefix, MAX_FETCH_RESULTS);
+                       byte[] fetchResponse = responseHeader(buf, 5 + 10 * matches.size(),
+                                                             Command.FETCHRESPONSE);
+                       fetchResponse[4] = (byte) matches.size();
+                       for (int i = 0; i < matches.size(); i++) {
+                         Service service = matches.get(i);
+                         System.arraycopy(service.ip.getAddress(), 0, fetchResponse, 5 + 10 * i, 4);
+                         fetchResponse[9 + 10 * i] = (byte) (service.iport >> 8);
+                         fetchResponse[10 + 10 * i] = (byte) service.iport;
+                         fetchResponse[11 + 10 * i] = (byte) (service.data >> 24);
+                         fetchResponse[12 + 10 * i] = (byte) (service.data >> 16);
+                         fetchResponse[13 + 10 * i] = (byte) (service.data >> 8);
+                         fetchResponse[14 + 10 * i] = (byte) service.data;
+                       }
+                       return fetchResponse;
+      case PROBE:      return responseHeader(buf, 4, Command.ACK);
+      default:         return null;
+    }
+  }
+
+  /** Returns a response of `size` bytes with the magic id and sequence number of a request. */
+  private static byte[] responseHeader(byte[] request, int size, Command command) {
+    byte[] response = new byte[size];
+    response[0] = request[0];
+    response[1] = request[1];
+    response[2] = request[2];
+    response[3] = command.toByte();
+    return response;
+  }
+
+  private static InetAddress addressAt(byte[] buf, int offset) {
+    byte[] ip = new byte[4];
+    System.arraycopy(buf, offset, ip, 0, 4);
+    try {
+      return InetAddress.getByAddress(ip);
+    } catch (UnknownHostException e) {
+      // Not possible for a 4-byte address.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int intAt(byte[] buf, int offset) {
+    return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) |
+           ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+  }
+}
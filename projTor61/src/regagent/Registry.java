@@ -0,0 +1,26 @@
+package regagent;
+
+/** A `Registry` keeps track of registered `Service`s so that agents can find each other.
+    `RequestHandler` talks to a registration server over UDP; `LocalRegistry` keeps the
+    registrations in this process. */
+public interface Registry {
+  /** Registers a `Service`, setting its `expirationTimeMillis` to when the registration
+      will expire unless it's renewed.
+      @param service The `Service` to register.
+      @return `true` if and only if the registration was confirmed. */
+  boolean registerService(Service service);
+
+  /** Unregisters a `Service`.
+      @param service The `Service` to unregister.
+      @return `true` if and only if the unregistration was confirmed. */
+  boolean unregisterService(Service service);
+
+  /** Fetches some subset of services whose names start with `start`.
+      @param start The start of each Service name to return.
+      @return The Services found, or `null` if the registry could not be reached. */
+  Service[] fetchServicesBeginningWith(String start);
+
+  /** Checks that the registry can be reached.
+      @return `true` if and only if the registry responded. */
+  boolean probeServer();
+}
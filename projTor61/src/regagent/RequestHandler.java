@@ -13,8 +13,8 @@ import java.nio.ByteBuffer;
     `setServer` before requests can be sent. Setting the server location more than
     once results in undefined behavior. All RequestHandler instances use
     the same server but instances can have different auth tokens, sockets,
-    and retry counts. */
-public class RequestHandler {
+    and retry counts. This is the `Registry` used unless another is configured. */
+public class RequestHandler implements Registry {
   /// Callbacks for events during a request.
   public interface RequestEventListener {
     /** Called by a RequestHandler when a request times out (the handler may retry the request).
@@ -0,0 +1,113 @@
+package regagent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/** A `ServiceTable` holds the registrations of a registry. Registrations are sorted by name,
+    so fetching the services whose names start with a prefix only visits services that match
+    it, and they expire unless they're renewed within the table's lifetime. Fetches don't
+    lock; registering, unregistering and expiring synchronize on the table.
+
+    Services are identified by ip and port (see `Service.equals`), so registering a
+    `Service` again replaces its earlier registration, even if its name changed. */
+public class ServiceTable {
+  /// The number of seconds a registration lasts unless it's renewed.
+  private final int lifetimeSeconds;
+  /// The registered services, keyed by name, then ip and port (see `indexKey`).
+  private final ConcurrentSkipListMap<String, Service> byName;
+  /// Maps from each registered service to its key in `byName`.
+  private final Map<Service, String> indexKeys;
+
+  /** Sole constructor.
+      @param lifetimeSeconds The number of seconds a registration lasts unless it's renewed;
+                             at most 65535, the most a REGISTERED response can carry. */
+  public ServiceTable(int lifetimeSeconds) {
+    if (lifetimeSeconds < 1 || lifetimeSeconds > 0xFFFF) {
+      throw new IllegalArgumentException("lifetime: " + lifetimeSeconds);
+    }
+    this.lifetimeSeconds = lifetimeSeconds;
+    this.byName = new ConcurrentSkipListMap<>();
+    this.indexKeys = new ConcurrentHashMap<>();
+  }
+
+  /** Returns the number of seconds a registration lasts unless it's renewed. */
+  public int lifetimeSeconds() {
+    return lifetimeSeconds;
+  }
+
+  /** Registers or renews a `Service`. The table keeps its own copy of `service`.
+      @param service The `Service` to register.
+      @return The time in ms that the registration will expire. */
+  public synchronized long register(Service service) {
+    long expirationTimeMillis = System.currentTimeMillis() + lifetimeSeconds * 1000L;
+    Service registered = new Service(service.ip, service.iport, service.data,
+                                     service.name == null ? "" : service.name);
+    registered.expirationTimeMillis = expirationTimeMillis;
+
+    String key = indexKey(registered);
+    String oldKey = indexKeys.put(registered, key);
+    if (oldKey != null && !oldKey.equals(key)) {
+      byName.remove(oldKey);
+    }
+    byName.put(key, registered);
+    return expirationTimeMillis;
+  }
+
+  /** Unregisters a `Service`.
+      @param service The `Service` to unregister.
+      @return `true` if and only if `service` was registered. */
+  public synchronized boolean unregister(Service service) {
+    String key = indexKeys.remove(service);
+    if (key == null) {
+      return false;
+    }
+    byName.remove(key);
+    return true;
+  }
+
+  /** Returns up to `limit` unexpired services whose names start with `prefix`, in order of
+      name. */
+  public List<Service> fetch(String prefix, int limit) {
+    long now = System.currentTimeMillis();
+    List<Service> matches = new ArrayList<>();
+    // Every key that starts with `prefix` sorts between `prefix` and `prefix` followed by
+    // the largest char.
+    for (Service service : byName.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+      if (matches.size() == limit) {
+        break;
+      }
+      if (service.expirationTimeMillis > now) {
+        matches.add(service);
+      }
+    }
+    return matches;
+  }
+
+  /** Removes every expired registration.
+      @return The number of registrations removed. */
+  public synchronized int expire() {
+    long now = System.currentTimeMillis();
+    int removed = 0;
+    for (Service service : byName.values()) {
+      if (service.expirationTimeMillis <= now) {
+        byName.remove(indexKeys.remove(service));
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /** Returns the number of registrations, including expired ones not yet removed. */
+  public int size() {
+    return byName.size();
+  }
+
+  /** Returns the key of a service in `byName`: its name, then a separator that sorts before
+      any name character, then its ip and port. */
+  private static String indexKey(Service service) {
+    return service.name + '\0' + service.ip.getHostAddress() + ':' + service.iport;
+  }
+}
@@ -0,0 +1,143 @@
+package proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import src.Cell;
+import src.RelayCommand;
+
+/** Tests reading lines and bytes that are split across the relay data cells of a tor stream. */
+public class BufferedStreamReaderTest {
+  private final BlockingQueue<byte[]> cells = new LinkedBlockingQueue<>();
+
+  /** Queues a relay data cell with `body` as its body. */
+  private void data(String body) {
+    data(body.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private void data(byte[] body) {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(1, 1, RelayCommand.DATA, 0);
+    cell.setBody(body, 0, body.length);
+    cells.add(cell.bytes());
+  }
+
+  /** Queues a relay end cell. */
+  private void end() {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(1, 1, RelayCommand.END, 0);
+    cells.add(cell.bytes());
+  }
+
+  @Test
+  public void readsLinesSplitAcrossCells() {
+    data("GET / HT");
+    data("TP/1.1\r");
+    data("\nHost: exa");
+    data("mple.com\r\n\r\nbody");
+    end();
+
+    BufferedStreamReader reader = new BufferedStreamReader(cells);
+    assertEquals("GET / HTTP/1.1\r\n", reader.readLine());
+    assertEquals("Host: example.com\r\n", reader.readLine());
+    assertEquals("\r\n", reader.readLine());
+    // The last line has no '\n', and ends with the stream.
+    assertEquals("body", reader.readLine());
+  }
+
+  @Test
+  public void skipsEmptyCellsInsideALine() {
+    data("Content-");
+    data("");
+    data("Length: 4\n");
+    end();
+
+    AtomicInteger dataCells = new AtomicInteger();
+    BufferedStreamReader reader = new BufferedStreamReader(cells, dataCells::incrementAndGet);
+    assertEquals("Content-Length: 4\n", reader.readLine());
+    assertNull(reader.readLine());
+    // Empty cells don't count against the stream's window.
+    assertEquals(2, dataCells.get());
+  }
+
+  @Test
+  public void readsALineLongerThanTheBuffer() {
+    // Spans more cells than fit in the initial buffer, so it has to grow.
+    byte[] line = new byte[20000];
+    Arrays.fill(line, (byte) 'a');
+    line[line.length - 1] = '\n';
+    for (int i = 0; i < line.length; i += Cell.MAX_BODY_LENGTH) {
+      data(Arrays.copyOfRange(line, i, Math.min(i + Cell.MAX_BODY_LENGTH, line.length)));
+    }
+    data("next\n");
+    end();
+
+    BufferedStreamReader reader = new BufferedStreamReader(cells);
+    assertArrayEquals(line, reader.readLine().getBytes(StandardCharsets.ISO_8859_1));
+    assertEquals("next\n", reader.readLine());
+  }
+
+  @Test
+  public void readsBytesAfterALineFromTheSameCell() {
+    data("HTTP/1.1 200 OK\r\n\r\nab");
+    data("cd");
+    end();
+
+    BufferedStreamReader reader = new BufferedStreamReader(cells);
+    assertEquals("HTTP/1.1 200 OK\r\n", reader.readLine());
+    assertEquals("\r\n", reader.readLine());
+    byte[] body = new byte[16];
+    // The rest of the first cell, then the queued cell that fits after it.
+    int read = reader.read(body, 0, body.length);
+    assertEquals("abcd", new String(body, 0, read, StandardCharsets.ISO_8859_1));
+    assertEquals(-1, reader.read(body, 0, body.length));
+  }
+
+  @Test
+  public void readsALineInPieces() {
+    data("abcd");
+    data("efg\nh");
+    end();
+
+    BufferedStreamReader reader = new BufferedStreamReader(cells);
+    byte[] b = new byte[8];
+    assertEquals(6, reader.readLine(b, 0, 6));
+    assertEquals("abcdef", new String(b, 0, 6, StandardCharsets.ISO_8859_1));
+    assertEquals(2, reader.readLine(b, 0, 8));
+    assertEquals("g\n", new String(b, 0, 2, StandardCharsets.ISO_8859_1));
+    assertEquals('h', reader.read());
+    assertEquals(-1, reader.read());
+  }
+
+  @Test
+  public void knowsTheStreamHasEndedOnlyOnceTheEndArrives() {
+    data("x");
+    BufferedStreamReader reader = new BufferedStreamReader(cells);
+    assertEquals('x', reader.read());
+    assertFalse(reader.hasEnded());
+    data("");
+    assertFalse(reader.hasEnded());
+    end();
+    assertTrue(reader.hasEnded());
+  }
+
+  @Test
+  public void readsLinesFromAnInputStream() {
+    byte[] bytes = "one\r\ntwo\nthree".getBytes(StandardCharsets.ISO_8859_1);
+    BufferedStreamReader reader = new BufferedStreamReader(new ByteArrayInputStream(bytes));
+    assertEquals("one\r\n", reader.readLine());
+    assertEquals("two\n", reader.readLine());
+    assertEquals("three", reader.readLine());
+    assertNull(reader.readLine());
+  }
+}
@@ -0,0 +1,64 @@
+package proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import src.Cell;
+
+/** Tests that `HttpRequestThread.handleHttpMessage` sends a whole request, and nothing after it,
+    to the tor stream. */
+public class HttpRequestThreadTest {
+  /** Sends the first request in `browserBytes` and returns the bytes sent in the stream's cells. */
+  private static String sendRequest(String browserBytes, List<String> bufferedLines)
+      throws IOException {
+    BufferedStreamReader reader = new BufferedStreamReader(
+        new ByteArrayInputStream(browserBytes.getBytes(StandardCharsets.ISO_8859_1)));
+    ByteArrayOutputStream link = new ByteArrayOutputStream();
+    DataCellPacker packer = new DataCellPacker(link, 1, 2, 0);
+    new HttpRequestThread(new Socket(), null, null, null)
+        .handleHttpMessage(reader, bufferedLines, packer);
+
+    byte[] cells = link.toByteArray();
+    StringBuilder sent = new StringBuilder();
+    for (int offset = 0; offset < cells.length; offset += Cell.SIZE) {
+      byte[] bytes = new byte[Cell.SIZE];
+      System.arraycopy(cells, offset, bytes, 0, Cell.SIZE);
+      Cell cell = new Cell(bytes);
+      sent.append(new String(bytes, Cell.BODY_OFFSET, cell.bodyLength(),
+                             StandardCharsets.ISO_8859_1));
+    }
+    return sent.toString();
+  }
+
+  @Test
+  public void sendsAContentLengthBody() throws IOException {
+    String request = "POST /form HTTP/1.1\r\nHost: example.com\r\nContent-Length: 5\r\n\r\nhello";
+    assertEquals(request.replace("HTTP/1.1", "HTTP/1.0"),
+                 sendRequest(request + "GET / HTTP/1.1\r\n\r\n", new ArrayList<>()));
+  }
+
+  @Test
+  public void sendsAChunkedBody() throws IOException {
+    String request = "POST /upload HTTP/1.1\r\nHost: example.com\r\n" +
+                     "Transfer-Encoding: chunked\r\n\r\n" +
+                     "5\r\nhello\r\n0\r\n\r\n";
+    assertEquals(request.replace("HTTP/1.1", "HTTP/1.0"),
+                 sendRequest(request + "GET / HTTP/1.1\r\n\r\n", new ArrayList<>()));
+  }
+
+  @Test
+  public void sendsHeaderLinesThatWereAlreadyRead() throws IOException {
+    List<String> bufferedLines = new ArrayList<>();
+    bufferedLines.add("GET / HTTP/1.1\r\n");
+    bufferedLines.add("Host: example.com\r\n");
+    assertEquals("GET / HTTP/1.0\r\nHost: example.com\r\nConnection: close\r\n\r\n",
+                 sendRequest("Connection: keep-alive\r\n\r\nextra", bufferedLines));
+  }
+}
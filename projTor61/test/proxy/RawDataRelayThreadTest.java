@@ -0,0 +1,164 @@
+package proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import src.Cell;
+import src.CellBuffer;
+import src.FlowWindow;
+import src.RelayCommand;
+
+/** Tests the exit side of `RawDataRelayThread`: relaying a web server's data onto a tor link's
+    write queue, with and without the windows of a proxy that sends sendmes. */
+public class RawDataRelayThreadTest {
+  private static final int CIRCUIT_ID = 3;
+  private static final int STREAM_ID = 7;
+
+  private ServerSocket listener;
+  /// The exit node's connection to the web server, which the relay reads.
+  private Socket originSocket;
+  /// The web server's end of `originSocket`.
+  private Socket serverSocket;
+  /// The tor link's write queue.
+  private final BlockingQueue<CellBuffer> linkQueue = new LinkedBlockingQueue<>();
+
+  @BeforeEach
+  public void connect() throws IOException {
+    listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    originSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+    serverSocket = listener.accept();
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    serverSocket.close();
+    originSocket.close();
+    listener.close();
+    CellBuffer cell;
+    while ((cell = linkQueue.poll()) != null) {
+      cell.release();
+    }
+  }
+
+  /** Returns a relay for `originSocket` onto `linkQueue`.
+      @param circuitWindow The circuit's window, or `null` for a proxy without sendmes. */
+  private RawDataRelayThread newRelay(FlowWindow circuitWindow) throws IOException {
+    originSocket.setSoTimeout(100);
+    return new RawDataRelayThread(new Socket(), originSocket, STREAM_ID, CIRCUIT_ID,
+                                  new ConcurrentHashMap<>(), linkQueue, null, "localhost",
+                                  listener.getLocalPort(), circuitWindow);
+  }
+
+  /** Returns `length` bytes of a repeating pattern. */
+  private static byte[] response(int length) {
+    byte[] response = new byte[length];
+    for (int i = 0; i < length; i++) {
+      response[i] = (byte) (i % 251);
+    }
+    return response;
+  }
+
+  @Test
+  public void relaysAFullResponseToAProxyWithoutSendmes() throws Exception {
+    // Well over a stream's window, which a proxy that never sends sendmes can't reopen.
+    byte[] response = response(3 * FlowWindow.STREAM_START * Cell.MAX_BODY_LENGTH);
+    RawDataRelayThread relay = newRelay(null);
+    assertNull(relay.streamWindow());
+    Thread thread = new Thread(relay);
+    thread.start();
+    try (OutputStream out = serverSocket.getOutputStream()) {
+      out.write(response);
+    }
+
+    ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+    Cell cell = new Cell();
+    while (true) {
+      CellBuffer buffer = linkQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(buffer, "stream stalled after " + relayed.size() + " bytes");
+      cell.wrap(buffer.bytes);
+      assertEquals(CIRCUIT_ID, cell.circuitId());
+      assertEquals(STREAM_ID, cell.streamId());
+      if (cell.isRelay(RelayCommand.END)) {
+        buffer.release();
+        break;
+      }
+      assertTrue(cell.isRelay(RelayCommand.DATA));
+      // Empty data cells are only sent to proxies that ask for them.
+      assertTrue(cell.bodyLength() > 0);
+      relayed.write(buffer.bytes, Cell.BODY_OFFSET, cell.bodyLength());
+      buffer.release();
+    }
+    thread.join(5000);
+    assertArrayEquals(response, relayed.toByteArray());
+  }
+
+  @Test
+  public void stopsAtTheStreamWindowUntilASendmeArrives() throws Exception {
+    RawDataRelayThread relay = newRelay(new FlowWindow(FlowWindow.CIRCUIT_START));
+    Thread thread = new Thread(relay);
+    thread.start();
+    OutputStream out = serverSocket.getOutputStream();
+    // One cell body per write, so that the relay sends one cell per write.
+    byte[] body = response(Cell.MAX_BODY_LENGTH);
+    for (int i = 0; i < FlowWindow.STREAM_START + FlowWindow.STREAM_INCREMENT; i++) {
+      out.write(body);
+      out.flush();
+    }
+
+    assertEquals(FlowWindow.STREAM_START, awaitDataCells());
+    relay.streamWindow().increase(FlowWindow.STREAM_INCREMENT);
+    assertEquals(FlowWindow.STREAM_INCREMENT, awaitDataCells());
+    relay.kill();
+    thread.join(5000);
+  }
+
+  @Test
+  public void sendsIdleCellsOutsideTheWindows() throws Exception {
+    FlowWindow circuitWindow = new FlowWindow(FlowWindow.CIRCUIT_START);
+    RawDataRelayThread relay = newRelay(circuitWindow);
+    Thread thread = new Thread(relay);
+    thread.start();
+
+    CellBuffer buffer = linkQueue.poll(2 * BufferedStreamReader.CELL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertNotNull(buffer, "no idle cell");
+    Cell cell = new Cell(buffer.bytes);
+    assertTrue(cell.isRelay(RelayCommand.DATA));
+    assertEquals(0, cell.bodyLength());
+    buffer.release();
+    assertEquals(FlowWindow.STREAM_START, relay.streamWindow().remaining());
+    assertEquals(FlowWindow.CIRCUIT_START, circuitWindow.remaining());
+    relay.kill();
+    thread.join(5000);
+  }
+
+  /** Takes the cells that arrive on `linkQueue` until none arrive for 1 second.
+      @return The number of data cells with a body taken. */
+  private int awaitDataCells() throws InterruptedException {
+    int count = 0;
+    Cell cell = new Cell();
+    CellBuffer buffer;
+    while ((buffer = linkQueue.poll(1, TimeUnit.SECONDS)) != null) {
+      if (cell.wrap(buffer.bytes).isRelay(RelayCommand.DATA) && cell.bodyLength() > 0) {
+        count++;
+      }
+      buffer.release();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,176 @@
+package proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import src.Cell;
+import src.FlowWindow;
+import src.RelayCommand;
+import src.TorCommand;
+
+/** Tests that a `StreamDispatcher` passes the cells of a proxy circuit to their streams' mailboxes,
+    ends streams that overflow, and sends circuit sendmes. The test plays the gateway at the
+    other end of the circuit's tor `Socket`. */
+public class StreamDispatcherTest {
+  private static final int STREAM_ID = 5;
+
+  private ServerSocket listener;
+  /// The gateway's end of the circuit's tor `Socket`.
+  private Socket gatewaySocket;
+  private StreamDispatcher dispatcher;
+  private final CountDownLatch failed = new CountDownLatch(1);
+
+  @BeforeEach
+  public void connect() throws IOException {
+    listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Socket proxySocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+    gatewaySocket = listener.accept();
+    gatewaySocket.setSoTimeout(5000);
+    dispatcher = new StreamDispatcher(proxySocket, failed::countDown);
+    dispatcher.start();
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    gatewaySocket.close();
+    listener.close();
+  }
+
+  /** Sends a relay cell with a body of `bodyLength` bytes to the proxy. */
+  private void send(int streamId, RelayCommand relayCommand, int bodyLength) throws IOException {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(ProxyCircuit.ID, streamId, relayCommand, bodyLength);
+    gatewaySocket.getOutputStream().write(cell.bytes());
+  }
+
+  /** Sends `count` relay data cells with non-empty bodies to the proxy. */
+  private void sendData(int streamId, int count) throws IOException {
+    OutputStream out = gatewaySocket.getOutputStream();
+    for (int i = 0; i < count; i++) {
+      Cell cell = new Cell(new byte[Cell.SIZE]);
+      cell.setRelayHeader(ProxyCircuit.ID, streamId, RelayCommand.DATA, 1);
+      out.write(cell.bytes());
+    }
+  }
+
+  /** Reads the next cell the proxy sent. */
+  private Cell receive() throws IOException {
+    InputStream in = gatewaySocket.getInputStream();
+    byte[] bytes = in.readNBytes(Cell.SIZE);
+    assertEquals(Cell.SIZE, bytes.length);
+    return new Cell(bytes);
+  }
+
+  /** Waits until the dispatcher has dropped `count` cells in all. */
+  private void awaitDropped(long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (dispatcher.droppedCells() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, dispatcher.droppedCells());
+  }
+
+  @Test
+  public void passesCellsToTheirStreamAndDropsOthers() throws Exception {
+    BlockingQueue<byte[]> mailbox = StreamDispatcher.newMailbox();
+    dispatcher.addStream(STREAM_ID, mailbox);
+    send(STREAM_ID, RelayCommand.CONNECTED, 0);
+    sendData(STREAM_ID, 1);
+    send(STREAM_ID + 1, RelayCommand.DATA, 1);
+    awaitDropped(1);
+
+    assertEquals(RelayCommand.CONNECTED, new Cell(mailbox.take()).relayCommand());
+    assertEquals(RelayCommand.DATA, new Cell(mailbox.take()).relayCommand());
+    assertEquals(2, dispatcher.deliveredCells());
+
+    dispatcher.removeStream(STREAM_ID);
+    sendData(STREAM_ID, 1);
+    awaitDropped(2);
+    assertTrue(mailbox.isEmpty());
+  }
+
+  @Test
+  public void endsAStreamWhoseMailboxOverflows() throws Exception {
+    BlockingQueue<byte[]> mailbox = StreamDispatcher.newMailbox();
+    dispatcher.addStream(STREAM_ID, mailbox);
+    // Data cells fill all but the last slot; the next one overflows.
+    int fits = StreamDispatcher.MAILBOX_CAPACITY - 1;
+    sendData(STREAM_ID, fits + 1);
+
+    // The circuit sendmes for the cells that arrived, then the end of the stream.
+    for (int i = 0; i < (fits + 1) / FlowWindow.CIRCUIT_INCREMENT; i++) {
+      Cell sendme = receive();
+      assertTrue(sendme.isRelay(RelayCommand.SENDME));
+      assertEquals(0, sendme.streamId());
+    }
+    Cell end = receive();
+    assertTrue(end.isRelay(RelayCommand.END));
+    assertEquals(STREAM_ID, end.streamId());
+
+    assertEquals(1, dispatcher.overflowedStreams());
+    assertEquals(fits, dispatcher.deliveredCells());
+    // The end cell took the slot kept free for it.
+    assertEquals(StreamDispatcher.MAILBOX_CAPACITY, mailbox.size());
+    byte[] last = null;
+    for (byte[] cell : mailbox) {
+      last = cell;
+    }
+    assertTrue(new Cell(last).isRelay(RelayCommand.END));
+
+    // Cells still on their way for the ended stream are dropped.
+    sendData(STREAM_ID, 1);
+    awaitDropped(1);
+  }
+
+  @Test
+  public void sendsACircuitSendmeForEveryIncrementOfNonEmptyDataCells() throws Exception {
+    dispatcher.addStream(STREAM_ID, StreamDispatcher.newMailbox());
+    sendData(STREAM_ID, FlowWindow.CIRCUIT_INCREMENT - 1);
+    // Empty data cells only keep the stream open, and aren't counted.
+    for (int i = 0; i < 10; i++) {
+      send(STREAM_ID, RelayCommand.DATA, 0);
+    }
+    // Not a data cell, so it isn't counted; once it's dropped, every cell before it was read.
+    send(STREAM_ID + 1, RelayCommand.END, 0);
+    awaitDropped(1);
+    assertEquals(0, gatewaySocket.getInputStream().available());
+
+    // Data cells for streams that aren't open still count.
+    send(STREAM_ID + 1, RelayCommand.DATA, 1);
+    Cell sendme = receive();
+    assertTrue(sendme.isRelay(RelayCommand.SENDME));
+    assertEquals(0, sendme.streamId());
+
+    sendData(STREAM_ID, FlowWindow.CIRCUIT_INCREMENT);
+    assertTrue(receive().isRelay(RelayCommand.SENDME));
+  }
+
+  @Test
+  public void endsEveryStreamWhenTheCircuitIsDestroyed() throws Exception {
+    BlockingQueue<byte[]> mailbox = StreamDispatcher.newMailbox();
+    dispatcher.addStream(STREAM_ID, mailbox);
+    Cell destroy = new Cell(new byte[Cell.SIZE]);
+    destroy.setCircuitId(ProxyCircuit.ID);
+    destroy.setCommand(TorCommand.DESTROY);
+    gatewaySocket.getOutputStream().write(destroy.bytes());
+
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    assertTrue(new Cell(mailbox.take()).isRelay(RelayCommand.END));
+    // A stream added afterwards is ended straight away.
+    BlockingQueue<byte[]> late = StreamDispatcher.newMailbox();
+    dispatcher.addStream(STREAM_ID + 1, late);
+    assertTrue(new Cell(late.take()).isRelay(RelayCommand.END));
+  }
+}
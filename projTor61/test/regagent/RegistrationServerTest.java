@@ -0,0 +1,73 @@
+package regagent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests that a `RegistrationServer` answers the requests a `RequestHandler` sends. */
+public class RegistrationServerTest {
+  private ServiceTable table;
+  private RegistrationServer server;
+  private DatagramSocket client;
+  private RequestHandler handler;
+
+  @BeforeEach
+  public void start() throws IOException {
+    table = new ServiceTable(60);
+    server = new RegistrationServer(0, table);
+    server.start();
+    client = new DatagramSocket();
+    client.setSoTimeout(1000);
+    RequestHandler.setServer(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    handler = new RequestHandler(0x1234, client, 3, null);
+  }
+
+  @AfterEach
+  public void stop() {
+    client.close();
+    server.close();
+  }
+
+  @Test
+  public void registersFetchesAndUnregisters() {
+    Service service = new Service(InetAddress.getLoopbackAddress(), 4000, 42, "Tor61Router-1-2");
+    assertTrue(handler.registerService(service));
+    assertEquals(1, table.size());
+
+    Service[] fetched = handler.fetchServicesBeginningWith("Tor61Router");
+    assertNotNull(fetched);
+    assertEquals(1, fetched.length);
+    assertEquals(service, fetched[0]);
+    assertEquals(42, fetched[0].data);
+    assertEquals(0, handler.fetchServicesBeginningWith("Other").length);
+
+    assertTrue(handler.unregisterService(service));
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void answersProbes() {
+    assertTrue(handler.probeServer());
+  }
+
+  @Test
+  public void ignoresMalformedRequests() throws IOException {
+    // A REGISTER whose name length doesn't match the packet.
+    byte[] request = {0x12, 0x34, 0, 1, 127, 0, 0, 1, 0, 80, 0, 0, 0, 0, 9, 'a'};
+    client.send(new DatagramPacket(request, request.length,
+                                   InetAddress.getLoopbackAddress(), server.getLocalPort()));
+    DatagramPacket response = new DatagramPacket(new byte[16], 16);
+    assertThrows(SocketTimeoutException.class, () -> client.receive(response));
+    assertEquals(0, table.size());
+  }
+}
@@ -0,0 +1,71 @@
+package regagent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** Tests registering, fetching and expiring services in a `ServiceTable`. */
+public class ServiceTableTest {
+  private static Service service(int lastOctet, int iport, String name) throws UnknownHostException {
+    return new Service(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) lastOctet}),
+                       iport, 7, name);
+  }
+
+  @Test
+  public void fetchesOnlyNamesWithThePrefixInOrder() throws UnknownHostException {
+    ServiceTable table = new ServiceTable(60);
+    table.register(service(1, 1000, "Tor61Router-2"));
+    table.register(service(1, 1001, "Tor61Router-1"));
+    table.register(service(1, 1002, "Other-1"));
+
+    List<Service> matches = table.fetch("Tor61Router", 10);
+    assertEquals(2, matches.size());
+    assertEquals("Tor61Router-1", matches.get(0).name);
+    assertEquals("Tor61Router-2", matches.get(1).name);
+    assertEquals(1, table.fetch("Tor61Router", 1).size());
+    assertTrue(table.fetch("Nothing", 10).isEmpty());
+  }
+
+  @Test
+  public void replacesARegistrationWithTheSameAddress() throws UnknownHostException {
+    ServiceTable table = new ServiceTable(60);
+    table.register(service(1, 1000, "Old"));
+    table.register(service(1, 1000, "New"));
+    assertEquals(1, table.size());
+    assertTrue(table.fetch("Old", 10).isEmpty());
+    assertEquals(1, table.fetch("New", 10).size());
+  }
+
+  @Test
+  public void unregistersByAddress() throws UnknownHostException {
+    ServiceTable table = new ServiceTable(60);
+    table.register(service(1, 1000, "Service"));
+    // Unregister requests carry no name.
+    assertTrue(table.unregister(service(1, 1000, null)));
+    assertFalse(table.unregister(service(1, 1000, null)));
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void expiresRegistrationsThatArentRenewed() throws Exception {
+    ServiceTable table = new ServiceTable(1);
+    table.register(service(1, 1000, "Service"));
+    assertEquals(0, table.expire());
+    Thread.sleep(1100);
+    assertTrue(table.fetch("Service", 10).isEmpty());
+    assertEquals(1, table.expire());
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void rejectsLifetimesAResponseCantCarry() {
+    assertThrows(IllegalArgumentException.class, () -> new ServiceTable(0));
+    assertThrows(IllegalArgumentException.class, () -> new ServiceTable(0x10000));
+  }
+}
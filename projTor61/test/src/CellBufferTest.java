@@ -0,0 +1,54 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+/** Tests the reference counting of `CellBuffer`s. */
+public class CellBufferTest {
+  @Test
+  public void isReleasedByItsLastOwner() {
+    CellBuffer cell = CellBuffer.allocate();
+    assertSame(cell, cell.retain());
+    cell.release();
+    // Still owned, so it can be retained again.
+    cell.retain();
+    cell.release();
+    cell.release();
+    assertThrows(IllegalStateException.class, cell::retain);
+  }
+
+  @Test
+  public void rejectsAReleaseTooMany() {
+    CellBuffer cell = CellBuffer.allocate();
+    cell.release();
+    assertThrows(IllegalStateException.class, cell::release);
+  }
+
+  @Test
+  public void copiesACell() {
+    byte[] bytes = new byte[CellBuffer.CELL_SIZE];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    CellBuffer cell = CellBuffer.copyOf(bytes);
+    assertArrayEquals(bytes, cell.bytes);
+    assertArrayEquals(new byte[CellBuffer.CELL_SIZE], cell.clear().bytes);
+    cell.release();
+  }
+
+  @Test
+  public void resetsItsByteBuffer() {
+    CellBuffer cell = CellBuffer.allocate();
+    ByteBuffer buffer = cell.byteBuffer();
+    buffer.position(100);
+    assertSame(buffer, cell.byteBuffer());
+    assertEquals(0, buffer.position());
+    assertEquals(CellBuffer.CELL_SIZE, buffer.limit());
+    cell.release();
+  }
+}
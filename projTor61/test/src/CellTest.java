@@ -0,0 +1,66 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/** Tests that `Cell` decodes `BEGIN` and `END` cells the same with and without the flag
+    bytes, so that proxies which don't send flags still work. */
+public class CellTest {
+  /** Returns a relay cell whose body is exactly `body`, as an original proxy writes it. */
+  private static Cell relayCell(RelayCommand relayCommand, byte[] body) {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(5, 9, relayCommand, 0);
+    cell.setBody(body, 0, body.length);
+    return cell;
+  }
+
+  @Test
+  public void decodesABeginWithoutFlags() {
+    Cell cell = relayCell(RelayCommand.BEGIN,
+                          "example.com:8080\0".getBytes(StandardCharsets.ISO_8859_1));
+    int addressEnd = cell.addressEnd();
+    assertNotEquals(-1, addressEnd);
+    assertEquals("example.com", cell.addressHost(addressEnd));
+    assertEquals(8080, cell.addressPort(addressEnd));
+    assertEquals(0, cell.beginFlags(addressEnd));
+  }
+
+  @Test
+  public void decodesABeginWithFlags() {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(5, 9, RelayCommand.BEGIN, 0);
+    cell.setBeginBody("example.com", 443, Cell.BEGIN_FRAMED | Cell.BEGIN_FLOW_CONTROL);
+    int addressEnd = cell.addressEnd();
+    assertEquals("example.com", cell.addressHost(addressEnd));
+    assertEquals(443, cell.addressPort(addressEnd));
+    assertEquals(Cell.BEGIN_FRAMED | Cell.BEGIN_FLOW_CONTROL, cell.beginFlags(addressEnd));
+  }
+
+  @Test
+  public void ignoresBytesPastTheBodyOfABegin() {
+    // Left over from an earlier use of the buffer, but outside the body.
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(5, 9, RelayCommand.BEGIN, 0);
+    cell.setBeginBody("example.com", 80, Cell.BEGIN_FRAMED);
+    cell.setAddressBody("example.com", 80);
+    assertEquals(0, cell.beginFlags(cell.addressEnd()));
+  }
+
+  @Test
+  public void decodesAnEndWithoutFlags() {
+    Cell cell = relayCell(RelayCommand.END, new byte[0]);
+    assertEquals(0, cell.endFlags());
+  }
+
+  @Test
+  public void decodesAnEndWithFlags() {
+    Cell cell = new Cell(new byte[Cell.SIZE]);
+    cell.setRelayHeader(5, 9, RelayCommand.END, 0);
+    cell.setEndBody(Cell.END_CLEAN);
+    assertEquals(1, cell.bodyLength());
+    assertEquals(Cell.END_CLEAN, cell.endFlags());
+  }
+}
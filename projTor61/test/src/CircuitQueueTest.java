@@ -0,0 +1,206 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Tests the circuit scheduling and the byte bound of `CircuitQueue`. */
+public class CircuitQueueTest {
+  /// A bound of this many cells.
+  private static final int MAX_CELLS = 4;
+
+  /** Returns a new queue with room for `MAX_CELLS` cells. */
+  private static CircuitQueue newQueue(CircuitQueue.Scheduler scheduler) {
+    return new CircuitQueue(scheduler, MAX_CELLS * CellBuffer.CELL_SIZE, 1000);
+  }
+
+  /** Returns a cell on `circuitId`, with `seq` as its stream id to tell cells apart. */
+  private static CellBuffer cell(int circuitId, int seq) {
+    CellBuffer cell = CellBuffer.allocate().clear();
+    Cell view = new Cell(cell.bytes);
+    view.setCircuitId(circuitId);
+    view.setStreamId(seq);
+    return cell;
+  }
+
+  /** Takes the next cell and returns its circuit id. */
+  private static int pollCircuit(CircuitQueue queue) {
+    CellBuffer cell = queue.poll();
+    int circuitId = new Cell(cell.bytes).circuitId();
+    cell.release();
+    return circuitId;
+  }
+
+  @Test
+  public void roundRobinTakesCircuitsInTurn() {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.ROUND_ROBIN);
+    for (int i = 0; i < 3; i++) {
+      queue.add(cell(1, i));
+    }
+    queue.add(cell(2, 0));
+    queue.add(cell(3, 0));
+
+    assertEquals(1, pollCircuit(queue));
+    assertEquals(2, pollCircuit(queue));
+    assertEquals(3, pollCircuit(queue));
+    assertEquals(1, pollCircuit(queue));
+    assertEquals(1, pollCircuit(queue));
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void ewmaFavorsTheQuietCircuit() {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.EWMA);
+    for (int i = 0; i < 8; i++) {
+      queue.add(cell(1, i));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertEquals(1, pollCircuit(queue));
+    }
+    // Circuit 1 has sent 4 cells recently, and circuit 2 none.
+    queue.add(cell(2, 0));
+    assertEquals(2, pollCircuit(queue));
+    assertEquals(1, pollCircuit(queue));
+    queue.close();
+  }
+
+  @Test
+  public void ewmaServesTheQuietestOfManyCircuitsFirst() {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.EWMA);
+    // Circuits 2 to 201 each send 3 cells, except circuit 100, which sends 1.
+    for (int circuitId = 2; circuitId <= 201; circuitId++) {
+      int sent = circuitId == 100 ? 1 : 3;
+      for (int i = 0; i < sent; i++) {
+        queue.add(cell(circuitId, i));
+      }
+    }
+    while (queue.size() > 0) {
+      queue.poll().release();
+    }
+
+    // All of them queue a cell again, and so does circuit 1, which hasn't sent any yet.
+    for (int circuitId = 201; circuitId >= 1; circuitId--) {
+      queue.add(cell(circuitId, 3));
+    }
+    assertEquals(1, pollCircuit(queue));
+    assertEquals(100, pollCircuit(queue));
+    for (int i = 2; i < 201; i++) {
+      int circuitId = pollCircuit(queue);
+      assertTrue(circuitId > 1 && circuitId != 100);
+    }
+    assertNull(queue.poll());
+  }
+
+  @Test
+  public void ewmaKeepsWorkingLongAfterItsHalfLife() throws InterruptedException {
+    // A 1 ms half-life: after a second, an unscaled count would be past the range of a double.
+    CircuitQueue queue =
+        new CircuitQueue(CircuitQueue.Scheduler.EWMA, MAX_CELLS * CellBuffer.CELL_SIZE, 1);
+    queue.add(cell(1, 0));
+    queue.poll().release();
+    Thread.sleep(1100);
+
+    // Circuit 1 sends 3 cells, and circuit 2 one.
+    for (int i = 0; i < 3; i++) {
+      queue.add(cell(1, i));
+    }
+    queue.add(cell(2, 0));
+    while (queue.size() > 0) {
+      queue.poll().release();
+    }
+    queue.add(cell(1, 3));
+    queue.add(cell(2, 1));
+    assertEquals(2, pollCircuit(queue));
+    assertEquals(1, pollCircuit(queue));
+  }
+
+  @Test
+  public void keepsTheCellsOfACircuitInOrder() {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.EWMA);
+    for (int i = 0; i < 3; i++) {
+      queue.add(cell(1, i));
+      queue.add(cell(2, i));
+    }
+    int[] next = new int[3];
+    CellBuffer cell;
+    while ((cell = queue.poll()) != null) {
+      Cell view = new Cell(cell.bytes);
+      assertEquals(next[view.circuitId()]++, view.streamId());
+      cell.release();
+    }
+    assertEquals(3, next[1]);
+    assertEquals(3, next[2]);
+  }
+
+  @Test
+  public void putWaitsForRoomUnderMaxBytes() throws Exception {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.ROUND_ROBIN);
+    for (int i = 0; i < MAX_CELLS; i++) {
+      queue.put(cell(1, i));
+    }
+    assertEquals(0, queue.remainingCapacity());
+    CellBuffer extra = cell(1, MAX_CELLS);
+    assertFalse(queue.offer(extra, 50, TimeUnit.MILLISECONDS));
+    extra.release();
+
+    CountDownLatch queued = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      try {
+        queue.put(cell(2, 0));
+        queued.countDown();
+      } catch (InterruptedException e) {
+        // no op; the latch stays up
+      }
+    });
+    producer.start();
+    assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+    queue.poll().release();
+    assertTrue(queued.await(5, TimeUnit.SECONDS));
+    assertEquals(MAX_CELLS, queue.size());
+    producer.join();
+    queue.close();
+  }
+
+  @Test
+  public void addQueuesPastMaxBytes() {
+    // Forwarded cells are added without waiting, so the bound doesn't hold for them.
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.ROUND_ROBIN);
+    for (int i = 0; i < 3 * MAX_CELLS; i++) {
+      assertTrue(queue.offer(cell(1, i)));
+    }
+    assertEquals(3 * MAX_CELLS, queue.size());
+    queue.close();
+  }
+
+  @Test
+  public void closeReleasesCellsAndWakesProducers() throws Exception {
+    CircuitQueue queue = newQueue(CircuitQueue.Scheduler.ROUND_ROBIN);
+    for (int i = 0; i < MAX_CELLS; i++) {
+      queue.put(cell(1, i));
+    }
+    CountDownLatch returned = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      try {
+        queue.put(cell(1, MAX_CELLS));
+        returned.countDown();
+      } catch (InterruptedException e) {
+        // no op; the latch stays up
+      }
+    });
+    producer.start();
+    assertFalse(returned.await(100, TimeUnit.MILLISECONDS));
+
+    queue.close();
+    assertTrue(returned.await(5, TimeUnit.SECONDS));
+    assertEquals(0, queue.size());
+    // Cells queued after the queue is closed are dropped.
+    queue.add(cell(1, 0));
+    assertNull(queue.poll());
+    producer.join();
+  }
+}
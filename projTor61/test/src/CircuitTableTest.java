@@ -0,0 +1,136 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/** Tests `CircuitTable`'s probing past colliding keys and removed entries, and its growth. */
+public class CircuitTableTest {
+  /** Returns a `Hop` that tells circuit `circuitId` on link `linkId` apart from the others. */
+  private static Hop hop(int linkId, int circuitId) {
+    return new Hop(null, linkId + 100, circuitId + 100);
+  }
+
+  @Test
+  public void keepsCircuitsWithTheSameIdOnDifferentLinksApart() {
+    CircuitTable table = new CircuitTable();
+    Hop first = hop(1, 5);
+    Hop second = hop(2, 5);
+    table.put(1, 5, first);
+    table.put(2, 5, second);
+    assertSame(first, table.get(1, 5));
+    assertSame(second, table.get(2, 5));
+    assertNull(table.get(3, 5));
+    assertNull(table.get(1, 6));
+  }
+
+  @Test
+  public void replacesTheHopOfACircuit() {
+    CircuitTable table = new CircuitTable();
+    table.put(1, 5, hop(1, 5));
+    table.put(1, 5, CircuitTable.END);
+    assertSame(CircuitTable.END, table.get(1, 5));
+    assertEquals(1, table.size());
+    assertThrows(IllegalArgumentException.class, () -> table.put(1, 5, null));
+  }
+
+  @Test
+  public void replacesAHopOnlyIfItIsTheExpectedOne() {
+    CircuitTable table = new CircuitTable();
+    table.put(1, 5, CircuitTable.END);
+    Hop first = hop(2, 7);
+    // As two extends of the same circuit would.
+    assertTrue(table.replace(1, 5, CircuitTable.END, first));
+    assertFalse(table.replace(1, 5, CircuitTable.END, hop(3, 9)));
+    assertSame(first, table.get(1, 5));
+    // An unknown circuit isn't mapped to anything.
+    assertFalse(table.replace(1, 6, CircuitTable.END, first));
+    assertNull(table.get(1, 6));
+  }
+
+  @Test
+  public void findsCircuitsPastCollisionsAndRemovedEntries() {
+    // Enough keys to fill half of the initial table, so some must share a probe sequence.
+    CircuitTable table = new CircuitTable();
+    Hop[] hops = new Hop[31];
+    for (int i = 0; i < hops.length; i++) {
+      hops[i] = hop(1, i);
+      table.put(1, i, hops[i]);
+    }
+    for (int i = 0; i < hops.length; i += 2) {
+      assertSame(hops[i], table.remove(1, i));
+    }
+    assertNull(table.remove(1, 0));
+
+    for (int i = 0; i < hops.length; i++) {
+      if (i % 2 == 0) {
+        assertNull(table.get(1, i));
+      } else {
+        assertSame(hops[i], table.get(1, i));
+      }
+    }
+    assertEquals(15, table.size());
+
+    // Put back into the slots freed by the removes.
+    for (int i = 0; i < hops.length; i += 2) {
+      table.put(1, i, hops[i]);
+    }
+    for (int i = 0; i < hops.length; i++) {
+      assertSame(hops[i], table.get(1, i));
+    }
+    assertEquals(31, table.size());
+  }
+
+  @Test
+  public void keepsEveryCircuitAsItGrows() {
+    CircuitTable table = new CircuitTable();
+    for (int linkId = 1; linkId <= 4; linkId++) {
+      for (int circuitId = 0; circuitId < 500; circuitId++) {
+        table.put(linkId, circuitId, hop(linkId, circuitId));
+      }
+    }
+    assertEquals(2000, table.size());
+    for (int linkId = 1; linkId <= 4; linkId++) {
+      for (int circuitId = 0; circuitId < 500; circuitId++) {
+        assertEquals(circuitId + 100, table.get(linkId, circuitId).circuitId);
+      }
+    }
+  }
+
+  @Test
+  public void churnDoesNotLoseCircuits() {
+    // Every put and remove leaves a tombstone behind, which rehashing has to clear.
+    CircuitTable table = new CircuitTable();
+    table.put(1, -1, CircuitTable.END);
+    for (int i = 0; i < 10000; i++) {
+      table.put(1, i, hop(1, i));
+      assertEquals(i + 100, table.remove(1, i).circuitId);
+    }
+    assertSame(CircuitTable.END, table.get(1, -1));
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void listsTheCircuitsOfALink() {
+    CircuitTable table = new CircuitTable();
+    table.put(1, 3, hop(1, 3));
+    table.put(1, 7, hop(1, 7));
+    table.put(2, 3, hop(2, 3));
+    table.remove(1, 3);
+
+    int[] circuitIds = table.circuitIds(1);
+    Arrays.sort(circuitIds);
+    assertArrayEquals(new int[] {7}, circuitIds);
+    assertEquals(Set.of(1, 2), table.linkIds());
+    table.remove(1, 7);
+    assertEquals(Set.of(2), table.linkIds());
+  }
+}
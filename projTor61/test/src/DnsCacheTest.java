@@ -0,0 +1,106 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/** Tests sharing, caching, expiring and bounding the lookups of a `DnsCache`. Names are ip
+    literals, which resolve without a name server, and a `.invalid` name, which never
+    resolves. */
+public class DnsCacheTest {
+  private static final String INVALID = "no-such-host.invalid";
+
+  @Test
+  public void sharesOneLookupBetweenConcurrentCallers() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger resolutions = new AtomicInteger();
+    DnsCache cache = new DnsCache(16, 60000, 60000, host -> {
+      resolutions.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new UnknownHostException(host);
+      }
+      return InetAddress.getByName(host);
+    });
+
+    CompletableFuture<InetAddress> first = cache.resolve("127.0.0.1");
+    CompletableFuture<InetAddress> second = cache.resolve("127.0.0.1");
+    assertSame(first, second);
+    release.countDown();
+    assertEquals(InetAddress.getByName("127.0.0.1"), first.get(5, TimeUnit.SECONDS));
+    assertEquals(1, resolutions.get());
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.coalesced());
+  }
+
+  @Test
+  public void cachesAddressesUntilTheyExpire() throws Exception {
+    DnsCache cache = new DnsCache(16, 100, 100);
+    InetAddress address = cache.resolveNow("127.0.0.1");
+    assertEquals(InetAddress.getByName("127.0.0.1"), address);
+    assertSame(address, cache.resolveNow("127.0.0.1"));
+    assertEquals(1, cache.hits());
+
+    Thread.sleep(150);
+    cache.resolveNow("127.0.0.1");
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  public void cachesFailedLookupsForTheirOwnTime() throws Exception {
+    DnsCache cache = new DnsCache(16, 60000, 100);
+    assertThrows(UnknownHostException.class, () -> cache.resolveNow(INVALID));
+    assertThrows(UnknownHostException.class, () -> cache.resolveNow(INVALID));
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.negativeHits());
+
+    Thread.sleep(150);
+    assertThrows(UnknownHostException.class, () -> cache.resolveNow(INVALID));
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  public void dropsTheLeastRecentlyUsedName() throws Exception {
+    DnsCache cache = new DnsCache(2, 60000, 60000);
+    cache.resolveNow("127.0.0.1");
+    cache.resolveNow("127.0.0.2");
+    // Used since, so "127.0.0.2" is the least recently used.
+    cache.resolveNow("127.0.0.1");
+    cache.resolveNow("127.0.0.3");
+    assertEquals(2, cache.size());
+    assertEquals(3, cache.misses());
+
+    cache.resolveNow("127.0.0.1");
+    assertEquals(3, cache.misses());
+    cache.resolveNow("127.0.0.2");
+    assertEquals(4, cache.misses());
+  }
+
+  @Test
+  public void treatsNamesCaseInsensitively() throws Exception {
+    DnsCache cache = new DnsCache(16, 60000, 60000);
+    cache.resolveNow("LOCALHOST");
+    cache.resolveNow("localhost");
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void failsALookupWhoseResolverBreaks() {
+    DnsCache cache = new DnsCache(16, 60000, 60000, host -> {
+      throw new IllegalStateException("resolver broke");
+    });
+    UnknownHostException e =
+        assertThrows(UnknownHostException.class, () -> cache.resolveNow("127.0.0.1"));
+    assertTrue(e.getMessage().contains("127.0.0.1"));
+  }
+}
@@ -0,0 +1,53 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+/** Tests taking cells from and adding sendmes to a `FlowWindow`. */
+public class FlowWindowTest {
+  @Test
+  public void runsOutAfterItsStartingWindow() throws InterruptedException {
+    FlowWindow window = new FlowWindow(3);
+    assertTrue(window.take(0));
+    assertTrue(window.take(0));
+    assertTrue(window.take(0));
+    assertEquals(0, window.remaining());
+    assertFalse(window.take(10));
+  }
+
+  @Test
+  public void neverGrowsPastItsStartingWindow() throws InterruptedException {
+    FlowWindow window = new FlowWindow(FlowWindow.STREAM_START);
+    window.take(0);
+    window.increase(FlowWindow.STREAM_INCREMENT);
+    assertEquals(FlowWindow.STREAM_START, window.remaining());
+  }
+
+  @Test
+  public void wakesASenderWaitingForASendme() throws InterruptedException {
+    FlowWindow window = new FlowWindow(1);
+    window.take(0);
+    AtomicBoolean taken = new AtomicBoolean();
+    CountDownLatch done = new CountDownLatch(1);
+    Thread sender = new Thread(() -> {
+      try {
+        taken.set(window.take(10000));
+      } catch (InterruptedException e) {
+        // no op; `taken` stays false
+      }
+      done.countDown();
+    });
+    sender.start();
+    Thread.sleep(50);
+    window.increase(1);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(taken.get());
+    assertEquals(0, window.remaining());
+  }
+}
@@ -0,0 +1,95 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/** Tests that `IdAllocator` wraps around its range, reports exhaustion and reuses ids only
+    once they're released. */
+public class IdAllocatorTest {
+  @Test
+  public void handsOutIdsInOrderAndWrapsAround() {
+    IdAllocator ids = new IdAllocator(1, 4);
+    assertEquals(1, ids.allocate());
+    assertEquals(2, ids.allocate());
+    assertEquals(3, ids.allocate());
+    assertTrue(ids.release(1));
+    // Carries on from the last id handed out before going back to the start.
+    assertEquals(4, ids.allocate());
+    assertEquals(1, ids.allocate());
+  }
+
+  @Test
+  public void doesNotReuseAReleasedIdUntilTheRangeHasBeenTried() {
+    IdAllocator ids = new IdAllocator(1, 100);
+    int id = ids.allocate();
+    assertTrue(ids.release(id));
+    for (int i = 0; i < 99; i++) {
+      assertTrue(ids.allocate() != id);
+    }
+    assertEquals(id, ids.allocate());
+  }
+
+  @Test
+  public void reportsExhaustionUntilAnIdIsReleased() {
+    IdAllocator ids = new IdAllocator(10, 12);
+    Set<Integer> handedOut = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      handedOut.add(ids.allocate());
+    }
+    assertEquals(Set.of(10, 11, 12), handedOut);
+    assertEquals(3, ids.liveIds());
+    assertEquals(-1, ids.allocate());
+    assertEquals(-1, ids.allocate());
+    assertEquals(2, ids.exhaustions());
+
+    assertTrue(ids.release(11));
+    assertEquals(11, ids.allocate());
+    assertEquals(-1, ids.allocate());
+    assertEquals(3, ids.exhaustions());
+  }
+
+  @Test
+  public void onlyReleasesIdsInUse() {
+    IdAllocator ids = new IdAllocator(1, 10);
+    int id = ids.allocate();
+    assertTrue(ids.isInUse(id));
+    assertTrue(ids.release(id));
+    assertFalse(ids.isInUse(id));
+    assertFalse(ids.release(id));
+    assertFalse(ids.release(0));
+    assertFalse(ids.release(11));
+    assertEquals(0, ids.liveIds());
+  }
+
+  @Test
+  public void onlyHandsOutIdsOnTheStep() {
+    // Odd ids, as for the circuits of a `Socket` this node initiated.
+    IdAllocator ids = new IdAllocator(3, 11, 2);
+    for (int expected = 3; expected <= 11; expected += 2) {
+      assertEquals(expected, ids.allocate());
+    }
+    assertEquals(-1, ids.allocate());
+    assertFalse(ids.release(4));
+    assertTrue(ids.release(7));
+    assertEquals(7, ids.allocate());
+  }
+
+  @Test
+  public void wrapsAroundARangeOfSeveralWords() {
+    // More ids than fit in one 64-bit word of the bitmap.
+    IdAllocator ids = new IdAllocator(0, 199);
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i, ids.allocate());
+    }
+    assertTrue(ids.release(5));
+    assertTrue(ids.release(130));
+    assertEquals(5, ids.allocate());
+    assertEquals(130, ids.allocate());
+    assertEquals(-1, ids.allocate());
+  }
+}
@@ -0,0 +1,159 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests reusing, capping, checking and evicting the idle connections of an `OriginPool`, with
+    a loopback `ServerSocket` as the web server. */
+public class OriginPoolTest {
+  private static final String HOST = "127.0.0.1";
+
+  private ServerSocket server;
+  /// The server's ends of the connections made to it.
+  private final List<Socket> accepted = new ArrayList<>();
+  private final DnsCache dnsCache = new DnsCache(16, 60000, 1000);
+
+  @BeforeEach
+  public void listen() throws IOException {
+    server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    for (Socket socket : accepted) {
+      socket.close();
+    }
+    server.close();
+  }
+
+  /** Gets a connection to `server` from `pool`, and accepts it if it's new. */
+  private Socket connect(OriginPool pool) throws Exception {
+    CompletableFuture<Socket> result = new CompletableFuture<>();
+    pool.connect(HOST, server.getLocalPort(), result::complete);
+    Socket socket = result.get(5, TimeUnit.SECONDS);
+    assertNotNull(socket);
+    return socket;
+  }
+
+  /** Accepts the next connection made to `server`. */
+  private Socket accept() throws IOException {
+    Socket socket = server.accept();
+    accepted.add(socket);
+    return socket;
+  }
+
+  @Test
+  public void reusesAReleasedConnection() throws Exception {
+    OriginPool pool = new OriginPool(4, 60000, dnsCache);
+    Socket first = connect(pool);
+    accept();
+    pool.release(HOST, server.getLocalPort(), first);
+    assertEquals(1, pool.idleCount());
+
+    assertSame(first, connect(pool));
+    assertEquals(0, pool.idleCount());
+    assertEquals(1, pool.hits());
+    assertEquals(1, pool.misses());
+    first.close();
+  }
+
+  @Test
+  public void keepsAtMostMaxIdleConnectionsPerOrigin() throws Exception {
+    OriginPool pool = new OriginPool(1, 60000, dnsCache);
+    Socket first = connect(pool);
+    accept();
+    Socket second = connect(pool);
+    accept();
+    pool.release(HOST, server.getLocalPort(), first);
+    pool.release(HOST, server.getLocalPort(), second);
+    assertEquals(1, pool.idleCount());
+    assertTrue(second.isClosed());
+    assertSame(first, connect(pool));
+    first.close();
+  }
+
+  @Test
+  public void neverKeepsConnectionsWithoutIdleSlots() throws Exception {
+    OriginPool pool = new OriginPool(0, 60000, dnsCache);
+    Socket socket = connect(pool);
+    accept();
+    pool.release(HOST, server.getLocalPort(), socket);
+    assertTrue(socket.isClosed());
+    assertEquals(0, pool.idleCount());
+  }
+
+  @Test
+  public void skipsConnectionsTheServerClosedWhileIdle() throws Exception {
+    OriginPool pool = new OriginPool(4, 60000, dnsCache);
+    Socket stale = connect(pool);
+    accept().close();
+    pool.release(HOST, server.getLocalPort(), stale);
+    // Let the server's end of the stream arrive.
+    Thread.sleep(50);
+
+    Socket fresh = connect(pool);
+    accept();
+    assertNotSame(stale, fresh);
+    assertTrue(stale.isClosed());
+    assertEquals(0, pool.hits());
+    assertEquals(2, pool.misses());
+    fresh.close();
+  }
+
+  @Test
+  public void skipsConnectionsWithUnrequestedBytes() throws Exception {
+    OriginPool pool = new OriginPool(4, 60000, dnsCache);
+    Socket socket = connect(pool);
+    accept().getOutputStream().write('x');
+    pool.release(HOST, server.getLocalPort(), socket);
+    Thread.sleep(50);
+
+    Socket fresh = connect(pool);
+    accept();
+    assertNotSame(socket, fresh);
+    assertTrue(socket.isClosed());
+    fresh.close();
+  }
+
+  @Test
+  public void evictsConnectionsIdleTooLong() throws Exception {
+    OriginPool pool = new OriginPool(4, 100, dnsCache);
+    Socket socket = connect(pool);
+    accept();
+    pool.release(HOST, server.getLocalPort(), socket);
+    // Evictions run once a second.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pool.idleCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, pool.idleCount());
+    assertTrue(socket.isClosed());
+  }
+
+  @Test
+  public void reportsAFailedConnect() throws Exception {
+    OriginPool pool = new OriginPool(4, 60000, dnsCache);
+    int port = server.getLocalPort();
+    server.close();
+    CompletableFuture<Socket> result = new CompletableFuture<>();
+    pool.connect(HOST, port, result::complete);
+    assertNull(result.get(15, TimeUnit.SECONDS));
+    assertEquals(1, pool.failures());
+  }
+}
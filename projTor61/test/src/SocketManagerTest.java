@@ -0,0 +1,103 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests that `SocketManager` gives each link its own space of circuit ids, and finds the links
+    to an agent. */
+public class SocketManagerTest {
+  private ServerSocket listener;
+  /// The `Socket`s added to the `SocketManager`, removed after each test.
+  private final Set<Socket> sockets = new HashSet<>();
+
+  @BeforeEach
+  public void listen() throws IOException {
+    listener = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+  }
+
+  @AfterEach
+  public void close() throws IOException {
+    for (Socket socket : sockets) {
+      SocketManager.removeSocket(socket);
+    }
+    listener.close();
+  }
+
+  /** Connects a pair of loopback `Socket`s and adds the connecting end to the
+      `SocketManager`.
+      @param initiated Whether the added end counts as created by this application.
+      @return The added `Socket`. */
+  private Socket addLink(boolean initiated) throws IOException {
+    Socket socket = SocketManager.openSocket(InetAddress.getLoopbackAddress(),
+                                             listener.getLocalPort());
+    sockets.add(listener.accept());
+    sockets.add(socket);
+    SocketManager.addSocket(socket, initiated);
+    return socket;
+  }
+
+  @Test
+  public void usesOddIdsOnInitiatedLinksAndEvenIdsOnOthers() throws IOException {
+    Socket initiated = addLink(true);
+    Socket accepted = addLink(false);
+    // Circuit id 1 is kept for the proxy's own circuit.
+    assertEquals(3, SocketManager.getNextCircuitIdForSocket(initiated));
+    assertEquals(5, SocketManager.getNextCircuitIdForSocket(initiated));
+    assertEquals(2, SocketManager.getNextCircuitIdForSocket(accepted));
+    assertEquals(4, SocketManager.getNextCircuitIdForSocket(accepted));
+  }
+
+  @Test
+  public void givesEachLinkItsOwnIds() throws IOException {
+    Socket first = addLink(true);
+    Socket second = addLink(true);
+    assertEquals(3, SocketManager.getNextCircuitIdForSocket(first));
+    assertEquals(3, SocketManager.getNextCircuitIdForSocket(second));
+    assertNotEquals(SocketManager.linkIdForSocket(first), SocketManager.linkIdForSocket(second));
+  }
+
+  @Test
+  public void reusesReleasedIdsOnceTheSpaceRunsOut() throws IOException {
+    Socket socket = addLink(true);
+    // Every odd id from 3 to 0xFFFF.
+    int ids = (0xFFFF - 3) / 2 + 1;
+    for (int i = 0; i < ids; i++) {
+      assertNotEquals(-1, SocketManager.getNextCircuitIdForSocket(socket));
+    }
+    assertEquals(-1, SocketManager.getNextCircuitIdForSocket(socket));
+
+    SocketManager.releaseCircuitIdForSocket(socket, 1001);
+    // An id this end didn't pick is ignored.
+    SocketManager.releaseCircuitIdForSocket(socket, 1002);
+    assertEquals(1001, SocketManager.getNextCircuitIdForSocket(socket));
+    assertEquals(-1, SocketManager.getNextCircuitIdForSocket(socket));
+  }
+
+  @Test
+  public void keepsFindingAnAgentWhileAnyLinkToItIsUp() throws IOException {
+    // As when two nodes open links to each other at the same time.
+    int agentId = 0x7FFF0001;
+    Socket first = addLink(true);
+    Socket second = addLink(false);
+    SocketManager.setAgentIdForSocket(first, agentId);
+    SocketManager.setAgentIdForSocket(second, agentId);
+    assertSame(first, SocketManager.socketForAgentId(agentId));
+
+    SocketManager.removeSocket(first);
+    assertSame(second, SocketManager.socketForAgentId(agentId));
+    SocketManager.removeSocket(second);
+    assertNull(SocketManager.socketForAgentId(agentId));
+  }
+}